@@ -0,0 +1,124 @@
+package hr.fer.zemris.java.custom.scripting.exec;
+
+import hr.fer.zemris.java.custom.scripting.exec.util.ValueWrapper;
+import hr.fer.zemris.java.webserver.RequestContext;
+
+import java.io.IOException;
+import java.util.Objects;
+
+/**
+ * Smart script compiled by {@link SmartScriptCompiler}. Compiled script is immutable and holds no state of
+ * its executions, so a single instance can be executed any number of times, also from multiple threads at once.
+ *
+ * @author Jan Capek
+ */
+public class CompiledScript {
+
+    /**
+     * Instructions of the top level of the script.
+     */
+    private Instruction[] body;
+
+    /**
+     * Number of variable slots script needs.
+     */
+    private int variables;
+
+    /**
+     * @param body      Instructions of the top level of the script.
+     * @param variables Number of variable slots script needs.
+     */
+    CompiledScript(Instruction[] body, int variables) {
+        this.body = body;
+        this.variables = variables;
+    }
+
+    /**
+     * Executes the script writing its output to given context.
+     *
+     * @param context Request context used to send output.
+     * @throws NullPointerException        If given context is {@code null}.
+     * @throws SmartScriptRuntimeException If an error occurred while executing a script.
+     */
+    public void execute(RequestContext context) {
+        Frame frame = new Frame(Objects.requireNonNull(context), variables);
+        try {
+            for (Instruction instruction : body) {
+                instruction.execute(frame);
+            }
+        } catch (Exception e) {
+            throw new SmartScriptRuntimeException("Exception thrown while executing the script.", e);
+        }
+    }
+
+    /**
+     * Single step of a compiled script with everything it needs resolved when script is compiled.
+     */
+    interface Instruction {
+
+        /**
+         * Executes the instruction.
+         *
+         * @param frame State of the execution.
+         * @throws IOException If data could not be sent.
+         */
+        void execute(Frame frame) throws IOException;
+    }
+
+    /**
+     * Part of a script that evaluates to a single value, a constant or a variable.
+     */
+    interface Operand {
+
+        /**
+         * @param frame State of the execution.
+         * @return Current value of the operand.
+         */
+        Object get(Frame frame);
+    }
+
+    /**
+     * State of a single execution of a compiled script.
+     */
+    static class Frame {
+        /**
+         * Request context used to send output.
+         */
+        final RequestContext context;
+        /**
+         * Stack echo tags are evaluated on.
+         */
+        final OperandStack stack = new OperandStack();
+        /**
+         * Variables of for-loops that are being executed, indexed by slots assigned when script was compiled.
+         */
+        private final ValueWrapper[] variables;
+
+        /**
+         * @param context   Request context used to send output.
+         * @param variables Number of variable slots.
+         */
+        Frame(RequestContext context, int variables) {
+            this.context = context;
+            this.variables = new ValueWrapper[variables];
+        }
+
+        /**
+         * @param slot Slot of the variable.
+         * @return Wrapper holding variable value.
+         */
+        ValueWrapper getVariable(int slot) {
+            return variables[slot];
+        }
+
+        /**
+         * Sets the variable in given slot.
+         *
+         * @param slot  Slot of the variable.
+         * @param value Wrapper holding variable value.
+         */
+        void setVariable(int slot, ValueWrapper value) {
+            variables[slot] = value;
+        }
+    }
+}
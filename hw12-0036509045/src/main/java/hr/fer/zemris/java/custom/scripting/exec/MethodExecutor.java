@@ -22,9 +22,13 @@ public class MethodExecutor {
     private RequestContext requestContext;
 
     /**
-     * Map containing available methods.
+     * Map containing available methods. Methods hold no state, so they are shared by all executors.
      */
-    private Map<String, SmartScriptMethod> methodMap;
+    private static final Map<String, SmartScriptMethod> METHODS = new HashMap<>();
+
+    static {
+        initMap();
+    }
 
     /**
      * Constructs a new method executor for {@link hr.fer.zemris.java.custom.scripting.exec.methods.SmartScriptMethod}.
@@ -34,30 +38,28 @@ public class MethodExecutor {
      */
     public MethodExecutor(RequestContext requestContext) {
         this.requestContext = Objects.requireNonNull(requestContext);
-        this.methodMap = new HashMap<>();
-        initMap();
     }
 
     /**
      * Initializes method map.
      */
-    private void initMap() {
-        methodMap.put("decfmt", new DecfmtMethod());
-        methodMap.put("dup", new DupMethod());
-        methodMap.put("paramGet", new ParamGetMethod());
-        methodMap.put("pparamGet", new PParamGetMethod());
-        methodMap.put("sin", new SinMethod());
-        methodMap.put("swap", new SwapMethod());
-        methodMap.put("setMimeType", new SetMimeTypeMethod());
-        methodMap.put("pparamSet", new PParamSetMethod());
-        methodMap.put("pparamDel", new PParamDelMethod());
-        methodMap.put("tparamGet", new TParamGetMetod());
-        methodMap.put("tparamSet", new TParamSetMethod());
-        methodMap.put("tparamDel", new TParamDelMethod());
-        methodMap.put("+", new ArithmeticMethod(ValueWrapper::add));
-        methodMap.put("-", new ArithmeticMethod(ValueWrapper::subtract));
-        methodMap.put("*", new ArithmeticMethod(ValueWrapper::multiply));
-        methodMap.put("/", new ArithmeticMethod(ValueWrapper::divide));
+    private static void initMap() {
+        METHODS.put("decfmt", new DecfmtMethod());
+        METHODS.put("dup", new DupMethod());
+        METHODS.put("paramGet", new ParamGetMethod());
+        METHODS.put("pparamGet", new PParamGetMethod());
+        METHODS.put("sin", new SinMethod());
+        METHODS.put("swap", new SwapMethod());
+        METHODS.put("setMimeType", new SetMimeTypeMethod());
+        METHODS.put("pparamSet", new PParamSetMethod());
+        METHODS.put("pparamDel", new PParamDelMethod());
+        METHODS.put("tparamGet", new TParamGetMetod());
+        METHODS.put("tparamSet", new TParamSetMethod());
+        METHODS.put("tparamDel", new TParamDelMethod());
+        METHODS.put("+", new ArithmeticMethod(ValueWrapper::add));
+        METHODS.put("-", new ArithmeticMethod(ValueWrapper::subtract));
+        METHODS.put("*", new ArithmeticMethod(ValueWrapper::multiply));
+        METHODS.put("/", new ArithmeticMethod(ValueWrapper::divide));
     }
 
     /**
@@ -69,10 +71,20 @@ public class MethodExecutor {
      * @throws NullPointerException If any of the parameters are {@code null}.
      */
     public void execute(String methodName, Stack<ValueWrapper> stack) {
-        SmartScriptMethod method = methodMap.get(methodName);
+        SmartScriptMethod method = getMethod(methodName);
         if(method == null) {
             throw new MethodNotFoundException();
         }
         method.execute(requestContext, stack);
     }
+
+    /**
+     * Returns the method with given name, used to bind methods to scripts once when they are compiled.
+     *
+     * @param methodName Name of the method, a function name or an operator symbol.
+     * @return Method with given name or {@code null} if there is no such method.
+     */
+    static SmartScriptMethod getMethod(String methodName) {
+        return METHODS.get(methodName);
+    }
 }
@@ -0,0 +1,103 @@
+package hr.fer.zemris.java.custom.scripting.exec;
+
+import hr.fer.zemris.java.custom.scripting.exec.util.ValueWrapper;
+import hr.fer.zemris.java.webserver.RequestContext;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.EmptyStackException;
+import java.util.Stack;
+
+/**
+ * Stack of values an echo tag is evaluated on. It is a {@link Stack} so it can be passed to
+ * {@link hr.fer.zemris.java.custom.scripting.exec.methods.SmartScriptMethod}s, but its stack operations are not
+ * synchronized since a stack is only ever used by the thread executing the script. One stack is reused by all
+ * echo tags of a single execution.
+ *
+ * @author Jan Capek
+ */
+class OperandStack extends Stack<ValueWrapper> {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Wrappers used by {@link #pushValue(Object)}. They are reused once the stack is cleared, since values of an echo
+     * tag are not referenced after the tag has been written.
+     */
+    private transient ValueWrapper[] wrappers = new ValueWrapper[8];
+
+    /**
+     * Number of wrappers used since the stack was last cleared.
+     */
+    private transient int usedWrappers;
+
+    @Override
+    public ValueWrapper push(ValueWrapper item) {
+        if (elementCount == elementData.length) {
+            elementData = Arrays.copyOf(elementData, elementCount * 2 + 1);
+        }
+        elementData[elementCount++] = item;
+        modCount++;
+        return item;
+    }
+
+    @Override
+    public ValueWrapper pop() {
+        ValueWrapper item = peek();
+        elementData[--elementCount] = null;
+        modCount++;
+        return item;
+    }
+
+    @Override
+    public ValueWrapper peek() {
+        if (elementCount == 0) {
+            throw new EmptyStackException();
+        }
+        return (ValueWrapper) elementData[elementCount - 1];
+    }
+
+    @Override
+    public boolean empty() {
+        return elementCount == 0;
+    }
+
+    /**
+     * Pushes given value on the stack, wrapped in a reused wrapper.
+     *
+     * @param value Value that needs to be pushed.
+     */
+    void pushValue(Object value) {
+        if (usedWrappers == wrappers.length) {
+            wrappers = Arrays.copyOf(wrappers, usedWrappers * 2);
+        }
+        ValueWrapper wrapper = wrappers[usedWrappers];
+        if (wrapper == null) {
+            wrapper = new ValueWrapper(value);
+            wrappers[usedWrappers] = wrapper;
+        } else {
+            wrapper.setValue(value);
+        }
+        usedWrappers++;
+        push(wrapper);
+    }
+
+    /**
+     * Writes values on the stack, from the bottom to the top, and empties the stack.
+     *
+     * @param context Context values are written to.
+     * @throws IOException If data could not be sent.
+     */
+    void writeAndClear(RequestContext context) throws IOException {
+        try {
+            for (int i = 0; i < elementCount; i++) {
+                context.write(((ValueWrapper) elementData[i]).getValue().toString());
+            }
+        } finally {
+            Arrays.fill(elementData, 0, elementCount, null);
+            elementCount = 0;
+            usedWrappers = 0;
+            modCount++;
+        }
+    }
+}
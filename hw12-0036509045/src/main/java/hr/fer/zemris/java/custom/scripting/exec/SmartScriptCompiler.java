@@ -0,0 +1,357 @@
+package hr.fer.zemris.java.custom.scripting.exec;
+
+import hr.fer.zemris.java.custom.scripting.elems.*;
+import hr.fer.zemris.java.custom.scripting.exec.CompiledScript.Instruction;
+import hr.fer.zemris.java.custom.scripting.exec.CompiledScript.Operand;
+import hr.fer.zemris.java.custom.scripting.exec.methods.SmartScriptMethod;
+import hr.fer.zemris.java.custom.scripting.exec.util.ValueWrapper;
+import hr.fer.zemris.java.custom.scripting.nodes.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.BiConsumer;
+
+/**
+ * Compiles parsed smart scripts into trees of closures. Everything that does not depend on the request is resolved
+ * once, when script is compiled: node and element types, methods called by echo tags and constant values.
+ * Adjacent text and echo tags holding only constants are joined into a single write. Variables are resolved
+ * to slots of the execution frame: loops are nested lexically, so each variable refers to the innermost enclosing
+ * loop with its name and loops nested at the same depth share a slot.
+ * <p>
+ * Compiled script behaves exactly like the parsed one would when interpreted, including errors: elements that
+ * cannot be executed, such as calls of unknown methods, do not fail compilation but are compiled
+ * into instructions that fail once they are reached.
+ *
+ * @author Jan Capek
+ */
+public class SmartScriptCompiler {
+
+    /**
+     * Arithmetic operators, which are compiled to operations on the operand stack that do not box their operands.
+     */
+    private static final Map<String, BiConsumer<ValueWrapper, ValueWrapper>> OPERATORS = Map.of(
+            "+", ValueWrapper::add,
+            "-", ValueWrapper::subtract,
+            "*", ValueWrapper::multiply,
+            "/", ValueWrapper::divide
+    );
+
+    /**
+     * Compiles given script.
+     *
+     * @param document Document node of the parsed script.
+     * @return Compiled script.
+     * @throws NullPointerException If given node is {@code null}.
+     */
+    public static CompiledScript compile(DocumentNode document) {
+        VariableResolver resolver = new VariableResolver();
+        Instruction[] body = compileChildren(Objects.requireNonNull(document), resolver);
+        return new CompiledScript(body, resolver.getSlots());
+    }
+
+    /**
+     * Compiles children of given node.
+     *
+     * @param node     Node whose children need to be compiled.
+     * @param resolver Resolver of variables in scope of the children.
+     * @return Instructions executing the children in order.
+     */
+    private static Instruction[] compileChildren(Node node, VariableResolver resolver) {
+        BodyCompiler compiler = new BodyCompiler(resolver);
+        int children = node.numberOfChildren();
+        for (int i = 0; i < children; i++) {
+            node.getChild(i).accept(compiler);
+        }
+        return compiler.build();
+    }
+
+    /**
+     * Visitor that compiles visited nodes into a sequence of instructions.
+     */
+    private static class BodyCompiler implements INodeVisitor {
+
+        /**
+         * Resolver of variables in scope of visited nodes.
+         */
+        private VariableResolver resolver;
+
+        /**
+         * Compiled instructions.
+         */
+        private List<Instruction> instructions = new ArrayList<>();
+
+        /**
+         * Output of visited nodes that is known at compile time and has not been added as an instruction yet.
+         */
+        private StringBuilder text = new StringBuilder();
+
+        /**
+         * @param resolver Resolver of variables in scope of visited nodes.
+         */
+        private BodyCompiler(VariableResolver resolver) {
+            this.resolver = resolver;
+        }
+
+        @Override
+        public void visitTextNode(TextNode node) {
+            text.append(node.getText());
+        }
+
+        @Override
+        public void visitForLoopNode(ForLoopNode node) {
+            flushText();
+            instructions.add(compileForLoop(node, resolver));
+        }
+
+        @Override
+        public void visitEchoNode(EchoNode node) {
+            String output = constantOutput(node.getElements());
+            if (output != null) {
+                text.append(output);
+                return;
+            }
+            flushText();
+            instructions.add(compileEcho(node.getElements(), resolver));
+        }
+
+        @Override
+        public void visitDocumentNode(DocumentNode node) {
+            int children = node.numberOfChildren();
+            for (int i = 0; i < children; i++) {
+                node.getChild(i).accept(this);
+            }
+        }
+
+        /**
+         * Adds pending text as a single instruction.
+         */
+        private void flushText() {
+            if (text.length() == 0) {
+                return;
+            }
+            String output = text.toString();
+            instructions.add(frame -> frame.context.write(output));
+            text.setLength(0);
+        }
+
+        /**
+         * @return Compiled instructions.
+         */
+        private Instruction[] build() {
+            flushText();
+            return instructions.toArray(new Instruction[0]);
+        }
+    }
+
+    /**
+     * Returns output of an echo tag if it is known at compile time.
+     *
+     * @param elements Elements of the echo tag.
+     * @return Output of the tag or {@code null} if tag uses variables or calls methods.
+     */
+    private static String constantOutput(Element[] elements) {
+        StringBuilder sb = new StringBuilder();
+        for (Element element : elements) {
+            if (element instanceof ElementString) {
+                sb.append(((ElementString) element).getValue());
+            } else if (element instanceof ElementConstantInteger) {
+                sb.append(((ElementConstantInteger) element).getValue());
+            } else if (element instanceof ElementConstantDouble) {
+                sb.append(((ElementConstantDouble) element).getValue());
+            } else {
+                return null;
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Compiles an echo tag. Values of a tag that does not call any methods are written straight away,
+     * otherwise tag is evaluated on the operand stack and whatever is left on it is written.
+     *
+     * @param elements Elements of the echo tag.
+     * @param resolver Resolver of variables in scope of the tag.
+     * @return Instruction executing the tag.
+     */
+    private static Instruction compileEcho(Element[] elements, VariableResolver resolver) {
+        boolean callsMethods = false;
+        for (Element element : elements) {
+            callsMethods |= isMethod(element);
+        }
+        if (callsMethods == false) {
+            Operand[] operands = new Operand[elements.length];
+            for (int i = 0; i < elements.length; i++) {
+                operands[i] = compileOperand(elements[i], resolver);
+            }
+            return frame -> {
+                for (Operand operand : operands) {
+                    frame.context.write(operand.get(frame).toString());
+                }
+            };
+        }
+
+        Instruction[] steps = new Instruction[elements.length];
+        for (int i = 0; i < elements.length; i++) {
+            if (isMethod(elements[i])) {
+                steps[i] = compileMethodCall(elements[i].asText());
+            } else {
+                Operand operand = compileOperand(elements[i], resolver);
+                steps[i] = frame -> frame.stack.pushValue(operand.get(frame));
+            }
+        }
+        return frame -> {
+            for (Instruction step : steps) {
+                step.execute(frame);
+            }
+            frame.stack.writeAndClear(frame.context);
+        };
+    }
+
+    /**
+     * @param element Element of an echo tag.
+     * @return {@code true} if element calls a method, {@code false} if it is a value.
+     */
+    private static boolean isMethod(Element element) {
+        return element instanceof ElementFunction || element instanceof ElementOperator;
+    }
+
+    /**
+     * Compiles a call of the method with given name, which is bound to the method right away.
+     *
+     * @param name Function name or operator symbol.
+     * @return Instruction calling the method on the operand stack.
+     */
+    private static Instruction compileMethodCall(String name) {
+        BiConsumer<ValueWrapper, ValueWrapper> operator = OPERATORS.get(name);
+        if (operator != null) {
+            return frame -> {
+                ValueWrapper b = frame.stack.pop();
+                operator.accept(frame.stack.peek(), b);
+            };
+        }
+        SmartScriptMethod method = MethodExecutor.getMethod(name);
+        if (method == null) {
+            return frame -> {
+                throw new MethodNotFoundException();
+            };
+        }
+        return frame -> method.execute(frame.context, frame.stack);
+    }
+
+    /**
+     * Compiles an element holding a value.<br>
+     * Allowed elements are: {@link ElementConstantDouble}, {@link ElementConstantInteger}, {@link ElementString}, {@link ElementVariable}.
+     *
+     * @param element  Element that needs to be compiled, can be {@code null}.
+     * @param resolver Resolver of variables in scope of the element.
+     * @return Operand giving the value of the element. If element does not hold a value, operand
+     * throws {@link IllegalArgumentException}, if it is a variable that is not in scope, operand throws
+     * {@link VariableNotFoundException}.
+     */
+    private static Operand compileOperand(Element element, VariableResolver resolver) {
+        Object constant;
+        if (element instanceof ElementString) {
+            constant = ((ElementString) element).getValue();
+        } else if (element instanceof ElementConstantInteger) {
+            constant = ((ElementConstantInteger) element).getValue();
+        } else if (element instanceof ElementConstantDouble) {
+            constant = ((ElementConstantDouble) element).getValue();
+        } else if (element instanceof ElementVariable) {
+            String name = ((ElementVariable) element).getName();
+            int slot = resolver.resolve(name);
+            if (slot < 0) {
+                return frame -> {
+                    throw new VariableNotFoundException("Variable '" + name + "' could not be found.");
+                };
+            }
+            return frame -> frame.getVariable(slot).getValue();
+        } else {
+            return frame -> {
+                throw new IllegalArgumentException("Given element is not a constant.");
+            };
+        }
+        return frame -> constant;
+    }
+
+    /**
+     * Compiles a for-loop. Loop variable hides variables with the same name in the body of the loop and in its end
+     * and step expressions, start expression is evaluated before the variable is declared.
+     *
+     * @param node     For-loop node.
+     * @param resolver Resolver of variables in scope of the loop.
+     * @return Instruction executing the loop.
+     */
+    private static Instruction compileForLoop(ForLoopNode node, VariableResolver resolver) {
+        Operand start = compileOperand(node.getStartExpression(), resolver);
+        int slot = resolver.declare(node.getVariable().getName());
+        Operand end = compileOperand(node.getEndExpression(), resolver);
+        Operand step = compileOperand(node.getStepExpression(), resolver);
+        Instruction[] body = compileChildren(node, resolver);
+        resolver.undeclare();
+        return frame -> {
+            ValueWrapper counter = new ValueWrapper(start.get(frame));
+            frame.setVariable(slot, counter);
+            Object boundary = end.get(frame);
+            Object increment = step.get(frame);
+            while (counter.numCompare(boundary) <= 0) {
+                for (Instruction instruction : body) {
+                    instruction.execute(frame);
+                }
+                counter.add(increment);
+            }
+        };
+    }
+
+    /**
+     * Resolves variables to slots while script is compiled. Slot of a variable is the depth of the loop
+     * that declared it.
+     */
+    private static class VariableResolver {
+
+        /**
+         * Names of variables of the loops enclosing the part of the script that is compiled, indexed by slots.
+         */
+        private List<String> scope = new ArrayList<>();
+
+        /**
+         * Number of slots needed by the variables declared so far.
+         */
+        private int slots;
+
+        /**
+         * Declares a variable of a loop nested in the current scope.
+         *
+         * @param name Name of the variable.
+         * @return Slot of the variable.
+         */
+        private int declare(String name) {
+            scope.add(name);
+            slots = Math.max(slots, scope.size());
+            return scope.size() - 1;
+        }
+
+        /**
+         * Removes the variable declared last from the scope.
+         */
+        private void undeclare() {
+            scope.remove(scope.size() - 1);
+        }
+
+        /**
+         * @param name Name of the variable.
+         * @return Slot of the innermost variable in scope with given name or {@code -1} if there is none.
+         */
+        private int resolve(String name) {
+            return scope.lastIndexOf(name);
+        }
+
+        /**
+         * @return Number of slots needed by all declared variables.
+         */
+        private int getSlots() {
+            return slots;
+        }
+    }
+}
@@ -23,9 +23,8 @@ public class SmartScriptExecuteDemo {
         Map<String, String> parameters = new HashMap<>();
         Map<String, String> persistentParameters = new HashMap<>();
         List<RequestContext.RCCookie> cookies = new ArrayList<>();
-        new SmartScriptEngine(
-                new SmartScriptParser(documentBody).getDocumentNode(),
-                new RequestContext(System.out, parameters, persistentParameters, cookies, null)
-        ).execute();
+        RequestContext context = new RequestContext(System.out, parameters, persistentParameters, cookies, null);
+        new SmartScriptEngine(new SmartScriptParser(documentBody).getDocumentNode(), context).execute();
+        context.flush();
     }
 }
@@ -38,19 +38,53 @@ public class ObjectConverter {
         throw new RuntimeException("Object is not Integer, Double or String.");
     }
 
+    /**
+     * Number of strings whose parsed values are cached, power of two.
+     */
+    private static final int CACHE_SIZE = 256;
+
+    /**
+     * Cache of parsed strings. Each string can only be in the slot selected by its hash code,
+     * slots are overwritten when they are needed for other strings. Slots are accessed without synchronization,
+     * entries are immutable so a missed entry only means that the string is parsed again.
+     */
+    private static final ParsedString[] CACHE = new ParsedString[CACHE_SIZE];
+
     /**
      * Parses a string to {@link Integer} or {@link Double} if possible.
+     * Results are cached, so strings used repeatedly, such as constants in scripts, are parsed only once.
      *
      * @param s String that should be parsed.
      * @return Parsed Integer or Double.
      * @throws RuntimeException If given string does not represent an integer or double.
      */
     private static Number parseToIntegerOrDouble(String s) {
-//        try to parse int from string, if it is possible that is the result
-        try {
-            return Integer.parseInt(s);
-        } catch (NumberFormatException e) {
-//            string does not represent an integer, maybe it is a double -> proceed
+        int slot = s.hashCode() & (CACHE_SIZE - 1);
+        ParsedString cached = CACHE[slot];
+        if (cached != null && cached.string.equals(s)) {
+            return cached.number;
+        }
+        Number number = parse(s);
+        CACHE[slot] = new ParsedString(s, number);
+        return number;
+    }
+
+    /**
+     * Parses a string to {@link Integer} or {@link Double} if possible.
+     *
+     * @param s String that should be parsed.
+     * @return Parsed Integer or Double.
+     * @throws RuntimeException If given string does not represent an integer or double.
+     */
+    private static Number parse(String s) {
+//        try to parse int from string, if it is possible that is the result.
+//        strings made of ascii characters that do not look like an integer are skipped, exception would be thrown
+        if (isAscii(s) == false || looksLikeInteger(s)) {
+            try {
+                return Integer.parseInt(s);
+            } catch (NumberFormatException e) {
+//                string does not represent an integer, maybe it is a double -> proceed
+            }
         }
 
 //        try to parse double, if it is possible that is the final result
@@ -61,4 +95,62 @@ public class ObjectConverter {
             throw new RuntimeException("String does not represent a number.");
         }
     }
+
+    /**
+     * @param s String.
+     * @return {@code true} if string consists of an optional sign and ascii digits only.
+     */
+    private static boolean looksLikeInteger(String s) {
+        int start = s.startsWith("+") || s.startsWith("-") ? 1 : 0;
+        if (start == s.length()) {
+            return false;
+        }
+        for (int i = start; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < '0' || c > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param s String.
+     * @return {@code true} if string consists of ascii characters only.
+     */
+    private static boolean isAscii(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            if (s.charAt(i) > 127) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * String and the number it was parsed to.
+     */
+    private static class ParsedString {
+
+        /**
+         * Parsed string.
+         */
+        private final String string;
+
+        /**
+         * Parsed number.
+         */
+        private final Number number;
+
+        /**
+         * Constructs a new cache entry.
+         *
+         * @param string Parsed string.
+         * @param number Parsed number.
+         */
+        private ParsedString(String string, Number number) {
+            this.string = string;
+            this.number = number;
+        }
+    }
 }
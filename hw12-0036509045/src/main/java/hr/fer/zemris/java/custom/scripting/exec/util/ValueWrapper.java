@@ -1,64 +1,98 @@
 package hr.fer.zemris.java.custom.scripting.exec.util;
 
-import hr.fer.zemris.java.custom.scripting.exec.util.ObjectConverter;
-
-import java.util.Objects;
-import java.util.function.BiFunction;
-
 /**
  * Instances of this class hold a value of type {@link Object}.
+ * <p>
+ * Integer and double values are kept unboxed, so arithmetic operations and comparisons of numbers do not allocate.
+ * Value is boxed only once it is read with {@link #getValue()}. Results of operations on two integers behave
+ * as if they were computed on doubles and converted back to integers: they are truncated towards zero and
+ * saturated to the integer range.
  *
  * @author Jan Capek
  */
 public class ValueWrapper {
-    private Object value;
 
     /**
-     * Constructs a new value wrapper which holds given value.
-     *
-     * @param value Value that needs to be held.
+     * Type of a value that is not a number held unboxed.
      */
-    public ValueWrapper(Object value) {
-        this.value = value;
-    }
+    private static final byte OBJECT = 0;
 
     /**
-     * Performs an arithmetic operation on objects {@code a} and {@code b}.
-     *
-     * @param a         First operand.
-     * @param b         Second operand.
-     * @param operation Operation that should be performed on the two operands.
-     * @throws RuntimeException     If objects are not recognized {@code a} and {@code b} are not of
-     *                              type Integer, Double or String (in which case string should represent a number)
-     *                              or if {@code operation} threw an exception.
-     * @throws NullPointerException If {@code operation} is {@code null}.
-     * @throws ArithmeticException  If division by 0 happened and both operands are integers.
+     * Type of an integer value.
+     */
+    private static final byte INTEGER = 1;
+
+    /**
+     * Type of a double value.
+     */
+    private static final byte DOUBLE = 2;
+
+    /**
+     * Addition operation.
      */
-    private static Number arithmeticOperation(Object a, Object b, BiFunction<Number, Number, Double> operation) {
-        Objects.requireNonNull(operation);
+    private static final int ADD = 0;
 
-        Number currentNum = ObjectConverter.convertToIntegerOrDouble(a);
-        Number otherNum = ObjectConverter.convertToIntegerOrDouble(b);
+    /**
+     * Subtraction operation.
+     */
+    private static final int SUBTRACT = 1;
 
-//        perform operation
-        Double result = operation.apply(currentNum, otherNum);
+    /**
+     * Multiplication operation.
+     */
+    private static final int MULTIPLY = 2;
 
-//        if any of the operands are Double, result will be double
-        if (currentNum instanceof Double || otherNum instanceof Double) {
-            return result;
-        }
+    /**
+     * Division operation.
+     */
+    private static final int DIVIDE = 3;
 
-//        non of the operands are Double therefore result is must be an integer.
-        if (result.isInfinite() || result.isNaN()) { // if this is true, division by 0 happened which is not allowed on integers
-            throw new ArithmeticException("Division by 0 is not possible with integers.");
-        }
-        return result.intValue();
+    /**
+     * Held value, only valid if {@link #boxed} is set.
+     */
+    private Object value;
+
+    /**
+     * Flag that indicates that {@link #value} holds the current value.
+     */
+    private boolean boxed;
+
+    /**
+     * Type of the held value.
+     */
+    private byte type;
+
+    /**
+     * Held value if it is an integer.
+     */
+    private int intValue;
+
+    /**
+     * Held value if it is a double.
+     */
+    private double doubleValue;
+
+    /**
+     * Constructs a new value wrapper which holds given value.
+     *
+     * @param value Value that needs to be held.
+     */
+    public ValueWrapper(Object value) {
+        setValue(value);
     }
 
     /**
      * @return Currently wrapped object value.
      */
     public Object getValue() {
+        if (boxed == false) {
+            if (type == INTEGER) {
+                value = Integer.valueOf(intValue);
+            } else {
+                value = Double.valueOf(doubleValue);
+            }
+            boxed = true;
+        }
         return value;
     }
 
@@ -69,6 +103,16 @@ public class ValueWrapper {
      */
     public void setValue(Object value) {
         this.value = value;
+        this.boxed = true;
+        if (value instanceof Integer) {
+            type = INTEGER;
+            intValue = (Integer) value;
+        } else if (value instanceof Double) {
+            type = DOUBLE;
+            doubleValue = (Double) value;
+        } else {
+            type = OBJECT;
+        }
     }
 
     /**
@@ -80,7 +124,20 @@ public class ValueWrapper {
      *                          to their integer or double representations.
      */
     public void add(Object incValue) {
-        value = arithmeticOperation(value, incValue, (a, b) -> a.doubleValue() + b.doubleValue());
+        arithmeticOperation(incValue, ADD);
+    }
+
+    /**
+     * Adds value held by given wrapper to the current value, like {@link #add(Object)} does with that value,
+     * without boxing it.
+     *
+     * @param incValue Wrapper holding value to increase current value by,
+     *                 {@code null} is treated as a {@code null} value.
+     * @throws RuntimeException If either of the values could not be converted to their integer or
+     *                          double representations.
+     */
+    public void add(ValueWrapper incValue) {
+        arithmeticOperation(incValue, ADD);
     }
 
     /**
@@ -92,7 +149,20 @@ public class ValueWrapper {
      *                          to their integer or double representations.
      */
     public void subtract(Object decValue) {
-        value = arithmeticOperation(value, decValue, (a, b) -> a.doubleValue() - b.doubleValue());
+        arithmeticOperation(decValue, SUBTRACT);
+    }
+
+    /**
+     * Subtracts value held by given wrapper from the current value, like {@link #subtract(Object)} does with that
+     * value, without boxing it.
+     *
+     * @param decValue Wrapper holding value to decrease current value by,
+     *                 {@code null} is treated as a {@code null} value.
+     * @throws RuntimeException If either of the values could not be converted to their integer or
+     *                          double representations.
+     */
+    public void subtract(ValueWrapper decValue) {
+        arithmeticOperation(decValue, SUBTRACT);
     }
 
     /**
@@ -104,7 +174,20 @@ public class ValueWrapper {
      *                          to their integer or double representations.
      */
     public void multiply(Object mulValue) {
-        value = arithmeticOperation(value, mulValue, (a, b) -> a.doubleValue() * b.doubleValue());
+        arithmeticOperation(mulValue, MULTIPLY);
+    }
+
+    /**
+     * Multiplies current value with value held by given wrapper, like {@link #multiply(Object)} does with that
+     * value, without boxing it.
+     *
+     * @param mulValue Wrapper holding value to multiply current value with,
+     *                 {@code null} is treated as a {@code null} value.
+     * @throws RuntimeException If either of the values could not be converted to their integer or
+     *                          double representations.
+     */
+    public void multiply(ValueWrapper mulValue) {
+        arithmeticOperation(mulValue, MULTIPLY);
     }
 
     /**
@@ -118,7 +201,21 @@ public class ValueWrapper {
      *                             and given value are integers or {@code null}.
      */
     public void divide(Object divValue) {
-        value = arithmeticOperation(value, divValue, (a, b) -> a.doubleValue() / b.doubleValue());
+        arithmeticOperation(divValue, DIVIDE);
+    }
+
+    /**
+     * Divides current value by value held by given wrapper, like {@link #divide(Object)} does with that value,
+     * without boxing it.
+     *
+     * @param divValue Wrapper holding value to divide current value by,
+     *                 {@code null} is treated as a {@code null} value.
+     * @throws RuntimeException    If either of the values could not be converted to their integer or
+     *                             double representations.
+     * @throws ArithmeticException If divisor is {@code 0} and both values are integers or {@code null}.
+     */
+    public void divide(ValueWrapper divValue) {
+        arithmeticOperation(divValue, DIVIDE);
     }
 
     /**
@@ -132,8 +229,163 @@ public class ValueWrapper {
      *                          to their integer or double representations.
      */
     public int numCompare(Object withValue) {
-        double result = arithmeticOperation(value, withValue, (a, b) -> a.doubleValue() - b.doubleValue()).doubleValue();
-        return Double.compare(result, 0);
+        if (type == OBJECT) {
+            unbox();
+        }
+        if (withValue instanceof Integer) {
+            return compare(INTEGER, (Integer) withValue, 0);
+        }
+        if (withValue instanceof Double) {
+            return compare(DOUBLE, 0, (Double) withValue);
+        }
+        Number number = ObjectConverter.convertToIntegerOrDouble(withValue);
+        return number instanceof Integer
+                ? compare(INTEGER, number.intValue(), 0)
+                : compare(DOUBLE, 0, number.doubleValue());
+    }
+
+    /**
+     * Performs an arithmetic operation on current value and given object and stores the result.
+     *
+     * @param other     Second operand.
+     * @param operation Operation that should be performed.
+     * @throws RuntimeException    If either of the operands could not be converted to integer or double.
+     * @throws ArithmeticException If division by 0 happened and both operands are integers.
+     */
+    private void arithmeticOperation(Object other, int operation) {
+        if (type == OBJECT) {
+            unbox();
+        }
+        if (other instanceof Integer) {
+            calculate(INTEGER, (Integer) other, 0, operation);
+        } else if (other instanceof Double) {
+            calculate(DOUBLE, 0, (Double) other, operation);
+        } else {
+            Number number = ObjectConverter.convertToIntegerOrDouble(other);
+            if (number instanceof Integer) {
+                calculate(INTEGER, number.intValue(), 0, operation);
+            } else {
+                calculate(DOUBLE, 0, number.doubleValue(), operation);
+            }
+        }
     }
 
+    /**
+     * Performs an arithmetic operation on current value and value held by given wrapper and stores the result.
+     *
+     * @param other     Wrapper holding second operand, can be {@code null}.
+     * @param operation Operation that should be performed.
+     * @throws RuntimeException    If either of the operands could not be converted to integer or double.
+     * @throws ArithmeticException If division by 0 happened and both operands are integers.
+     */
+    private void arithmeticOperation(ValueWrapper other, int operation) {
+        if (other == null || other.type == OBJECT) {
+            arithmeticOperation(other == null ? null : other.value, operation);
+        } else {
+            calculate(other.type, other.intValue, other.doubleValue, operation);
+        }
+    }
+
+    /**
+     * Performs an arithmetic operation on current value, which has already been converted to a number,
+     * and given number and stores the result. If any of the operands is a double, result is a double, otherwise it is an integer.
+     *
+     * @param otherType   Type of the second operand, either {@link #INTEGER} or {@link #DOUBLE}.
+     * @param otherInt    Second operand if it is an integer.
+     * @param otherDouble Second operand if it is a double.
+     * @param operation   Operation that should be performed.
+     * @throws ArithmeticException If division by 0 happened and both operands are integers.
+     */
+    private void calculate(byte otherType, int otherInt, double otherDouble, int operation) {
+        if (type == INTEGER && otherType == INTEGER) {
+            long a = intValue;
+            long b = otherInt;
+            long result;
+            switch (operation) {
+                case ADD:
+                    result = a + b;
+                    break;
+                case SUBTRACT:
+                    result = a - b;
+                    break;
+                case MULTIPLY:
+                    result = a * b;
+                    break;
+                default:
+                    if (b == 0) {
+                        throw new ArithmeticException("Division by 0 is not possible with integers.");
+                    }
+                    result = a / b;
+            }
+            setInt((int) Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, result)));
+            return;
+        }
+        double a = type == INTEGER ? intValue : doubleValue;
+        double b = otherType == INTEGER ? otherInt : otherDouble;
+        switch (operation) {
+            case ADD:
+                setDouble(a + b);
+                break;
+            case SUBTRACT:
+                setDouble(a - b);
+                break;
+            case MULTIPLY:
+                setDouble(a * b);
+                break;
+            default:
+                setDouble(a / b);
+        }
+    }
+
+    /**
+     * Compares current value, which has already been converted to a number, with given number.
+     *
+     * @param otherType   Type of the number, either {@link #INTEGER} or {@link #DOUBLE}.
+     * @param otherInt    Number if it is an integer.
+     * @param otherDouble Number if it is a double.
+     * @return Less than {@code 0}, {@code 0} or greater than {@code 0} as current value is less than,
+     * equal to or greater than given number.
+     */
+    private int compare(byte otherType, int otherInt, double otherDouble) {
+        if (type == INTEGER && otherType == INTEGER) {
+            return Integer.compare(intValue, otherInt);
+        }
+        double a = type == INTEGER ? intValue : doubleValue;
+        double b = otherType == INTEGER ? otherInt : otherDouble;
+        return Double.compare(a - b, 0);
+    }
+
+    /**
+     * Converts current value to integer or double. Value itself is kept, so it is not changed if an operation fails.
+     *
+     * @throws RuntimeException If current value could not be converted to integer or double.
+     */
+    private void unbox() {
+        Number number = ObjectConverter.convertToIntegerOrDouble(value);
+        if (number instanceof Integer) {
+            type = INTEGER;
+            intValue = number.intValue();
+        } else {
+            type = DOUBLE;
+            doubleValue = number.doubleValue();
+        }
+    }
+
+    /**
+     * @param result New integer value.
+     */
+    private void setInt(int result) {
+        type = INTEGER;
+        intValue = result;
+        boxed = false;
+    }
+
+    /**
+     * @param result New double value.
+     */
+    private void setDouble(double result) {
+        type = DOUBLE;
+        doubleValue = result;
+        boxed = false;
+    }
 }
@@ -1,5 +1,11 @@
 package hr.fer.zemris.java.custom.scripting.lexer;
 
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.nio.CharBuffer;
+import java.util.Arrays;
 import java.util.Objects;
 
 /**
@@ -10,12 +16,51 @@ import java.util.Objects;
  * <p>
  * If lexer is in {@link SmartScriptLexerState#TAG} state, it can return all token types enumerated in {@link SmartScriptTokenType}
  * except {@link SmartScriptTokenType#OPEN_TAG_BRACKET}.
+ * <p>
+ * Input is read incrementally into a buffer that holds only the token being generated and a few characters of
+ * lookahead, so memory used by the lexer does not depend on the size of the input. Text is copied from the buffer
+ * in bulk, runs of text longer than the buffer are collected as they are read.
  *
  * @author Jan Capek
  */
 public class SmartScriptLexer {
 
-    private char[] data;
+    /**
+     * Initial size of the buffer.
+     */
+    private static final int BUFFER_SIZE = 8192;
+
+    /**
+     * Reader input is read from, {@code null} if input is a char buffer.
+     */
+    private Reader reader;
+
+    /**
+     * Char buffer input is read from, {@code null} if input is a reader.
+     */
+    private CharBuffer chars;
+
+    /**
+     * Characters read from the input.
+     */
+    private char[] data = new char[BUFFER_SIZE];
+
+    /**
+     * Number of characters in {@link #data}.
+     */
+    private int limit;
+
+    /**
+     * Position of the first character in {@link #data} that is still needed, characters before it can be discarded
+     * when more input is read.
+     */
+    private int mark;
+
+    /**
+     * Flag that indicates that whole input has been read.
+     */
+    private boolean endOfInput;
+
     private int currentPosition;
     private SmartScriptToken currentToken;
     private SmartScriptLexerState state;
@@ -27,7 +72,30 @@ public class SmartScriptLexer {
      * @throws NullPointerException If {@code data} is {@code null}.
      */
     public SmartScriptLexer(String data) {
-        this.data = Objects.requireNonNull(data).toCharArray();
+        this(new StringReader(Objects.requireNonNull(data)));
+    }
+
+    /**
+     * Creates an instance of {@code SmartScriptLexer} for analyzing data read from given reader.
+     * Reader is read as tokens are generated and it is not closed by the lexer.
+     *
+     * @param reader Reader of the data to analyze.
+     * @throws NullPointerException If {@code reader} is {@code null}.
+     */
+    public SmartScriptLexer(Reader reader) {
+        this.reader = Objects.requireNonNull(reader);
+        state = SmartScriptLexerState.BASIC;
+    }
+
+    /**
+     * Creates an instance of {@code SmartScriptLexer} for analyzing remaining characters of given buffer.
+     * Buffer's position is advanced as tokens are generated.
+     *
+     * @param chars Buffer of the data to analyze.
+     * @throws NullPointerException If {@code chars} is {@code null}.
+     */
+    public SmartScriptLexer(CharBuffer chars) {
+        this.chars = Objects.requireNonNull(chars);
         state = SmartScriptLexerState.BASIC;
     }
 
@@ -55,13 +123,15 @@ public class SmartScriptLexer {
      *
      * @return New token.
      * @throws SmartScriptLexerException If an error occurred.
+     * @throws UncheckedIOException      If input could not be read.
      */
     public SmartScriptToken nextToken() {
         if (currentToken != null && currentToken.getType() == SmartScriptTokenType.EOF) {
             throw new SmartScriptLexerException("No more tokens to generate.");
         }
 
-        if (currentPosition >= data.length) {
+        mark = currentPosition;
+        if (isAvailable(0) == false) {
             return currentToken = new SmartScriptToken(SmartScriptTokenType.EOF, null);
         }
 
@@ -77,36 +147,41 @@ public class SmartScriptLexer {
      */
     private SmartScriptToken nextTokenTag() {
         skipSpaces();
+        if (isAvailable(0) == false) {
+            return currentToken = new SmartScriptToken(SmartScriptTokenType.EOF, null);
+        }
+        char c = data[currentPosition];
 
 //        closing tag bracket
-        if (currentPosition + 1 < data.length && data[currentPosition] == '$' && data[currentPosition + 1] == '}') {
+        if (c == '$' && isNext(1, '}')) {
             currentPosition += 2;
             return currentToken = new SmartScriptToken(SmartScriptTokenType.CLOSED_TAG_BRACKET, "$}");
         }
 
 //        variable or keyword
-        if (Character.isLetter(data[currentPosition]) || data[currentPosition] == '=') {
+        if (Character.isLetter(c) || c == '=') {
             return currentToken = extractVariableOrKeyword();
         }
 
 //        function
-        if (data[currentPosition] == '@') {
+        if (c == '@') {
             return currentToken = extractFunction();
         }
 
 //        number constants
-        if ((data[currentPosition] == '-' && isNumberNext(currentPosition + 1)) || isNumberNext(currentPosition)) {
+        if ((c == '-' && isNumberNext(1)) || isNumberNext(0)) {
             return currentToken = extractNumber();
         }
 
 //        string literal
-        if (data[currentPosition] == '"') {
+        if (c == '"') {
             return currentToken = extractStringLiteral();
         }
 
 //        operator
-        if (isOperator(data[currentPosition])) {
-            return currentToken = new SmartScriptToken(SmartScriptTokenType.OPERATOR, String.valueOf(data[currentPosition++]));
+        if (isOperator(c)) {
+            currentPosition++;
+            return currentToken = new SmartScriptToken(SmartScriptTokenType.OPERATOR, String.valueOf(c));
         }
 
         throw new SmartScriptLexerException("Unrecognized character!");
@@ -120,8 +195,8 @@ public class SmartScriptLexer {
      */
     private SmartScriptToken extractNumber() {
         int start = currentPosition++;
-        boolean isDecimal = data[currentPosition - 1] == '.' ? true : false;
-        while (currentPosition < data.length && (data[currentPosition] == '.' || Character.isDigit(data[currentPosition]))) {
+        boolean isDecimal = data[start] == '.';
+        while (isAvailable(0) && (data[currentPosition] == '.' || Character.isDigit(data[currentPosition]))) {
 //                found a second dot => stop & return 1 character back
             if (data[currentPosition] == '.' && isDecimal) {
                 currentPosition--;
@@ -132,6 +207,8 @@ public class SmartScriptLexer {
             }
             currentPosition++;
         }
+//        buffer could have been compacted while reading, token starts at the mark
+        start = mark;
         String stringValue = String.copyValueOf(data, start, currentPosition - start);
         stringValue = data[start] == '-' ? stringValue : "0" + stringValue;
 
@@ -150,26 +227,30 @@ public class SmartScriptLexer {
     private SmartScriptToken extractStringLiteral() {
         currentPosition++;
         StringBuilder sb = new StringBuilder();
-        while (currentPosition < data.length && data[currentPosition] != '"') {
-            if (data[currentPosition] == '\\' && currentPosition + 1 < data.length) {
+        while (isAvailable(0) && data[currentPosition] != '"') {
+            if (data[currentPosition] == '\\' && isAvailable(1)) {
 //                special characters for spaces and backslash or quote escaping
                 switch (data[currentPosition + 1]) {
                     case '"':
                     case '\\':
                         sb.append(data[currentPosition + 1]);
                         currentPosition += 2;
+                        mark = currentPosition;
                         continue;
                     case 'n':
                         sb.append("\n");
                         currentPosition += 2;
+                        mark = currentPosition;
                         continue;
                     case 'r':
                         sb.append("\r");
                         currentPosition += 2;
+                        mark = currentPosition;
                         continue;
                     case 't':
                         sb.append("\t");
                         currentPosition += 2;
+                        mark = currentPosition;
                         continue;
                     default:
                         throw new SmartScriptLexerException("Wrong character escaping.");
@@ -180,13 +261,14 @@ public class SmartScriptLexer {
             }
             sb.append(data[currentPosition]);
             currentPosition++;
+            mark = currentPosition;
         }
         /*
-         * if currentPosition is equal or greater than data.length
+         * if there are no more characters
          * that means while-loop didn't stop on a closing quote
          * therefore closing quote is missing and an exception should be thrown.
          * */
-        if (currentPosition >= data.length) {
+        if (isAvailable(0) == false) {
             throw new SmartScriptLexerException("Missing closing string quote.");
         }
         currentPosition++;
@@ -201,12 +283,12 @@ public class SmartScriptLexer {
      */
     private SmartScriptToken extractFunction() {
         currentPosition++;
-        if (currentPosition < data.length && Character.isLetter(data[currentPosition])) {
-            int start = currentPosition;
-            while (currentPosition < data.length && (Character.isLetter(data[currentPosition]) || Character.isDigit(data[currentPosition]) || data[currentPosition] == '_')) {
+        if (isAvailable(0) && Character.isLetter(data[currentPosition])) {
+            mark = currentPosition;
+            while (isAvailable(0) && isIdentifierPart(data[currentPosition])) {
                 currentPosition++;
             }
-            return new SmartScriptToken(SmartScriptTokenType.FUNCTION, String.copyValueOf(data, start, currentPosition - start));
+            return new SmartScriptToken(SmartScriptTokenType.FUNCTION, String.copyValueOf(data, mark, currentPosition - mark));
         }
 
         throw new SmartScriptLexerException("Syntax error, unrecognized symbols.");
@@ -223,17 +305,26 @@ public class SmartScriptLexer {
             return new SmartScriptToken(SmartScriptTokenType.KEYWORD, String.valueOf(data[currentPosition++]));
         }
 
-        int start = currentPosition;
-        while (currentPosition < data.length && (Character.isLetter(data[currentPosition]) || Character.isDigit(data[currentPosition]) || data[currentPosition] == '_')) {
+        while (isAvailable(0) && isIdentifierPart(data[currentPosition])) {
             currentPosition++;
         }
-        String stringValue = String.copyValueOf(data, start, currentPosition - start);
+        String stringValue = String.copyValueOf(data, mark, currentPosition - mark);
         if (isKeyword(stringValue)) {
             return new SmartScriptToken(SmartScriptTokenType.KEYWORD, stringValue.toLowerCase());
         }
         return new SmartScriptToken(SmartScriptTokenType.IDENTIFIER, stringValue);
     }
 
+    /**
+     * Checks if a character can be a part of an identifier, after its first letter.
+     *
+     * @param c Character to check.
+     * @return {@code true} if {@code c} is a letter, digit or an underscore, {@code false} otherwise.
+     */
+    private boolean isIdentifierPart(char c) {
+        return Character.isLetter(c) || Character.isDigit(c) || c == '_';
+    }
+
     /**
      * Checks if a character is an operator.
      *
@@ -252,19 +343,20 @@ public class SmartScriptLexer {
     }
 
     /**
-     * Checks if positive number starts at given index.
+     * Checks if positive number starts at given offset from current position.
      *
-     * @param start Starting index.
-     * @return {@code true} if a number starts on given index, {@code false} otherwise.
+     * @param offset Offset from current position.
+     * @return {@code true} if a number starts on given offset, {@code false} otherwise.
      */
-    private boolean isNumberNext(int start) {
-        if (start >= data.length) {
+    private boolean isNumberNext(int offset) {
+        if (isAvailable(offset) == false) {
             return false;
         }
-        if (Character.isDigit(data[start])) {
+        if (Character.isDigit(data[currentPosition + offset])) {
             return true;
         }
-        if (data[start] == '.' && start + 1 < data.length && Character.isDigit(data[start + 1])) {
+        if (data[currentPosition + offset] == '.' && isAvailable(offset + 1)
+                && Character.isDigit(data[currentPosition + offset + 1])) {
             return true;
         }
         return false;
@@ -291,40 +383,140 @@ public class SmartScriptLexer {
      * @throws SmartScriptLexerException If wrong escaping occurred.
      */
     private SmartScriptToken nextTokenBasic() {
-        if (currentPosition + 1 < data.length && data[currentPosition] == '{' && data[currentPosition + 1] == '$') {
+        if (isNext(0, '{') && isNext(1, '$')) {
             currentPosition += 2;
             return currentToken = new SmartScriptToken(SmartScriptTokenType.OPEN_TAG_BRACKET, "{$");
         }
 
-        StringBuilder sb = new StringBuilder();
-        while (currentPosition < data.length) {
+//        text is copied in bulk, builder is only needed if text is escaped or does not fit the buffer
+        StringBuilder sb = null;
+        while (isAvailable(0)) {
+//            lookahead could need more input, text read so far is moved out of the buffer first
+            if (limit - currentPosition < 3 && endOfInput == false) {
+                sb = appendText(sb);
+            }
 //            check "{$"
-            if (currentPosition + 1 < data.length && data[currentPosition] == '{' && data[currentPosition + 1] == '$') {
+            if (data[currentPosition] == '{' && isNext(1, '$')) {
                 break;
             }
 //            check escaping
             if (data[currentPosition] == '\\') {
-                if ((currentPosition + 1 < data.length && data[currentPosition + 1] == '\\') ||
-                        (currentPosition + 2 < data.length && data[currentPosition + 1] == '{' && data[currentPosition + 2] == '$')) {
+                if (isNext(1, '\\') || (isNext(1, '{') && isNext(2, '$'))) {
+                    sb = appendText(sb);
                     sb.append(data[currentPosition + 1]);
                     currentPosition += 2;
+                    mark = currentPosition;
                     continue;
                 }
                 throw new SmartScriptLexerException("Wrong character escaping.");
             }
 //            normal characters
-            sb.append(data[currentPosition]);
             currentPosition++;
         }
-        return currentToken = new SmartScriptToken(SmartScriptTokenType.NORMAL_TEXT, sb.toString());
+        String text = sb == null
+                ? String.copyValueOf(data, mark, currentPosition - mark)
+                : appendText(sb).toString();
+        return currentToken = new SmartScriptToken(SmartScriptTokenType.NORMAL_TEXT, text);
+    }
+
+    /**
+     * Appends text between the mark and current position to given builder and moves the mark to current position.
+     *
+     * @param sb Builder text is appended to, {@code null} if a new one should be created.
+     * @return Builder holding the text.
+     */
+    private StringBuilder appendText(StringBuilder sb) {
+        if (sb == null) {
+            sb = new StringBuilder();
+        }
+        sb.append(data, mark, currentPosition - mark);
+        mark = currentPosition;
+        return sb;
     }
 
     /**
      * Positions {@link SmartScriptLexer#currentPosition} to the first character that is not a blank.
      */
     private void skipSpaces() {
-        while (currentPosition < data.length && Character.isWhitespace(data[currentPosition])) {
+        while (isAvailable(0) && Character.isWhitespace(data[currentPosition])) {
             currentPosition++;
+            mark = currentPosition;
+        }
+    }
+
+    /**
+     * Checks if character at given offset from current position is the given character.
+     *
+     * @param offset Offset from current position.
+     * @param c      Expected character.
+     * @return {@code true} if there is a character at the offset and it is {@code c}, {@code false} otherwise.
+     */
+    private boolean isNext(int offset, char c) {
+        return isAvailable(offset) && data[currentPosition + offset] == c;
+    }
+
+    /**
+     * Checks if there is a character at given offset from current position, reading more input if needed.
+     * Reading may move characters in the buffer, positions are only valid relative to current position
+     * and the mark.
+     *
+     * @param offset Offset from current position.
+     * @return {@code true} if there is a character at given offset, {@code false} if input ended before it.
+     * @throws UncheckedIOException If input could not be read.
+     */
+    private boolean isAvailable(int offset) {
+        while (currentPosition + offset >= limit && endOfInput == false) {
+            fill();
+        }
+        return currentPosition + offset < limit;
+    }
+
+    /**
+     * Discards characters before the mark and reads more input into the buffer.
+     * Buffer is enlarged only if a single token does not fit into it.
+     *
+     * @throws UncheckedIOException If input could not be read.
+     */
+    private void fill() {
+        if (mark > 0) {
+            System.arraycopy(data, mark, data, 0, limit - mark);
+            currentPosition -= mark;
+            limit -= mark;
+            mark = 0;
+        }
+        if (limit == data.length) {
+            data = Arrays.copyOf(data, data.length * 2);
+        }
+        try {
+            int read = read(data, limit, data.length - limit);
+            if (read < 0) {
+                endOfInput = true;
+            } else {
+                limit += read;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Reads characters from the input.
+     *
+     * @param buffer Buffer characters are read into.
+     * @param offset Offset in the buffer.
+     * @param length Maximum number of characters to read.
+     * @return Number of characters read or {@code -1} if input has ended.
+     * @throws IOException If an I/O error occurred.
+     */
+    private int read(char[] buffer, int offset, int length) throws IOException {
+        if (reader != null) {
+            return reader.read(buffer, offset, length);
+        }
+        if (chars.hasRemaining() == false) {
+            return -1;
         }
+        int count = Math.min(length, chars.remaining());
+        chars.get(buffer, offset, count);
+        return count;
     }
 }
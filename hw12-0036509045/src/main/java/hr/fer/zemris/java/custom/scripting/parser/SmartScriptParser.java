@@ -4,6 +4,9 @@ import hr.fer.zemris.java.custom.scripting.elems.*;
 import hr.fer.zemris.java.custom.scripting.lexer.*;
 import hr.fer.zemris.java.custom.scripting.nodes.*;
 
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Objects;
@@ -28,11 +31,39 @@ public class SmartScriptParser {
      * @throws NullPointerException If {@code text} is {@code null}.
      */
     public SmartScriptParser(String text) {
-        lexer = new SmartScriptLexer(text);
+        this(new SmartScriptLexer(text));
+    }
+
+    /**
+     * Constructs a new {@code Parser} object for parsing tokens generated by given lexer.
+     *
+     * @param lexer Lexer generating tokens of the text.
+     * @throws UncheckedIOException If lexer could not read the text.
+     */
+    private SmartScriptParser(SmartScriptLexer lexer) {
+        this.lexer = lexer;
         documentNode = new DocumentNode();
         parse();
     }
 
+    /**
+     * Parses text read from given reader. Text is read as it is parsed, it is never held in memory as a whole.
+     * Reader is not closed.
+     *
+     * @param reader Reader of the text to parse.
+     * @return Parser holding the parsed document.
+     * @throws IOException                If text could not be read.
+     * @throws SmartScriptParserException If text is not a valid document.
+     * @throws NullPointerException       If {@code reader} is {@code null}.
+     */
+    public static SmartScriptParser fromReader(Reader reader) throws IOException {
+        try {
+            return new SmartScriptParser(new SmartScriptLexer(reader));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
     /**
      * @return Root node of a document.
      */
@@ -0,0 +1,551 @@
+package hr.fer.zemris.java.webserver;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Access log of served requests. Requests only put their entries into a bounded lock-free ring buffer,
+ * a background thread takes them out in batches, formats them and appends them to the log file, so serving
+ * a request never waits for the disk. When the buffer is full, entries are dropped and counted instead.
+ * <p>
+ * Log file is rotated once it would grow over its maximum size: {@code access.log} is renamed to
+ * {@code access.log.1}, previously rotated files are shifted by one and the oldest one is deleted.
+ * <p>
+ * Entries are written either as JSON objects, one per line, or following a pattern in which these
+ * placeholders are replaced by fields of the request:
+ * <ul>
+ *     <li>{@code %a} - client address</li>
+ *     <li>{@code %t} - time the request completed, in ISO-8601 format</li>
+ *     <li>{@code %m} - request method</li>
+ *     <li>{@code %U} - request path, with the query</li>
+ *     <li>{@code %s} - status code</li>
+ *     <li>{@code %b} - bytes sent</li>
+ *     <li>{@code %D} - time taken to serve the request in microseconds</li>
+ *     <li>{@code %S} - session id</li>
+ *     <li>{@code %u} - user agent</li>
+ *     <li>{@code %%} - percent sign</li>
+ * </ul>
+ * Missing fields are written as {@code -}.
+ *
+ * @author Jan Capek
+ */
+class AccessLog {
+
+    /**
+     * Format name that writes entries as JSON objects.
+     */
+    static final String JSON_FORMAT = "json";
+
+    /**
+     * Time the writer sleeps for when there are no entries.
+     */
+    private static final long IDLE_WAIT = TimeUnit.MILLISECONDS.toNanos(10);
+
+    /**
+     * Maximum number of entries written at once.
+     */
+    private static final int MAX_BATCH = 1024;
+
+    /**
+     * Formatter of entry times.
+     */
+    private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ISO_OFFSET_DATE_TIME
+            .withZone(ZoneId.systemDefault());
+
+    /**
+     * Path of the log file.
+     */
+    private Path file;
+
+    /**
+     * Pattern entries are formatted with, {@code null} if they are written as JSON.
+     */
+    private String pattern;
+
+    /**
+     * Size in bytes after which the log is rotated, 0 if it is never rotated.
+     */
+    private long maxFileSize;
+
+    /**
+     * Number of rotated files that are kept.
+     */
+    private int maxFiles;
+
+    /**
+     * Ring buffer of entries, its length is a power of two. Empty slots are {@code null}.
+     */
+    private AtomicReferenceArray<Entry> slots;
+
+    /**
+     * Mask giving the slot of a position.
+     */
+    private int mask;
+
+    /**
+     * Position the next entry is put to, claimed by requests.
+     */
+    private AtomicLong tail = new AtomicLong();
+
+    /**
+     * Position the next entry is taken from, only changed by the writer.
+     */
+    private volatile long head;
+
+    /**
+     * Number of entries dropped because the buffer was full.
+     */
+    private LongAdder dropped = new LongAdder();
+
+    /**
+     * Number of entries written to the log.
+     */
+    private LongAdder written = new LongAdder();
+
+    /**
+     * Thread that writes entries to the log.
+     */
+    private LogWriter writerThread;
+
+    /**
+     * Constructs a new access log.
+     *
+     * @param file        Path of the log file, its directory is created if it does not exist.
+     * @param format      Either {@value #JSON_FORMAT} or a pattern with placeholders listed in the class description.
+     * @param maxFileSize Size in bytes after which the log is rotated, 0 if it should never be rotated.
+     * @param maxFiles    Number of rotated files that are kept.
+     * @param capacity    Number of entries the buffer can hold, rounded up to a power of two.
+     * @throws NullPointerException     If given file or format is {@code null}.
+     * @throws IllegalArgumentException If pattern has an unknown placeholder, any of the numbers is negative
+     *                                  or capacity is less than 1.
+     */
+    AccessLog(Path file, String format, long maxFileSize, int maxFiles, int capacity) {
+        this.file = Objects.requireNonNull(file);
+        Objects.requireNonNull(format);
+        if (maxFileSize < 0 || maxFiles < 0 || capacity < 1 || capacity > 1 << 30) {
+            throw new IllegalArgumentException("Invalid access log limits.");
+        }
+        if (format.equals(JSON_FORMAT) == false) {
+            validatePattern(format);
+            pattern = format;
+        }
+        this.maxFileSize = maxFileSize;
+        this.maxFiles = maxFiles;
+        int size = Integer.highestOneBit(capacity);
+        size = size < capacity ? size << 1 : size;
+        slots = new AtomicReferenceArray<>(size);
+        mask = size - 1;
+    }
+
+    /**
+     * Checks that given pattern has only known placeholders.
+     *
+     * @param pattern Pattern that needs to be checked.
+     * @throws IllegalArgumentException If pattern has an unknown placeholder.
+     */
+    private static void validatePattern(String pattern) {
+        for (int i = 0; i < pattern.length(); i++) {
+            if (pattern.charAt(i) == '%') {
+                if (++i == pattern.length() || "amtUsbDSu%".indexOf(pattern.charAt(i)) == -1) {
+                    throw new IllegalArgumentException("Invalid access log pattern: " + pattern);
+                }
+            }
+        }
+    }
+
+    /**
+     * Starts the thread writing entries to the log.
+     */
+    synchronized void start() {
+        if (writerThread != null) {
+            return;
+        }
+        writerThread = new LogWriter();
+        writerThread.start();
+    }
+
+    /**
+     * Writes remaining entries and closes the log. Entries added afterwards are not written.
+     */
+    synchronized void close() {
+        if (writerThread == null) {
+            return;
+        }
+        writerThread.shouldTerminate = true;
+        LockSupport.unpark(writerThread);
+        try {
+            writerThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        writerThread = null;
+    }
+
+    /**
+     * Adds an entry to the log without waiting. Entry is dropped if the buffer is full.
+     *
+     * @param entry Entry that needs to be written.
+     * @return {@code true} if entry has been added, {@code false} if it has been dropped.
+     */
+    boolean add(Entry entry) {
+        long position;
+        do {
+            position = tail.get();
+            if (position - head >= slots.length()) {
+                dropped.increment();
+                return false;
+            }
+        } while (tail.compareAndSet(position, position + 1) == false);
+        slots.set((int) position & mask, entry);
+        return true;
+    }
+
+    /**
+     * Takes the next entry out of the buffer. Must only be called by the writer.
+     *
+     * @return Next entry or {@code null} if there is none, or the next one has been claimed but not yet put.
+     */
+    private Entry poll() {
+        long position = head;
+        int slot = (int) position & mask;
+        Entry entry = slots.get(slot);
+        if (entry != null) {
+//            slot is freed before the position moves, so requests never overwrite an entry that was not taken
+            slots.lazySet(slot, null);
+            head = position + 1;
+        }
+        return entry;
+    }
+
+    /**
+     * @return Number of entries dropped because the buffer was full.
+     */
+    long getDropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * @return Number of entries written to the log.
+     */
+    long getWritten() {
+        return written.sum();
+    }
+
+    /**
+     * Formats given entry as a single line, including the line separator.
+     *
+     * @param entry Entry that needs to be formatted.
+     * @param sb    Builder the line is appended to.
+     */
+    void format(Entry entry, StringBuilder sb) {
+        if (pattern == null) {
+            formatJson(entry, sb);
+            sb.append('\n');
+            return;
+        }
+        for (int i = 0; i < pattern.length(); i++) {
+            char c = pattern.charAt(i);
+            if (c != '%') {
+                sb.append(c);
+                continue;
+            }
+            c = pattern.charAt(++i);
+            switch (c) {
+                case 'a':
+                    appendField(sb, entry.address);
+                    break;
+                case 't':
+                    TIME_FORMAT.formatTo(Instant.ofEpochMilli(entry.time), sb);
+                    break;
+                case 'm':
+                    appendField(sb, entry.method);
+                    break;
+                case 'U':
+                    appendField(sb, entry.path);
+                    break;
+                case 's':
+                    sb.append(entry.statusCode);
+                    break;
+                case 'b':
+                    sb.append(entry.bytes);
+                    break;
+                case 'D':
+                    sb.append(TimeUnit.NANOSECONDS.toMicros(entry.latency));
+                    break;
+                case 'S':
+                    appendField(sb, entry.sid);
+                    break;
+                case 'u':
+                    appendField(sb, entry.userAgent);
+                    break;
+                default:
+                    sb.append(c);
+            }
+        }
+        sb.append('\n');
+    }
+
+    /**
+     * Appends a text field, {@code -} if it is missing. Quotes and control characters are escaped
+     * so a field cannot break the line apart.
+     *
+     * @param sb    Builder the field is appended to.
+     * @param value Field value, can be {@code null}.
+     */
+    private static void appendField(StringBuilder sb, String value) {
+        if (value == null || value.isEmpty()) {
+            sb.append('-');
+            return;
+        }
+        appendEscaped(sb, value);
+    }
+
+    /**
+     * Formats given entry as a JSON object.
+     *
+     * @param entry Entry that needs to be formatted.
+     * @param sb    Builder the object is appended to.
+     */
+    private static void formatJson(Entry entry, StringBuilder sb) {
+        sb.append("{\"time\":\"");
+        TIME_FORMAT.formatTo(Instant.ofEpochMilli(entry.time), sb);
+        sb.append('"');
+        appendJson(sb, "address", entry.address);
+        appendJson(sb, "method", entry.method);
+        appendJson(sb, "path", entry.path);
+        sb.append(",\"status\":").append(entry.statusCode);
+        sb.append(",\"bytes\":").append(entry.bytes);
+        sb.append(",\"latencyMicros\":").append(TimeUnit.NANOSECONDS.toMicros(entry.latency));
+        appendJson(sb, "sid", entry.sid);
+        appendJson(sb, "userAgent", entry.userAgent);
+        sb.append('}');
+    }
+
+    /**
+     * Appends a string member of a JSON object, or {@code null} if value is missing.
+     *
+     * @param sb    Builder the member is appended to.
+     * @param name  Member name.
+     * @param value Member value, can be {@code null}.
+     */
+    private static void appendJson(StringBuilder sb, String name, String value) {
+        sb.append(",\"").append(name).append("\":");
+        if (value == null) {
+            sb.append("null");
+            return;
+        }
+        sb.append('"');
+        appendEscaped(sb, value);
+        sb.append('"');
+    }
+
+    /**
+     * Appends given value escaping quotes, backslashes and control characters the way JSON strings do.
+     *
+     * @param sb    Builder the value is appended to.
+     * @param value Value that needs to be appended.
+     */
+    private static void appendEscaped(StringBuilder sb, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20 || c == 0x7f) {
+                sb.append(String.format("\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+    }
+
+    /**
+     * Entry of a served request.
+     */
+    static class Entry {
+        private long time;
+        private String address;
+        private String method;
+        private String path;
+        private int statusCode;
+        private long bytes;
+        private long latency;
+        private String sid;
+        private String userAgent;
+
+        /**
+         * @param time       Time the request completed in milliseconds since the epoch.
+         * @param address    Client address.
+         * @param method     Request method, {@code null} if request could not be parsed.
+         * @param path       Request path with the query, {@code null} if request could not be parsed.
+         * @param statusCode Status code of the response.
+         * @param bytes      Number of bytes sent.
+         * @param latency    Time taken to serve the request in nanoseconds.
+         * @param sid        Session id, can be {@code null}.
+         * @param userAgent  User agent, can be {@code null}.
+         */
+        Entry(long time, String address, String method, String path, int statusCode, long bytes, long latency,
+              String sid, String userAgent) {
+            this.time = time;
+            this.address = address;
+            this.method = method;
+            this.path = path;
+            this.statusCode = statusCode;
+            this.bytes = bytes;
+            this.latency = latency;
+            this.sid = sid;
+            this.userAgent = userAgent;
+        }
+    }
+
+    /**
+     * Thread that takes entries out of the buffer and appends them to the log in batches.
+     */
+    private class LogWriter extends Thread {
+
+        /**
+         * Flag that indicates to a thread if it should stop running.
+         */
+        private volatile boolean shouldTerminate;
+
+        /**
+         * Writer of the current log file, {@code null} if it is not open.
+         */
+        private OutputStream log;
+
+        /**
+         * Size of the current log file in bytes.
+         */
+        private long size;
+
+        /**
+         * Constructs a new daemon thread for writing the access log.
+         */
+        LogWriter() {
+            super("access-log-writer");
+            this.setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            StringBuilder batch = new StringBuilder();
+            while (true) {
+//                flag is read before draining, so entries added before close are all written
+                boolean terminate = shouldTerminate;
+                int count = 0;
+                for (Entry entry = poll(); entry != null; entry = poll()) {
+                    format(entry, batch);
+                    if (++count == MAX_BATCH) {
+                        break;
+                    }
+                }
+                if (count > 0) {
+                    write(batch, count);
+                    batch.setLength(0);
+                    continue;
+                }
+                if (terminate) {
+                    break;
+                }
+                LockSupport.parkNanos(IDLE_WAIT);
+            }
+            closeLog();
+        }
+
+        /**
+         * Appends formatted entries to the log, rotating it first if they would not fit. Entries are dropped
+         * if the log cannot be written, and the log is opened again for the next batch.
+         *
+         * @param batch Formatted entries.
+         * @param count Number of entries.
+         */
+        private void write(StringBuilder batch, int count) {
+            byte[] bytes = batch.toString().getBytes(StandardCharsets.UTF_8);
+            try {
+                if (log != null && maxFileSize > 0 && size > 0 && size + bytes.length > maxFileSize) {
+                    closeLog();
+                    rotate();
+                }
+                if (log == null) {
+                    open();
+                }
+                log.write(bytes);
+                size += bytes.length;
+                written.add(count);
+            } catch (IOException e) {
+                System.err.println("Access log could not be written: " + e);
+                dropped.add(count);
+                closeLog();
+            }
+        }
+
+        /**
+         * Opens the log file for appending, creating its directory if needed.
+         *
+         * @throws IOException If the file could not be opened.
+         */
+        private void open() throws IOException {
+            Path parent = file.toAbsolutePath().getParent();
+            if (parent != null) {
+                Files.createDirectories(parent);
+            }
+            log = Files.newOutputStream(file, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            size = Files.size(file);
+        }
+
+        /**
+         * Renames the log file to the first rotated file, shifting older rotated files and deleting the oldest one.
+         *
+         * @throws IOException If files could not be renamed.
+         */
+        private void rotate() throws IOException {
+            if (maxFiles == 0) {
+                Files.deleteIfExists(file);
+                return;
+            }
+            Files.deleteIfExists(rotated(maxFiles));
+            for (int i = maxFiles - 1; i >= 1; i--) {
+                if (Files.exists(rotated(i))) {
+                    Files.move(rotated(i), rotated(i + 1), StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+            Files.move(file, rotated(1), StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        /**
+         * @param index Index of a rotated file, starting from 1 for the newest one.
+         * @return Path of the rotated file.
+         */
+        private Path rotated(int index) {
+            return file.resolveSibling(file.getFileName() + "." + index);
+        }
+
+        /**
+         * Closes the current log file ignoring any errors.
+         */
+        private void closeLog() {
+            if (log == null) {
+                return;
+            }
+            try {
+                log.close();
+            } catch (IOException e) {
+//                nothing to be done
+            }
+            log = null;
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package hr.fer.zemris.java.webserver;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Range of bytes of a file requested with {@code Range} header, both ends inclusive.
+ *
+ * @author Jan Capek
+ */
+class ByteRange {
+
+    /**
+     * Maximum number of ranges served in one response, requests with more are served the whole file.
+     */
+    static final int MAX_RANGES = 16;
+
+    /**
+     * Position of the first byte.
+     */
+    private long first;
+
+    /**
+     * Position of the last byte.
+     */
+    private long last;
+
+    /**
+     * @param first Position of the first byte.
+     * @param last  Position of the last byte.
+     */
+    ByteRange(long first, long last) {
+        this.first = first;
+        this.last = last;
+    }
+
+    /**
+     * Parses value of a {@code Range} header for a file of given size. Each range is of the form {@code first-last},
+     * {@code first-} (until the end) or {@code -length} (last bytes). Ranges are clipped to the file,
+     * ones lying outside of it are dropped and overlapping or adjacent ones are merged, so returned ranges
+     * are sorted and disjoint.
+     *
+     * @param header Header value, can be {@code null}.
+     * @param size   File size in bytes.
+     * @return Requested ranges, empty list if none of them is satisfiable, or {@code null} if header is missing,
+     * invalid, not in bytes or asks for more than {@link #MAX_RANGES} ranges, in which case whole file should be served.
+     */
+    static List<ByteRange> parse(String header, long size) {
+        if (header == null) {
+            return null;
+        }
+        header = header.trim();
+        if (header.regionMatches(true, 0, "bytes=", 0, 6) == false) {
+            return null;
+        }
+        List<ByteRange> ranges = new ArrayList<>();
+        int count = 0;
+        for (String spec : header.substring(6).split(",")) {
+            spec = spec.trim();
+            if (spec.isEmpty()) {
+                continue;
+            }
+            if (++count > MAX_RANGES) {
+                return null;
+            }
+            int dash = spec.indexOf('-');
+            if (dash == -1) {
+                return null;
+            }
+            long first;
+            long last;
+            try {
+                if (dash == 0) {
+                    long suffix = parsePosition(spec.substring(1));
+                    if (suffix == 0) {
+                        continue;
+                    }
+                    first = Math.max(0, size - suffix);
+                    last = size - 1;
+                } else {
+                    first = parsePosition(spec.substring(0, dash));
+                    String lastSpec = spec.substring(dash + 1);
+                    if (lastSpec.isEmpty()) {
+                        last = size - 1;
+                    } else {
+                        last = parsePosition(lastSpec);
+                        if (last < first) {
+                            return null;
+                        }
+                        last = Math.min(last, size - 1);
+                    }
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            if (first < size) {
+                ranges.add(new ByteRange(first, last));
+            }
+        }
+        if (count == 0) {
+            return null;
+        }
+        ranges.sort(Comparator.comparingLong(r -> r.first));
+        List<ByteRange> merged = new ArrayList<>();
+        for (ByteRange range : ranges) {
+            ByteRange previous = merged.isEmpty() ? null : merged.get(merged.size() - 1);
+            if (previous != null && range.first <= previous.last + 1) {
+                previous.last = Math.max(previous.last, range.last);
+            } else {
+                merged.add(range);
+            }
+        }
+        return merged;
+    }
+
+    /**
+     * Parses a byte position, which consists of digits only.
+     *
+     * @param s String that needs to be parsed.
+     * @return Parsed position.
+     * @throws NumberFormatException If string is not a valid position.
+     */
+    private static long parsePosition(String s) {
+        if (s.isEmpty() || s.chars().allMatch(c -> c >= '0' && c <= '9') == false) {
+            throw new NumberFormatException(s);
+        }
+        return Long.parseLong(s);
+    }
+
+    /**
+     * @return Position of the first byte.
+     */
+    long getFirst() {
+        return first;
+    }
+
+    /**
+     * @return Position of the last byte.
+     */
+    long getLast() {
+        return last;
+    }
+
+    /**
+     * @return Number of bytes in this range.
+     */
+    long length() {
+        return last - first + 1;
+    }
+
+    /**
+     * @param size File size in bytes.
+     * @return Value of {@code Content-Range} header of a part holding this range.
+     */
+    String toContentRange(long size) {
+        return "bytes " + first + "-" + last + "/" + size;
+    }
+}
@@ -0,0 +1,320 @@
+package hr.fer.zemris.java.webserver;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+
+/**
+ * Limits of a single client, identified by its ip address: a token bucket that limits the rate of its requests and
+ * the number of its open connections. State of clients is spread over a fixed number of stripes, each guarded by
+ * its own lock, so checks from different threads rarely wait for each other and each one takes a single map lookup.
+ * Clients without open connections and with a full bucket are forgotten by {@link #removeIdle()}.
+ * <p>
+ * Behind a reverse proxy every connection comes from the proxy, so request rate can be limited per address
+ * reported by the proxy instead, see {@link #clientOf(InetAddress, String, Set)}. Open connections are counted
+ * before any request is read, so they are always limited per connecting address.
+ *
+ * @author Jan Capek
+ */
+class ClientLimiter {
+
+    /**
+     * Number of stripes, power of two.
+     */
+    private static final int STRIPES = 64;
+
+    /**
+     * Textual ipv4 address, these are parsed without a name lookup.
+     */
+    private static final Pattern IPV4 = Pattern.compile("((25[0-5]|2[0-4]\\d|1?\\d?\\d)\\.){3}(25[0-5]|2[0-4]\\d|1?\\d?\\d)");
+
+    /**
+     * Candidate for a textual ipv6 address, these are parsed without a name lookup and rejected if invalid.
+     */
+    private static final Pattern IPV6 = Pattern.compile("[0-9a-fA-F.]*:[0-9a-fA-F:.]*");
+
+    /**
+     * Stripes holding client state.
+     */
+    private Stripe[] stripes = new Stripe[STRIPES];
+
+    /**
+     * Number of tokens added to a bucket per nanosecond, {@code 0} if request rate is not limited.
+     */
+    private double tokensPerNano;
+
+    /**
+     * Capacity of a bucket.
+     */
+    private double burst;
+
+    /**
+     * Maximum number of open connections of a client, {@code 0} if it is not limited.
+     */
+    private int maxConnections;
+
+    /**
+     * Number of connections refused because their client had too many open.
+     */
+    private LongAdder refusedConnections = new LongAdder();
+
+    /**
+     * Number of requests refused because their client exceeded its rate.
+     */
+    private LongAdder limitedRequests = new LongAdder();
+
+    /**
+     * Constructs a new limiter.
+     *
+     * @param rate           Number of requests per second a client can make in the long run, {@code 0} for no limit.
+     * @param burst          Number of requests a client can make at once, after being idle.
+     * @param maxConnections Maximum number of open connections of a client, {@code 0} for no limit.
+     * @throws IllegalArgumentException If any of the arguments is negative or burst is less than one
+     *                                  while rate is limited.
+     */
+    ClientLimiter(double rate, int burst, int maxConnections) {
+        if (rate < 0 || maxConnections < 0 || (rate > 0 && burst < 1)) {
+            throw new IllegalArgumentException("Invalid client limits.");
+        }
+        this.tokensPerNano = rate / TimeUnit.SECONDS.toNanos(1);
+        this.burst = burst;
+        this.maxConnections = maxConnections;
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    /**
+     * Records a new connection of given client, unless client already has too many.
+     *
+     * @param address Client address.
+     * @return {@code true} if connection is accepted, {@code false} if it should be refused.
+     * @throws NullPointerException If given address is {@code null}.
+     */
+    boolean connectionOpened(InetAddress address) {
+        Objects.requireNonNull(address);
+        if (maxConnections == 0) {
+            return true;
+        }
+        Stripe stripe = stripeOf(address);
+        synchronized (stripe) {
+            Client client = stripe.clients.computeIfAbsent(address, a -> new Client(burst, System.nanoTime()));
+            if (client.connections < maxConnections) {
+                client.connections++;
+                return true;
+            }
+        }
+        refusedConnections.increment();
+        return false;
+    }
+
+    /**
+     * Records that an accepted connection of given client has been closed.
+     *
+     * @param address Client address.
+     */
+    void connectionClosed(InetAddress address) {
+        if (maxConnections == 0 || address == null) {
+            return;
+        }
+        Stripe stripe = stripeOf(address);
+        synchronized (stripe) {
+            Client client = stripe.clients.get(address);
+            if (client != null && client.connections > 0) {
+                client.connections--;
+            }
+        }
+    }
+
+    /**
+     * Takes a token for a request of given client.
+     *
+     * @param address Client address.
+     * @return {@code 0} if request is allowed, otherwise number of nanoseconds until client can make it.
+     * @throws NullPointerException If given address is {@code null}.
+     */
+    long acquire(InetAddress address) {
+        return acquire(address, System.nanoTime());
+    }
+
+    /**
+     * Takes a token for a request of given client at given time.
+     *
+     * @param address Client address.
+     * @param now     Current {@link System#nanoTime()}.
+     * @return {@code 0} if request is allowed, otherwise number of nanoseconds until client can make it.
+     * @throws NullPointerException If given address is {@code null}.
+     */
+    long acquire(InetAddress address, long now) {
+        Objects.requireNonNull(address);
+        if (tokensPerNano == 0) {
+            return 0;
+        }
+        Stripe stripe = stripeOf(address);
+        double missing;
+        synchronized (stripe) {
+            Client client = stripe.clients.computeIfAbsent(address, a -> new Client(burst, now));
+            client.refill(now, tokensPerNano, burst);
+            if (client.tokens >= 1) {
+                client.tokens--;
+                return 0;
+            }
+            missing = 1 - client.tokens;
+        }
+        limitedRequests.increment();
+        return Math.max(1, (long) Math.ceil(missing / tokensPerNano));
+    }
+
+    /**
+     * Forgets clients that have no open connections and whose buckets are full, so they would behave the same
+     * if seen for the first time.
+     */
+    void removeIdle() {
+        removeIdle(System.nanoTime());
+    }
+
+    /**
+     * Forgets clients that are idle at given time, like {@link #removeIdle()} does.
+     *
+     * @param now Current {@link System#nanoTime()}.
+     */
+    void removeIdle(long now) {
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                Iterator<Client> it = stripe.clients.values().iterator();
+                while (it.hasNext()) {
+                    Client client = it.next();
+                    client.refill(now, tokensPerNano, burst);
+                    if (client.connections == 0 && client.tokens >= burst) {
+                        it.remove();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @return Number of clients whose state is kept.
+     */
+    long size() {
+        long size = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                size += stripe.clients.size();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * @return Number of connections refused because their client had too many open.
+     */
+    long getRefusedConnections() {
+        return refusedConnections.sum();
+    }
+
+    /**
+     * @return Number of requests refused because their client exceeded its rate.
+     */
+    long getLimitedRequests() {
+        return limitedRequests.sum();
+    }
+
+    /**
+     * Finds the client of a request forwarded by trusted proxies. Addresses in the forwarding header are visited from
+     * the last one, which was added by the proxy that connected to the server, and the first one that does not belong
+     * to a trusted proxy is the client. Addresses before it could have been made up by the client, so they are ignored.
+     *
+     * @param peer           Connecting address.
+     * @param forwardedFor   Comma separated addresses from the forwarding header, {@code null} if there is no header.
+     * @param trustedProxies Addresses of trusted proxies.
+     * @return Client address, connecting address if it is not a trusted proxy or forwarding header is missing.
+     * @throws NullPointerException If connecting address or set of trusted proxies is {@code null}.
+     */
+    static InetAddress clientOf(InetAddress peer, String forwardedFor, Set<InetAddress> trustedProxies) {
+        InetAddress client = Objects.requireNonNull(peer);
+        if (forwardedFor == null || trustedProxies.contains(peer) == false) {
+            return client;
+        }
+        String[] hops = forwardedFor.split(",");
+        for (int i = hops.length - 1; i >= 0 && trustedProxies.contains(client); i--) {
+            InetAddress hop = parseAddress(hops[i].trim());
+            if (hop == null) {
+//                trusted proxy did not report a valid address
+                break;
+            }
+            client = hop;
+        }
+        return client;
+    }
+
+    /**
+     * Parses a textual ip address without ever looking a name up.
+     *
+     * @param address Textual ipv4 or ipv6 address.
+     * @return Parsed address or {@code null} if given string is not an ip address.
+     */
+    private static InetAddress parseAddress(String address) {
+//        name lookup is done only for strings that are neither ipv4 nor ipv6 addresses
+        if (IPV4.matcher(address).matches() == false && IPV6.matcher(address).matches() == false) {
+            return null;
+        }
+        try {
+            return InetAddress.getByName(address);
+        } catch (UnknownHostException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @param address Client address.
+     * @return Stripe holding state of given client.
+     */
+    private Stripe stripeOf(InetAddress address) {
+//        ipv4 hash codes are the addresses themselves, multiplication spreads neighbouring ones
+        return stripes[(address.hashCode() * 0x9E3779B9) >>> (32 - Integer.numberOfTrailingZeros(STRIPES))];
+    }
+
+    /**
+     * Part of the client table guarded by its own lock.
+     */
+    private static class Stripe {
+        private HashMap<InetAddress, Client> clients = new HashMap<>();
+    }
+
+    /**
+     * State of a single client.
+     */
+    private static class Client {
+        private double tokens;
+        private long refilledAt;
+        private int connections;
+
+        /**
+         * @param tokens     Initial number of tokens.
+         * @param refilledAt Time of creation in nanoseconds.
+         */
+        Client(double tokens, long refilledAt) {
+            this.tokens = tokens;
+            this.refilledAt = refilledAt;
+        }
+
+        /**
+         * Adds tokens earned since the last refill.
+         *
+         * @param now           Current time in nanoseconds.
+         * @param tokensPerNano Number of tokens earned per nanosecond.
+         * @param burst         Capacity of the bucket.
+         */
+        void refill(long now, double tokensPerNano, double burst) {
+            tokens = Math.min(burst, tokens + (now - refilledAt) * tokensPerNano);
+            refilledAt = now;
+        }
+    }
+}
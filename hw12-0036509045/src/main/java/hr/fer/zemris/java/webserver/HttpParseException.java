@@ -0,0 +1,33 @@
+package hr.fer.zemris.java.webserver;
+
+/**
+ * Exception thrown when a client sends a request that cannot be parsed or is not supported.
+ * It carries the status code and status text of the response client should receive.
+ *
+ * @author Jan Capek
+ */
+class HttpParseException extends RuntimeException {
+
+    /**
+     * Response status code.
+     */
+    private int statusCode;
+
+    /**
+     * Constructs a new exception.
+     *
+     * @param statusCode Response status code.
+     * @param statusText Response status text, also used as exception message.
+     */
+    HttpParseException(int statusCode, String statusText) {
+        super(statusText);
+        this.statusCode = statusCode;
+    }
+
+    /**
+     * @return Response status code.
+     */
+    int getStatusCode() {
+        return statusCode;
+    }
+}
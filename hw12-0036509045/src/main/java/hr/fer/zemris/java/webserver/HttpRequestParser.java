@@ -0,0 +1,552 @@
+package hr.fer.zemris.java.webserver;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Incremental parser of http/1.x requests. Bytes are fed as they arrive, in buffers of any size, and parser
+ * reports when a whole request, including its body, has been read. Bytes following the request are left
+ * in the buffer so pipelined requests are parsed one after another by the same parser, after {@link #reset()}.
+ * <p>
+ * Request line and header fields together, as well as the body, are limited in size. Bodies framed by
+ * {@code Content-Length} or by chunked transfer coding are supported. Once parser throws an exception
+ * it stays in the failed state and throws the same exception on every next feed.
+ *
+ * @author Jan Capek
+ */
+class HttpRequestParser {
+
+    /**
+     * Maximum length of a chunk size line.
+     */
+    private static final int MAX_CHUNK_LINE = 1024;
+
+    /**
+     * Empty body.
+     */
+    private static final byte[] NO_BODY = new byte[0];
+
+    /**
+     * Parser states.
+     */
+    private enum State {
+        REQUEST_LINE, HEADER, BODY, CHUNK_SIZE, CHUNK_DATA, CHUNK_DATA_END, TRAILER, DONE
+    }
+
+    /**
+     * Maximum size of request line and header fields in bytes.
+     */
+    private int maxHeaderSize;
+
+    /**
+     * Maximum size of request body in bytes.
+     */
+    private int maxBodySize;
+
+    private State state = State.REQUEST_LINE;
+    private byte[] line = new byte[256];
+    private int lineLength;
+    private int headerSize;
+    private boolean started;
+    private String method;
+    private String target;
+    private String version;
+    private Map<String, String> headers = new HashMap<>();
+    private long remaining;
+    private byte[] body = NO_BODY;
+    private int bodyLength;
+    private HttpParseException error;
+
+    /**
+     * Constructs a new parser.
+     *
+     * @param maxHeaderSize Maximum size of request line and header fields in bytes.
+     * @param maxBodySize   Maximum size of request body in bytes.
+     * @throws IllegalArgumentException If header size limit is less than 1 or body size limit is negative.
+     */
+    HttpRequestParser(int maxHeaderSize, int maxBodySize) {
+        if (maxHeaderSize < 1 || maxBodySize < 0) {
+            throw new IllegalArgumentException("Invalid request size limits.");
+        }
+        this.maxHeaderSize = maxHeaderSize;
+        this.maxBodySize = maxBodySize;
+    }
+
+    /**
+     * Consumes bytes of the request from given buffer. Bytes following the request are left in the buffer.
+     *
+     * @param buffer Buffer in read mode.
+     * @return {@code true} if the whole request has been read, {@code false} if more bytes are needed.
+     * @throws HttpParseException If request is malformed, too large or not supported.
+     */
+    boolean feed(ByteBuffer buffer) {
+        if (error != null) {
+            throw error;
+        }
+        try {
+            while (state != State.DONE && buffer.hasRemaining()) {
+                switch (state) {
+                    case BODY:
+                    case CHUNK_DATA:
+                        readBody(buffer);
+                        break;
+                    default:
+                        if (readLine(buffer)) {
+                            processLine();
+                            lineLength = 0;
+                        }
+                }
+            }
+            return state == State.DONE;
+        } catch (HttpParseException e) {
+            error = e;
+            throw e;
+        }
+    }
+
+    /**
+     * Prepares parser for the next request.
+     */
+    void reset() {
+        state = State.REQUEST_LINE;
+        lineLength = 0;
+        headerSize = 0;
+        started = false;
+        method = null;
+        target = null;
+        version = null;
+        headers = new HashMap<>();
+        remaining = 0;
+        body = NO_BODY;
+        bodyLength = 0;
+        error = null;
+    }
+
+    /**
+     * Reads bytes into {@link #line} up to and including a line feed. Line feed and carriage return
+     * in front of it are not stored.
+     *
+     * @param buffer Buffer to read from.
+     * @return {@code true} if a whole line has been read, {@code false} otherwise.
+     * @throws HttpParseException If line is too long.
+     */
+    private boolean readLine(ByteBuffer buffer) {
+        started = true;
+        boolean chunkLine = state == State.CHUNK_SIZE || state == State.CHUNK_DATA_END;
+        while (buffer.hasRemaining()) {
+            byte b = buffer.get();
+//            line terminators count towards the header size too
+            if (chunkLine ? lineLength >= MAX_CHUNK_LINE : ++headerSize > maxHeaderSize) {
+                throw tooLong();
+            }
+            if (b == '\n') {
+                if (lineLength > 0 && line[lineLength - 1] == '\r') {
+                    lineLength--;
+                }
+                return true;
+            }
+            if (lineLength == line.length) {
+                line = Arrays.copyOf(line, line.length * 2);
+            }
+            line[lineLength++] = b;
+        }
+        return false;
+    }
+
+    /**
+     * @return Exception reporting that current line does not fit the limit.
+     */
+    private HttpParseException tooLong() {
+        switch (state) {
+            case REQUEST_LINE:
+                return new HttpParseException(414, "URI Too Long");
+            case CHUNK_SIZE:
+            case CHUNK_DATA_END:
+                return badRequest();
+            default:
+                return new HttpParseException(431, "Request Header Fields Too Large");
+        }
+    }
+
+    /**
+     * Processes a whole line according to the current state.
+     *
+     * @throws HttpParseException If line is invalid.
+     */
+    private void processLine() {
+        switch (state) {
+            case REQUEST_LINE:
+//                empty lines in front of a request are ignored
+                if (lineLength != 0) {
+                    parseRequestLine();
+                    state = State.HEADER;
+                }
+                break;
+            case HEADER:
+                if (lineLength == 0) {
+                    startBody();
+                } else {
+                    parseHeaderField();
+                }
+                break;
+            case CHUNK_SIZE:
+                parseChunkSize();
+                break;
+            case CHUNK_DATA_END:
+                if (lineLength != 0) {
+                    throw badRequest();
+                }
+                state = State.CHUNK_SIZE;
+                break;
+            case TRAILER:
+//                trailer fields are not used
+                if (lineLength == 0) {
+                    state = State.DONE;
+                }
+                break;
+            default:
+                throw new IllegalStateException();
+        }
+    }
+
+    /**
+     * Parses request line: method, request target and http version separated by single spaces.
+     *
+     * @throws HttpParseException If request line is invalid or method or version is not supported.
+     */
+    private void parseRequestLine() {
+        int firstSpace = indexOf((byte) ' ', 0);
+        int lastSpace = lastIndexOf((byte) ' ');
+        if (firstSpace <= 0 || lastSpace <= firstSpace + 1) {
+            throw badRequest();
+        }
+        for (int i = 0; i < firstSpace; i++) {
+            if (isTokenChar(line[i]) == false) {
+                throw badRequest();
+            }
+        }
+        for (int i = firstSpace + 1; i < lastSpace; i++) {
+            if (line[i] <= ' ' || line[i] == 127) {
+                throw badRequest();
+            }
+        }
+        String version = string(lastSpace + 1, lineLength);
+        if (version.equals("HTTP/1.1") == false && version.equals("HTTP/1.0") == false) {
+            if (version.length() == 8 && version.startsWith("HTTP/") && Character.isDigit(version.charAt(5))
+                    && version.charAt(6) == '.' && Character.isDigit(version.charAt(7))) {
+                throw new HttpParseException(505, "HTTP Version Not Supported");
+            }
+            throw badRequest();
+        }
+        String method = string(0, firstSpace);
+        if (method.equals("GET") == false && method.equals("POST") == false) {
+            throw new HttpParseException(501, "Not Implemented");
+        }
+        this.method = method;
+        this.target = string(firstSpace + 1, lastSpace);
+        this.version = version;
+    }
+
+    /**
+     * Parses a header field and stores it under lower case name. Values of repeated fields are joined
+     * with commas, or with semicolons for {@code Cookie}.
+     *
+     * @throws HttpParseException If field is invalid.
+     */
+    private void parseHeaderField() {
+//        obsolete line folding is rejected, as allowed by rfc 7230
+        if (line[0] == ' ' || line[0] == '\t') {
+            throw badRequest();
+        }
+        int colon = indexOf((byte) ':', 0);
+        if (colon <= 0) {
+            throw badRequest();
+        }
+        for (int i = 0; i < colon; i++) {
+            if (isTokenChar(line[i]) == false) {
+                throw badRequest();
+            }
+        }
+        int start = colon + 1;
+        int end = lineLength;
+        while (start < end && (line[start] == ' ' || line[start] == '\t')) {
+            start++;
+        }
+        while (end > start && (line[end - 1] == ' ' || line[end - 1] == '\t')) {
+            end--;
+        }
+        for (int i = start; i < end; i++) {
+            if (line[i] == '\r' || line[i] == 0) {
+                throw badRequest();
+            }
+        }
+        String name = string(0, colon).toLowerCase(Locale.ROOT);
+        String value = string(start, end);
+        headers.merge(name, value, (a, b) -> a + (name.equals("cookie") ? "; " : ", ") + b);
+    }
+
+    /**
+     * Chooses how the body is framed once header has been read.
+     *
+     * @throws HttpParseException If framing headers are invalid, not supported or body is too large.
+     */
+    private void startBody() {
+        String transferEncoding = headers.get("transfer-encoding");
+        String contentLength = headers.get("content-length");
+        if (transferEncoding != null) {
+//            both framings at once could be used to smuggle requests
+            if (contentLength != null || version.equals("HTTP/1.0")) {
+                throw badRequest();
+            }
+            if (transferEncoding.equalsIgnoreCase("chunked") == false) {
+                throw new HttpParseException(501, "Not Implemented");
+            }
+            state = State.CHUNK_SIZE;
+            return;
+        }
+        if (contentLength == null) {
+            state = State.DONE;
+            return;
+        }
+        long length = -1;
+        for (String value : contentLength.split(",", -1)) {
+            long parsed = parseLength(value.trim());
+            if (length != -1 && parsed != length) {
+                throw badRequest();
+            }
+            length = parsed;
+        }
+        if (length > maxBodySize) {
+            throw tooLarge();
+        }
+        remaining = length;
+        body = length == 0 ? NO_BODY : new byte[(int) length];
+        state = length == 0 ? State.DONE : State.BODY;
+    }
+
+    /**
+     * Parses a content length.
+     *
+     * @param value Header value.
+     * @return Parsed length.
+     * @throws HttpParseException If value is not a non-negative decimal number.
+     */
+    private static long parseLength(String value) {
+        if (value.isEmpty() || value.length() > 18) {
+            throw badRequest();
+        }
+        long length = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < '0' || c > '9') {
+                throw badRequest();
+            }
+            length = length * 10 + (c - '0');
+        }
+        return length;
+    }
+
+    /**
+     * Parses the size line of a chunk. Chunk extensions are ignored.
+     *
+     * @throws HttpParseException If line is invalid or body becomes too large.
+     */
+    private void parseChunkSize() {
+        int end = indexOf((byte) ';', 0);
+        if (end == -1) {
+            end = lineLength;
+        }
+        while (end > 0 && (line[end - 1] == ' ' || line[end - 1] == '\t')) {
+            end--;
+        }
+        if (end == 0 || end > 8) {
+            throw end == 0 ? badRequest() : tooLarge();
+        }
+        long size = 0;
+        for (int i = 0; i < end; i++) {
+            int digit = Character.digit(line[i], 16);
+            if (digit == -1) {
+                throw badRequest();
+            }
+            size = size * 16 + digit;
+        }
+        if (size == 0) {
+            state = State.TRAILER;
+            return;
+        }
+        if (bodyLength + size > maxBodySize) {
+            throw tooLarge();
+        }
+        if (bodyLength + size > body.length) {
+            body = Arrays.copyOf(body, (int) Math.min(maxBodySize, Math.max(bodyLength + size, body.length * 2L)));
+        }
+        remaining = size;
+        state = State.CHUNK_DATA;
+    }
+
+    /**
+     * Copies available body bytes.
+     *
+     * @param buffer Buffer to read from.
+     */
+    private void readBody(ByteBuffer buffer) {
+        int n = (int) Math.min(remaining, buffer.remaining());
+        buffer.get(body, bodyLength, n);
+        bodyLength += n;
+        remaining -= n;
+        if (remaining == 0) {
+            state = state == State.BODY ? State.DONE : State.CHUNK_DATA_END;
+        }
+    }
+
+    /**
+     * @param b         Byte to look for.
+     * @param fromIndex Index to start from.
+     * @return Index of the first occurrence of given byte in current line or {@code -1} if there is none.
+     */
+    private int indexOf(byte b, int fromIndex) {
+        for (int i = fromIndex; i < lineLength; i++) {
+            if (line[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param b Byte to look for.
+     * @return Index of the last occurrence of given byte in current line or {@code -1} if there is none.
+     */
+    private int lastIndexOf(byte b) {
+        for (int i = lineLength - 1; i >= 0; i--) {
+            if (line[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param from Index of the first byte.
+     * @param to   Index after the last byte.
+     * @return Part of current line decoded as ISO-8859-1.
+     */
+    private String string(int from, int to) {
+        return new String(line, from, to - from, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * @param b Byte that needs to be checked.
+     * @return {@code true} if byte is allowed in http tokens (methods and field names).
+     */
+    private static boolean isTokenChar(byte b) {
+        if ((b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z') || (b >= '0' && b <= '9')) {
+            return true;
+        }
+        return b > ' ' && b < 127 && "!#$%&'*+-.^_`|~".indexOf(b) != -1;
+    }
+
+    /**
+     * @return Exception for a malformed request.
+     */
+    private static HttpParseException badRequest() {
+        return new HttpParseException(400, "Bad Request");
+    }
+
+    /**
+     * @return Exception for a request whose body is too large.
+     */
+    private static HttpParseException tooLarge() {
+        return new HttpParseException(413, "Payload Too Large");
+    }
+
+    /**
+     * @return {@code true} if any byte of the current request has been read.
+     */
+    boolean isStarted() {
+        return started;
+    }
+
+    /**
+     * @return {@code true} if request line and header fields have been read.
+     */
+    boolean isHeaderComplete() {
+        return state != State.REQUEST_LINE && state != State.HEADER;
+    }
+
+    /**
+     * @return Request method, {@code null} if request line has not been read.
+     */
+    String getMethod() {
+        return method;
+    }
+
+    /**
+     * @return Request target (path and query string), {@code null} if request line has not been read.
+     */
+    String getTarget() {
+        return target;
+    }
+
+    /**
+     * @return Http version, {@code null} if request line has not been read.
+     */
+    String getVersion() {
+        return version;
+    }
+
+    /**
+     * @return Read-only map of header fields mapped by lower case names.
+     */
+    Map<String, String> getHeaders() {
+        return Collections.unmodifiableMap(headers);
+    }
+
+    /**
+     * @return Body read so far.
+     */
+    byte[] getBody() {
+        return bodyLength == body.length ? body : Arrays.copyOf(body, bodyLength);
+    }
+
+    /**
+     * Parses value of a {@code Cookie} header. Quotes around cookie values are removed. If more cookies have
+     * the same name, the first one is kept.
+     *
+     * @param header Header value, can be {@code null}.
+     * @return Cookie values mapped by cookie names.
+     */
+    static Map<String, String> parseCookies(String header) {
+        Map<String, String> cookies = new LinkedHashMap<>();
+        if (header == null) {
+            return cookies;
+        }
+        int start = 0;
+        int length = header.length();
+        while (start < length) {
+            int end = header.indexOf(';', start);
+            if (end == -1) {
+                end = length;
+            }
+            int eq = header.indexOf('=', start);
+            if (eq != -1 && eq < end) {
+                String name = header.substring(start, eq).trim();
+                String value = header.substring(eq + 1, end).trim();
+                if (value.length() >= 2 && value.charAt(0) == '"' && value.charAt(value.length() - 1) == '"') {
+                    value = value.substring(1, value.length() - 1);
+                }
+                if (name.isEmpty() == false) {
+                    cookies.putIfAbsent(name, value);
+                }
+            }
+            start = end + 1;
+        }
+        return cookies;
+    }
+}
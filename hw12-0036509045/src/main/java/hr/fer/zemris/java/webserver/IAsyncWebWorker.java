@@ -0,0 +1,54 @@
+package hr.fer.zemris.java.webserver;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Interface that models web worker whose response can be completed later, from another thread.
+ * While returned stage is pending, server does not hold an executor thread for the request, so workers waiting
+ * for events or slow backends do not consume pool capacity. Response is sent once the stage completes.
+ * Until then, request context belongs to the worker and can be written from any thread, one thread at a time.
+ * If the stage does not complete within the configured time, connection is closed and the context must not be
+ * used anymore.
+ *
+ * @author Jan Capek
+ */
+public interface IAsyncWebWorker extends IWebWorker {
+
+    /**
+     * Starts processing a request with given context.
+     *
+     * @param context Request context.
+     * @return Stage that completes once response has been written to the context, or completes exceptionally
+     * if request could not be processed.
+     * @throws Exception Thrown in case an error occurred before processing started.
+     */
+    CompletionStage<Void> processRequestAsync(RequestContext context) throws Exception;
+
+    /**
+     * Processes a request and waits for the response to be written. Used when the worker is dispatched
+     * internally, as part of another request.
+     *
+     * @param context Request context.
+     * @throws Exception Thrown in case an error occurred.
+     */
+    @Override
+    default void processRequest(RequestContext context) throws Exception {
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        processRequestAsync(context).whenComplete((result, error) -> {
+            if (error == null) {
+                done.complete(null);
+            } else {
+                done.completeExceptionally(error instanceof CompletionException && error.getCause() != null
+                        ? error.getCause() : error);
+            }
+        });
+        try {
+            done.get();
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        }
+    }
+}
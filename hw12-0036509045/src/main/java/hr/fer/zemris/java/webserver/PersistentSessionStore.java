@@ -0,0 +1,498 @@
+package hr.fer.zemris.java.webserver;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Session store that keeps sessions on disk so they survive server restarts.
+ * <p>
+ * Every change of a session is appended to a log file as the whole current state of the session, or as
+ * a removal record once it is gone. Periodically, all live sessions are written to a snapshot file and
+ * a new, empty log is started, so the log never grows without bound. Log and snapshot belong to a
+ * generation: snapshot names the generation of the log that continues it, which lets a restart after
+ * a crash in the middle of compaction find out which files are current. Snapshot is written to a temporary
+ * file and moved into place atomically. Every record ends with a line feed, so a log record cut off by a crash
+ * is recognized by the missing terminator and ignored. Files that cannot be loaded are moved to a subdirectory
+ * instead of being replaced by the next snapshot; if even that fails, sessions are kept only in memory.
+ * <p>
+ * Disk is touched only by a background thread: requests merely queue changed sessions. Sessions are read
+ * from disk by the same thread right after start, so server starts accepting requests immediately; requests
+ * carrying an unknown session id wait until loading is done.
+ *
+ * @author Jan Capek
+ */
+class PersistentSessionStore extends SessionStore {
+
+    /**
+     * Name of the snapshot file.
+     */
+    private static final String SNAPSHOT = "sessions.snapshot";
+
+    /**
+     * Prefix of log file names, followed by generation number.
+     */
+    private static final String LOG_PREFIX = "sessions-";
+
+    /**
+     * Suffix of log file names.
+     */
+    private static final String LOG_SUFFIX = ".log";
+
+    /**
+     * Maximum time in milliseconds a request waits for sessions to be loaded.
+     */
+    private static final long LOAD_WAIT = 5000;
+
+    /**
+     * Queued in place of a session to wake the writer thread up when store is closed.
+     * Writer is not interrupted since that would close the file channel it is writing to.
+     */
+    private static final SessionMapEntry STOP = new SessionMapEntry("", "", 0);
+
+    /**
+     * Directory holding session files.
+     */
+    private Path directory;
+
+    /**
+     * Number of milliseconds between two snapshots.
+     */
+    private long snapshotInterval;
+
+    /**
+     * Sessions whose changes have not been persisted yet.
+     */
+    private BlockingQueue<SessionMapEntry> changes = new LinkedBlockingQueue<>();
+
+    /**
+     * Released once sessions have been loaded from disk.
+     */
+    private CountDownLatch loaded = new CountDownLatch(1);
+
+    /**
+     * Thread that reads and writes session files.
+     */
+    private SessionWriter writerThread;
+
+    /**
+     * Flag that indicates if changes are persisted, cleared once session files cannot be written.
+     */
+    private volatile boolean persisting = true;
+
+    /**
+     * Constructs a new persistent session store.
+     *
+     * @param timeout          Session duration in seconds.
+     * @param maxSessions      Maximum number of stored sessions.
+     * @param directory        Directory holding session files, created if it does not exist.
+     * @param snapshotInterval Number of seconds between two snapshots.
+     * @throws IllegalArgumentException If timeout is negative, maximum number of sessions is less than 1
+     *                                  or snapshot interval is less than 1.
+     * @throws NullPointerException     If given directory is {@code null}.
+     */
+    PersistentSessionStore(int timeout, int maxSessions, Path directory, int snapshotInterval) {
+        super(timeout, maxSessions);
+        if (snapshotInterval < 1) {
+            throw new IllegalArgumentException("Snapshot interval must be at least 1.");
+        }
+        this.directory = Objects.requireNonNull(directory);
+        this.snapshotInterval = snapshotInterval * 1000L;
+    }
+
+    @Override
+    SessionMapEntry get(String sid) {
+        SessionMapEntry session = super.get(sid);
+        if (session == null && sid != null && loaded.getCount() > 0) {
+            try {
+                loaded.await(LOAD_WAIT, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            session = super.get(sid);
+        }
+        return session;
+    }
+
+    @Override
+    void changed(SessionMapEntry session) {
+        if (persisting && session.queued.compareAndSet(false, true)) {
+            changes.add(session);
+        }
+    }
+
+    @Override
+    synchronized void start() {
+        if (writerThread != null) {
+            return;
+        }
+        writerThread = new SessionWriter();
+        writerThread.start();
+    }
+
+    @Override
+    synchronized void close() {
+        if (writerThread == null) {
+            return;
+        }
+        writerThread.shouldTerminate = true;
+        changes.add(STOP);
+        try {
+            writerThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        writerThread = null;
+    }
+
+    /**
+     * Thread that loads sessions, appends changes to the log and periodically writes snapshots.
+     */
+    private class SessionWriter extends Thread {
+
+        /**
+         * Flag that indicates to a thread if it should stop running.
+         */
+        private volatile boolean shouldTerminate;
+
+        /**
+         * Generation of the current log.
+         */
+        private long generation;
+
+        /**
+         * Channel of the current log.
+         */
+        private FileChannel logChannel;
+
+        /**
+         * Writer of the current log.
+         */
+        private BufferedWriter log;
+
+        /**
+         * Constructs a new daemon thread for persisting sessions.
+         */
+        SessionWriter() {
+            super("session-writer");
+            this.setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            try {
+                Files.createDirectories(directory);
+                load();
+            } catch (IOException | RuntimeException e) {
+                System.err.println("Sessions could not be loaded: " + e);
+                generation = 0;
+                persisting = moveAside();
+            } finally {
+                loaded.countDown();
+            }
+            if (persisting == false) {
+                changes.clear();
+                return;
+            }
+
+            try {
+                snapshot();
+                long nextSnapshot = System.currentTimeMillis() + snapshotInterval;
+                while (shouldTerminate == false) {
+                    SessionMapEntry session = null;
+                    try {
+                        session = changes.poll(Math.max(1, nextSnapshot - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                    if (session != null) {
+                        appendChanges(session);
+                    }
+                    if (System.currentTimeMillis() >= nextSnapshot) {
+                        snapshot();
+                        nextSnapshot = System.currentTimeMillis() + snapshotInterval;
+                    }
+                }
+//                final snapshot covers all remaining changes
+                snapshot();
+                log.close();
+            } catch (IOException | UncheckedIOException e) {
+                System.err.println("Sessions could not be persisted: " + e);
+                persisting = false;
+                changes.clear();
+            }
+        }
+
+        /**
+         * Appends given session and all other queued sessions to the log and forces them to disk.
+         *
+         * @param first Session taken from the queue.
+         * @throws IOException If log could not be written.
+         */
+        private void appendChanges(SessionMapEntry first) throws IOException {
+            List<SessionMapEntry> batch = new ArrayList<>();
+            batch.add(first);
+            changes.drainTo(batch);
+            boolean written = false;
+            for (SessionMapEntry session : batch) {
+                if (session == STOP) {
+                    continue;
+                }
+                session.queued.set(false);
+                String record = contains(session) ? format(session) : "R " + session.sid;
+                if (record.equals(session.persisted)) {
+                    continue;
+                }
+                log.write(record);
+                log.write('\n');
+                session.persisted = record;
+                written = true;
+            }
+            if (written) {
+                log.flush();
+                logChannel.force(false);
+            }
+        }
+
+        /**
+         * Writes all live sessions to a new snapshot and starts a new log. Files of the previous
+         * generation are deleted once the new snapshot is in place.
+         *
+         * @throws IOException If snapshot could not be written.
+         */
+        private void snapshot() throws IOException {
+            long next = generation + 1;
+            Path tmp = directory.resolve(SNAPSHOT + ".tmp");
+            long now = System.currentTimeMillis();
+            try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+                 BufferedWriter out = new BufferedWriter(new OutputStreamWriter(Channels.newOutputStream(channel),
+                         StandardCharsets.UTF_8))) {
+                out.write("G " + next + "\n");
+                for (SessionMapEntry session : sessions()) {
+                    if (session.validUntil > now) {
+                        String record = format(session);
+                        out.write(record);
+                        out.write('\n');
+                        session.persisted = record;
+                    }
+                }
+                out.flush();
+                channel.force(true);
+            }
+
+            BufferedWriter previousLog = log;
+            logChannel = FileChannel.open(logPath(next), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+            log = new BufferedWriter(new OutputStreamWriter(Channels.newOutputStream(logChannel), StandardCharsets.UTF_8));
+            Files.move(tmp, directory.resolve(SNAPSHOT), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            if (previousLog != null) {
+                previousLog.close();
+            }
+            generation = next;
+            deleteOldLogs();
+        }
+
+        /**
+         * Loads sessions from the snapshot and the log that continues it.
+         *
+         * @throws IOException If files could not be read.
+         */
+        private void load() throws IOException {
+            Map<String, SessionMapEntry> loadedSessions = new LinkedHashMap<>();
+            try (BufferedReader in = Files.newBufferedReader(directory.resolve(SNAPSHOT), StandardCharsets.UTF_8)) {
+                String first = readRecord(in);
+                if (first != null && first.startsWith("G ")) {
+                    generation = Long.parseLong(first.substring(2));
+                    readRecords(in, loadedSessions);
+                }
+            } catch (NoSuchFileException e) {
+//                first start, nothing to load
+            }
+            try (BufferedReader in = Files.newBufferedReader(logPath(generation), StandardCharsets.UTF_8)) {
+                readRecords(in, loadedSessions);
+            } catch (NoSuchFileException e) {
+//                snapshot has not been continued
+            }
+            for (SessionMapEntry session : loadedSessions.values()) {
+                restore(session);
+            }
+        }
+
+        /**
+         * Moves all session files to a new subdirectory, so files that could not be loaded are kept
+         * rather than deleted by the first snapshot.
+         *
+         * @return {@code true} if files were moved, {@code false} if they could not be moved.
+         */
+        private boolean moveAside() {
+            Path aside = directory.resolve("unreadable-" + System.currentTimeMillis());
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "sessions*")) {
+                Files.createDirectories(aside);
+                for (Path file : files) {
+                    Files.move(file, aside.resolve(file.getFileName()));
+                }
+                System.err.println("Session files have been moved to " + aside + ".");
+                return true;
+            } catch (IOException e) {
+                System.err.println("Session files could not be moved, sessions will not be persisted: " + e);
+                return false;
+            }
+        }
+
+        /**
+         * Reads records and applies them to given sessions. Reading stops at the first malformed record,
+         * which can only be the last record of a log cut off by a crash.
+         *
+         * @param in       Reader of records.
+         * @param sessions Sessions mapped by their ids.
+         * @throws IOException If records could not be read.
+         */
+        private void readRecords(BufferedReader in, Map<String, SessionMapEntry> sessions) throws IOException {
+            String line;
+            while ((line = readRecord(in)) != null) {
+                try {
+                    if (line.startsWith("R ")) {
+                        sessions.remove(line.substring(2));
+                    } else {
+                        SessionMapEntry session = parse(line);
+                        sessions.put(session.sid, session);
+                    }
+                } catch (RuntimeException e) {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Reads a record terminated by a line feed. Trailing characters without the terminator are
+         * the beginning of a record whose writing has not finished, so they are skipped.
+         *
+         * @param in Reader of records.
+         * @return Record without its terminator or {@code null} if there are no more complete records.
+         * @throws IOException If record could not be read.
+         */
+        private String readRecord(BufferedReader in) throws IOException {
+            StringBuilder sb = new StringBuilder();
+            int c;
+            while ((c = in.read()) != -1) {
+                if (c == '\n') {
+                    return sb.toString();
+                }
+                sb.append((char) c);
+            }
+            return null;
+        }
+
+        /**
+         * @param generation Generation of the log.
+         * @return Path of the log file.
+         */
+        private Path logPath(long generation) {
+            return directory.resolve(LOG_PREFIX + generation + LOG_SUFFIX);
+        }
+
+        /**
+         * Deletes log files of previous generations.
+         *
+         * @throws IOException If directory could not be read.
+         */
+        private void deleteOldLogs() throws IOException {
+            String current = logPath(generation).getFileName().toString();
+            try (DirectoryStream<Path> logs = Files.newDirectoryStream(directory, LOG_PREFIX + "*" + LOG_SUFFIX)) {
+                for (Path log : logs) {
+                    if (log.getFileName().toString().equals(current) == false) {
+                        Files.deleteIfExists(log);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Formats session as a record: {@code S sid host validUntil params}, where parameters are url encoded
+     * {@code name=value} pairs separated by {@code &}.
+     *
+     * @param session Session that needs to be formatted.
+     * @return Session record.
+     */
+    private static String format(SessionMapEntry session) {
+        StringBuilder sb = new StringBuilder("S ")
+                .append(session.sid).append(' ')
+                .append(encode(session.host)).append(' ')
+                .append(session.validUntil).append(' ');
+        boolean first = true;
+        for (Map.Entry<String, String> e : session.map.entrySet()) {
+            if (first == false) {
+                sb.append('&');
+            }
+            sb.append(encode(e.getKey())).append('=').append(encode(e.getValue()));
+            first = false;
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Parses a session record.
+     *
+     * @param record Record created by {@link #format(SessionMapEntry)}.
+     * @return Session described by the record.
+     * @throws IllegalArgumentException If record is malformed.
+     */
+    private static SessionMapEntry parse(String record) {
+        String[] parts = record.split(" ", 5);
+        if (parts.length != 5 || parts[0].equals("S") == false) {
+            throw new IllegalArgumentException("Invalid session record.");
+        }
+        SessionMapEntry session = new SessionMapEntry(parts[1], decode(parts[2]), Long.parseLong(parts[3]));
+        if (parts[4].isEmpty() == false) {
+            for (String param : parts[4].split("&")) {
+                int eq = param.indexOf('=');
+                if (eq == -1) {
+                    throw new IllegalArgumentException("Invalid session parameter.");
+                }
+                session.map.put(decode(param.substring(0, eq)), decode(param.substring(eq + 1)));
+            }
+        }
+        session.persisted = record;
+        return session;
+    }
+
+    /**
+     * @param s String that needs to be encoded.
+     * @return Url encoded string.
+     */
+    private static String encode(String s) {
+        return URLEncoder.encode(s, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @param s Url encoded string.
+     * @return Decoded string.
+     */
+    private static String decode(String s) {
+        return URLDecoder.decode(s, StandardCharsets.UTF_8);
+    }
+}
@@ -1,11 +1,21 @@
 package hr.fer.zemris.java.webserver;
 
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.stream.Collectors;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * Model of a request context. It also offers all relevant methods for making  a response.
@@ -14,11 +24,41 @@ import java.util.stream.Collectors;
  */
 public class RequestContext {
 
+    /**
+     * Line terminator used by http.
+     */
+    private static final byte[] CRLF = {'\r', '\n'};
+
+    /**
+     * Chunk that ends a chunked body.
+     */
+    private static final byte[] LAST_CHUNK = {'0', '\r', '\n', '\r', '\n'};
+
+    /**
+     * Bodies of known length smaller than this are never compressed.
+     */
+    private static final long MIN_COMPRESSED_LENGTH = 256;
+
+    /**
+     * Default size of the response buffer in bytes.
+     */
+    static final int DEFAULT_BUFFER_SIZE = 8192;
+
     /**
      * Response output stream.
      */
     private OutputStream outputStream;
 
+    /**
+     * Channel of the response output stream, if there is one. It is used to transfer files directly.
+     */
+    private WritableByteChannel outputChannel;
+
+    /**
+     * Number of bytes transferred straight to {@link #outputChannel}, bypassing the output stream.
+     */
+    private long transferredBytes;
+
     /**
      * Request task dispatcher.
      */
@@ -74,6 +114,11 @@ public class RequestContext {
      */
     private List<RCCookie> outputCookies;
 
+    /**
+     * Additional response header fields.
+     */
+    private Map<String, String> headers = new LinkedHashMap<>();
+
     /**
      * Flag that indicates if headers are generated.
      */
@@ -84,6 +129,81 @@ public class RequestContext {
      */
     private String sessionId;
 
+    /**
+     * Flag that indicates if connection should be kept open after the response.
+     */
+    private boolean keepAlive;
+
+    /**
+     * Flag that indicates if client accepts chunked transfer encoding.
+     */
+    private boolean chunkingAllowed;
+
+    /**
+     * Flag that indicates if response body is sent in chunks.
+     */
+    private boolean chunked;
+
+    /**
+     * Flag that indicates if response has been completed.
+     */
+    private boolean finished;
+
+    /**
+     * Content coding accepted by the client, {@code gzip}, {@code deflate} or {@code null} if none.
+     */
+    private String acceptedEncoding;
+
+    /**
+     * Mime types whose bodies are compressed if client accepts it.
+     */
+    private Set<String> compressibleTypes = Collections.emptySet();
+
+    /**
+     * Stream that frames body into chunks, {@code null} if body is not chunked.
+     */
+    private ChunkedOutputStream chunkedStream;
+
+    /**
+     * Stream that compresses the body, {@code null} if body is not compressed.
+     */
+    private DeflaterOutputStream compressorStream;
+
+    /**
+     * Stream that body is written to once headers are sent.
+     */
+    private OutputStream bodyStream;
+
+    /**
+     * Size of the response buffer in bytes.
+     */
+    private int bufferSize = DEFAULT_BUFFER_SIZE;
+
+    /**
+     * Body bytes that have been written but not yet passed to {@link #bodyStream}, allocated on first write.
+     */
+    private byte[] buffer;
+
+    /**
+     * Number of bytes in {@link #buffer}.
+     */
+    private int buffered;
+
+    /**
+     * Copy of the body written so far, {@code null} if body is not being captured.
+     */
+    private ByteArrayOutputStream capture;
+
+    /**
+     * Maximum number of captured bytes, capturing stops once body gets larger.
+     */
+    private int captureLimit;
+
+    /**
+     * Captured body that has not been passed to the buffer yet, {@code null} if nothing is held back.
+     */
+    private ByteArrayOutputStream held;
+
     /**
      * Constructs a new request context.
      *
@@ -132,18 +252,65 @@ public class RequestContext {
         if (headerGenerated) {
             return;
         }
+        boolean compressed = shouldCompress();
+        if (compressed) {
+            headers.put("Content-Encoding", acceptedEncoding);
+            contentLength = null;
+        }
+        if (compressibleTypes.contains(mimeType)) {
+            headers.putIfAbsent("Vary", "Accept-Encoding");
+        }
+//        persistent connection needs a known body length, either upfront or through chunks
+        if (keepAlive && contentLength == null && hasBody()) {
+            chunked = chunkingAllowed;
+            keepAlive = chunkingAllowed;
+        }
         String httpStatus = String.format("HTTP/1.1 %d %s\r\n", statusCode, statusText);
         String contentType = "Content-Type: " + mimeType + (mimeType.startsWith("text/") ? "; charset=" + encoding : "") + "\r\n";
-        String contentLen = contentLength != null ? String.format("Content-Length: %s", contentLength) : "";
+        String contentLen = contentLength != null ? String.format("Content-Length: %s\r\n", contentLength) : "";
+        String transferEncoding = chunked ? "Transfer-Encoding: chunked\r\n" : "";
+        String connection = "Connection: " + (keepAlive ? "keep-alive" : "close") + "\r\n";
+        StringBuilder otherHeaders = new StringBuilder();
+        headers.forEach((name, value) -> otherHeaders.append(name).append(": ").append(value).append("\r\n"));
         String cookies = "";
         if (outputCookies != null && outputCookies.size() != 0) {
             cookies = outputCookies.stream()
                     .map(cookie -> String.format("Set-Cookie: %s", cookie))
                     .collect(Collectors.joining("\r\n")) + "\r\n";
         }
-        byte[] headerData = (httpStatus + contentType + contentLen + cookies + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+        byte[] headerData = (httpStatus + contentType + contentLen + transferEncoding + connection + otherHeaders + cookies + "\r\n")
+                .getBytes(StandardCharsets.ISO_8859_1);
         outputStream.write(headerData);
         headerGenerated = true;
+
+        OutputStream framedStream = chunked ? (chunkedStream = new ChunkedOutputStream(outputStream)) : new UnclosableOutputStream(outputStream);
+        if (compressed) {
+            compressorStream = acceptedEncoding.equals("gzip") ?
+                    new GZIPOutputStream(framedStream, 8192, true) : new DeflaterOutputStream(framedStream, new Deflater(), 8192, true) {
+                        @Override
+                        public void close() throws IOException {
+                            try {
+                                super.close();
+                            } finally {
+                                def.end();
+                            }
+                        }
+                    };
+        }
+        bodyStream = compressed ? compressorStream : framedStream;
+    }
+
+    /**
+     * Checks if response body should be compressed. Body is compressed if client accepts it, its mime type
+     * is compressible, it is not already encoded and it is not known to be too small to benefit.
+     *
+     * @return {@code true} if body should be compressed, {@code false} otherwise.
+     */
+    private boolean shouldCompress() {
+        return acceptedEncoding != null && hasBody()
+                && compressibleTypes.contains(mimeType)
+                && headers.containsKey("Content-Encoding") == false
+                && (contentLength == null || contentLength >= MIN_COMPRESSED_LENGTH);
     }
 
     /**
@@ -161,6 +328,8 @@ public class RequestContext {
 
     /**
      * Writes byte array to the response output stream starting from given offset and writing given number of bytes.
+     * Data is collected in the response buffer and sent once the buffer is full, the response is completed
+     * or {@link #flush()} is called. Headers are sent together with the first data that leaves the buffer.
      *
      * @param data   Data array whose content needs to be sent to output stream.
      * @param offset Offset of the first byte that needs to be written.
@@ -172,12 +341,377 @@ public class RequestContext {
      */
     public RequestContext write(byte[] data, int offset, int len) throws IOException {
         Objects.requireNonNull(data);
+        Objects.checkFromIndexSize(offset, len, data.length);
+        if (capture != null) {
+            if (capture.size() + len > captureLimit) {
+                capture = null;
+            } else {
+                capture.write(data, offset, len);
+                if (held != null) {
+                    return this;
+                }
+            }
+        }
+        releaseHeld();
+        return append(data, offset, len);
+    }
+
+    /**
+     * Adds data to the response buffer, sending the buffer first if data does not fit.
+     *
+     * @param data   Data array.
+     * @param offset Offset of the first byte that needs to be written.
+     * @param len    Number of bytes that need to be written.
+     * @return {@code this}.
+     * @throws IOException If data could not be written.
+     */
+    private RequestContext append(byte[] data, int offset, int len) throws IOException {
+        if (len <= bufferSize - buffered) {
+            if (buffer == null) {
+                buffer = new byte[bufferSize];
+            }
+            System.arraycopy(data, offset, buffer, buffered, len);
+            buffered += len;
+            return this;
+        }
+        drainBuffer();
+//        data that would fill the buffer anyway is passed on without copying
+        if (len >= bufferSize) {
+            bodyStream.write(data, offset, len);
+        } else {
+            append(data, offset, len);
+        }
+        return this;
+    }
+
+    /**
+     * Passes captured body that has been held back to the response buffer.
+     *
+     * @throws IOException If data could not be written.
+     */
+    private void releaseHeld() throws IOException {
+        if (held != null) {
+            byte[] data = held.toByteArray();
+            held = null;
+            append(data, 0, data.length);
+        }
+    }
+
+    /**
+     * Sends headers if they have not been sent and passes buffered data to the body stream.
+     * Underlying streams are not flushed.
+     *
+     * @throws IOException If data could not be written.
+     */
+    private void drainBuffer() throws IOException {
         sendHeaders();
-        outputStream.write(data, offset, len);
-        outputStream.flush();
+        if (buffered > 0) {
+            bodyStream.write(buffer, 0, buffered);
+            buffered = 0;
+        }
+    }
+
+    /**
+     * Sends headers and all buffered data to the client right away. Workers that stream their responses
+     * use this to deliver parts of the response as they are produced; others should not call it since
+     * flushing before the response is complete rules out automatic content length and produces smaller packets.
+     *
+     * @return {@code this}.
+     * @throws IOException If data could not be written.
+     */
+    public RequestContext flush() throws IOException {
+        releaseHeld();
+        drainBuffer();
+        bodyStream.flush();
+        return this;
+    }
+
+    /**
+     * Writes given number of bytes from a file channel to the response, starting from given file position.
+     * Data is transferred directly to the client when possible (body is neither chunked nor compressed),
+     * otherwise it is copied through a small buffer;
+     * either way file content is never loaded into memory as a whole.
+     *
+     * @param channel  File channel to read from.
+     * @param position Position in the file of the first byte that needs to be written.
+     * @param count    Number of bytes that need to be written.
+     * @return {@code this}.
+     * @throws IOException              If data could not be read or written, or if file ends too soon.
+     * @throws NullPointerException     If given channel is {@code null}.
+     * @throws IllegalArgumentException If given position or count is negative.
+     */
+    public RequestContext write(FileChannel channel, long position, long count) throws IOException {
+        Objects.requireNonNull(channel);
+        if (position < 0 || count < 0) {
+            throw new IllegalArgumentException("Position and count cannot be negative.");
+        }
+//        file content is not captured
+        releaseHeld();
+        capture = null;
+        WritableByteChannel target;
+        if (count <= bufferSize - buffered) {
+            if (buffer == null) {
+                buffer = new byte[bufferSize];
+            }
+            ByteBuffer buf = ByteBuffer.wrap(buffer, buffered, (int) count);
+            while (buf.hasRemaining()) {
+                if (channel.read(buf, position + buf.position() - buffered) == -1) {
+                    throw new EOFException("File is shorter than expected.");
+                }
+            }
+            buffered += (int) count;
+            return this;
+        }
+        drainBuffer();
+        if (outputChannel != null && chunked == false && compressorStream == null) {
+            bodyStream.flush();
+            target = outputChannel;
+        } else {
+            target = Channels.newChannel(new OutputStream() {
+                @Override
+                public void write(int b) throws IOException {
+                    write(new byte[]{(byte) b}, 0, 1);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    RequestContext.this.write(b, off, len);
+                }
+            });
+        }
+        while (count > 0) {
+            long transferred = channel.transferTo(position, count, target);
+            if (transferred == 0 && position >= channel.size()) {
+                throw new EOFException("File is shorter than expected.");
+            }
+            position += transferred;
+            count -= transferred;
+            if (target == outputChannel) {
+                transferredBytes += transferred;
+            }
+        }
         return this;
     }
 
+    /**
+     * Completes the response. If headers have not been sent yet, whole body is in the buffer so it is
+     * compressed in memory if needed and its length is sent as content length. Otherwise remaining buffered data is sent
+     * and, if response is chunked, the last chunk is written. Response cannot be written to after it is completed.
+     *
+     * @throws IOException If data could not be written.
+     */
+    void finish() throws IOException {
+        if (finished) {
+            return;
+        }
+//        whole body is held, so its length is known even if it does not fit in the buffer
+        if (held != null && headerGenerated == false && buffered == 0 && contentLength == null) {
+            contentLength = (long) held.size();
+        }
+        releaseHeld();
+        if (headerGenerated == false && (contentLength == null || contentLength == buffered) && hasBody()) {
+            if (shouldCompress() && buffered >= MIN_COMPRESSED_LENGTH) {
+                buffer = compress(buffer, buffered, acceptedEncoding);
+                buffered = buffer.length;
+                headers.put("Content-Encoding", acceptedEncoding);
+            }
+            contentLength = (long) buffered;
+        }
+        drainBuffer();
+        if (compressorStream != null) {
+            compressorStream.close();
+        }
+        if (chunkedStream != null) {
+            chunkedStream.finish();
+        }
+        outputStream.flush();
+        finished = true;
+    }
+
+    /**
+     * Compresses given data in memory.
+     *
+     * @param data     Array holding the data.
+     * @param len      Number of bytes of the data, starting from the beginning of the array.
+     * @param encoding Content coding, {@code gzip} or {@code deflate}.
+     * @return Compressed data.
+     * @throws IOException If data could not be compressed.
+     */
+    private static byte[] compress(byte[] data, int len, String encoding) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(len / 2 + 32);
+        if (encoding.equals("gzip")) {
+            try (GZIPOutputStream gzip = new GZIPOutputStream(bos)) {
+                gzip.write(data, 0, len);
+            }
+        } else {
+            Deflater deflater = new Deflater();
+            try (DeflaterOutputStream deflate = new DeflaterOutputStream(bos, deflater)) {
+                deflate.write(data, 0, len);
+            } finally {
+                deflater.end();
+            }
+        }
+        return bos.toByteArray();
+    }
+
+    /**
+     * Checks if response with current status code can have a body. Responses 1xx, 204 and 304 never have one.
+     *
+     * @return {@code true} if response can have a body, {@code false} otherwise.
+     */
+    private boolean hasBody() {
+        return statusCode >= 200 && statusCode != 204 && statusCode != 304;
+    }
+
+    /**
+     * Sets connection persistence of the response.
+     * If response length is not known upfront, body will be chunked if chunking is allowed,
+     * otherwise connection will be closed after the response.
+     *
+     * @param keepAlive       Flag that indicates if connection should be kept open after the response.
+     * @param chunkingAllowed Flag that indicates if client accepts chunked transfer encoding.
+     * @throws IllegalStateException If headers have already been sent.
+     */
+    void setKeepAlive(boolean keepAlive, boolean chunkingAllowed) {
+        checkHeaders();
+        this.keepAlive = keepAlive;
+        this.chunkingAllowed = chunkingAllowed;
+    }
+
+    /**
+     * Sets size of the response buffer. Responses whose body fits in the buffer are sent with content length.
+     *
+     * @param bufferSize Buffer size in bytes, {@code 0} disables the buffer.
+     * @throws IllegalArgumentException If given size is negative.
+     * @throws IllegalStateException    If anything has already been written.
+     */
+    void setBufferSize(int bufferSize) {
+        if (bufferSize < 0) {
+            throw new IllegalArgumentException("Buffer size cannot be negative.");
+        }
+        if (buffered > 0) {
+            throw new IllegalStateException("Response has already been written to.");
+        }
+        checkHeaders();
+        this.bufferSize = bufferSize;
+        this.buffer = null;
+    }
+
+    /**
+     * Sets content codings accepted by the client and mime types that should be compressed.
+     * Gzip is preferred over deflate if client accepts both.
+     *
+     * @param acceptEncoding    Value of the request's {@code Accept-Encoding} header, can be {@code null}.
+     * @param compressibleTypes Mime types whose bodies can be compressed.
+     * @throws NullPointerException  If given set is {@code null}.
+     * @throws IllegalStateException If headers have already been sent.
+     */
+    void setCompression(String acceptEncoding, Set<String> compressibleTypes) {
+        checkHeaders();
+        this.acceptedEncoding = negotiateEncoding(acceptEncoding);
+        this.compressibleTypes = Objects.requireNonNull(compressibleTypes);
+    }
+
+    /**
+     * Chooses content coding from the value of {@code Accept-Encoding} header.
+     *
+     * @param acceptEncoding Header value, can be {@code null}.
+     * @return {@code gzip} or {@code deflate} if client accepts it, {@code null} otherwise.
+     */
+    static String negotiateEncoding(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return null;
+        }
+        boolean deflate = false;
+        for (String coding : acceptEncoding.split(",")) {
+            String[] parts = coding.split(";");
+            String name = parts[0].trim().toLowerCase(Locale.ROOT);
+            if (parts.length > 1 && parts[1].trim().matches("[qQ]\\s*=\\s*0(?:\\.0*)?")) {
+                continue;
+            }
+            if (name.equals("gzip") || name.equals("*")) {
+                return "gzip";
+            }
+            deflate |= name.equals("deflate");
+        }
+        return deflate ? "deflate" : null;
+    }
+
+    /**
+     * Sets channel of the response output stream. If set, files are transferred to it directly.
+     * Output stream must be flushed to the channel before any data is written to the channel.
+     *
+     * @param outputChannel Channel that output stream writes to, can be {@code null}.
+     */
+    void setOutputChannel(WritableByteChannel outputChannel) {
+        this.outputChannel = outputChannel;
+    }
+
+    /**
+     * @return {@code true} if connection can be used for another request after this response, {@code false} otherwise.
+     */
+    boolean isKeepAlive() {
+        return keepAlive;
+    }
+
+    /**
+     * @return Number of bytes transferred straight to the output channel, these never pass through the output stream.
+     */
+    long getTransferredBytes() {
+        return transferredBytes;
+    }
+
+    /**
+     * @return Response status code.
+     */
+    int getStatusCode() {
+        return statusCode;
+    }
+
+    /**
+     * Starts keeping a copy of the body written from now on, so that the response can be stored
+     * in {@link ResponseCache}. Captured body is held back instead of being sent, so a slow client does not
+     * delay the response for requests waiting for it; it is sent once capturing stops because the body got
+     * too large, or once the body is flushed or completed.
+     *
+     * @param limit Maximum number of captured bytes.
+     */
+    void startCapture(int limit) {
+        capture = new ByteArrayOutputStream();
+        captureLimit = limit;
+        held = capture;
+    }
+
+    /**
+     * Stops capturing and returns the response written to this context. Content coding applied by the context
+     * and the default Cache-Control header of given rule are not part of the captured response.
+     * Body that has been held back is sent with the rest of the response.
+     *
+     * @param rule Caching rule of the response.
+     * @return Captured response or {@code null} if body could not be captured whole.
+     */
+    ResponseCache.Response endCapture(ResponseCache.Rule rule) {
+        if (capture == null) {
+            return null;
+        }
+        Map<String, String> capturedHeaders = new LinkedHashMap<>(headers);
+        if (compressorStream != null) {
+            capturedHeaders.remove("Content-Encoding");
+        }
+        capturedHeaders.remove("Cache-Control", rule.getCacheControl());
+        ResponseCache.Response response = new ResponseCache.Response(statusCode, statusText, mimeType, encoding,
+                capturedHeaders, capture.toByteArray(), rule.getTtl());
+        capture = null;
+        return response;
+    }
+
+    /**
+     * @return {@code true} if headers have been sent, {@code false} otherwise.
+     */
+    boolean isHeaderGenerated() {
+        return headerGenerated;
+    }
+
     /**
      * Writes given string to the response output stream.
      *
@@ -406,6 +940,26 @@ public class RequestContext {
         this.contentLength = contentLength;
     }
 
+    /**
+     * Sets an additional response header field, replacing previous value of the field with the same name.
+     * Fields managed by the context itself (status line, content type and length, connection and cookies)
+     * should be set through their own methods.
+     *
+     * @param name  Field name.
+     * @param value Field value, {@code null} removes the field.
+     * @throws NullPointerException  If given name is {@code null}.
+     * @throws IllegalStateException If headers have already been sent.
+     */
+    public void setHeader(String name, String value) {
+        checkHeaders();
+        Objects.requireNonNull(name);
+        if (value == null) {
+            headers.remove(name);
+        } else {
+            headers.put(name, value);
+        }
+    }
+
     /**
      * Checks if headers are sent and throws an {@link IllegalStateException} if positive.
      *
@@ -417,6 +971,68 @@ public class RequestContext {
         }
     }
 
+    /**
+     * Output stream that ignores {@link #close()} so closing a stream stacked on top of it keeps the
+     * connection open.
+     */
+    private static class UnclosableOutputStream extends FilterOutputStream {
+
+        /**
+         * @param out Underlying stream.
+         */
+        UnclosableOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+
+    /**
+     * Output stream that frames written data into http chunks. Closing it does not close underlying stream.
+     */
+    private static class ChunkedOutputStream extends UnclosableOutputStream {
+
+        /**
+         * @param out Underlying stream.
+         */
+        ChunkedOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+//            empty chunk would end the body
+            if (len == 0) {
+                return;
+            }
+            out.write((Integer.toHexString(len) + "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+            out.write(b, off, len);
+            out.write(CRLF);
+        }
+
+        /**
+         * Writes the last chunk which ends the body.
+         *
+         * @throws IOException If chunk could not be written.
+         */
+        void finish() throws IOException {
+            out.write(LAST_CHUNK);
+        }
+    }
+
     /**
      * Model of a http cookie.
      */
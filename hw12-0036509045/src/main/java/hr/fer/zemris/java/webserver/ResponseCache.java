@@ -0,0 +1,387 @@
+package hr.fer.zemris.java.webserver;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Least recently used cache of generated responses bounded by total size of cached bodies.
+ * Only paths that have a {@link Rule} in the workers configuration are cached. Rule gives the number of seconds
+ * a response stays fresh and the request parameters it depends on; responses for different values of those
+ * parameters are cached separately and all other parameters are ignored.
+ * <p>
+ * Concurrent misses of the same response are coalesced: the first request computes the response and others
+ * wait for it instead of computing it again.
+ *
+ * @author Jan Capek
+ */
+class ResponseCache {
+
+    /**
+     * Size accounted for every entry on top of its body.
+     */
+    private static final int ENTRY_OVERHEAD = 512;
+
+    /**
+     * Maximum total size of cached entries in bytes.
+     */
+    private long capacity;
+
+    /**
+     * Maximum body size of a cached response.
+     */
+    private int maxEntrySize;
+
+    /**
+     * Current total size of cached entries in bytes.
+     */
+    private long size;
+
+    /**
+     * Cached responses in access order.
+     */
+    private LinkedHashMap<String, Response> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * Responses that are being computed.
+     */
+    private ConcurrentHashMap<String, CompletableFuture<Response>> pending = new ConcurrentHashMap<>();
+
+    /**
+     * Number of requests served from the cache.
+     */
+    private LongAdder hits = new LongAdder();
+
+    /**
+     * Number of requests that computed the response.
+     */
+    private LongAdder misses = new LongAdder();
+
+    /**
+     * Number of requests that waited for a response computed by another request.
+     */
+    private LongAdder coalesced = new LongAdder();
+
+    /**
+     * Constructs a new cache.
+     *
+     * @param capacity     Maximum total size of cached entries in bytes.
+     * @param maxEntrySize Maximum body size of a cached response.
+     * @throws IllegalArgumentException If any of the arguments is negative.
+     */
+    ResponseCache(long capacity, int maxEntrySize) {
+        if (capacity < 0 || maxEntrySize < 0) {
+            throw new IllegalArgumentException("Cache sizes cannot be negative.");
+        }
+        this.capacity = capacity;
+        this.maxEntrySize = (int) Math.min(maxEntrySize, capacity);
+    }
+
+    /**
+     * @return Maximum body size of a cached response.
+     */
+    int getMaxEntrySize() {
+        return maxEntrySize;
+    }
+
+    /**
+     * Returns fresh cached response with given key.
+     *
+     * @param key Key built by {@link Rule#key(String, Map)}.
+     * @return Cached response or {@code null} if there is no fresh response.
+     */
+    Response get(String key) {
+        return get(key, System.nanoTime());
+    }
+
+    /**
+     * Returns cached response with given key that is fresh at given time.
+     *
+     * @param key Key built by {@link Rule#key(String, Map)}.
+     * @param now Current {@link System#nanoTime()}.
+     * @return Cached response or {@code null} if there is no fresh response.
+     */
+    Response get(String key, long now) {
+        Response response;
+        synchronized (this) {
+            response = entries.get(key);
+            if (response != null && response.isFresh(now) == false) {
+                entries.remove(key);
+                size -= response.weight();
+                response = null;
+            }
+        }
+        if (response != null) {
+            hits.increment();
+        }
+        return response;
+    }
+
+    /**
+     * Registers the caller as the one computing response with given key, unless some other request already is.
+     * Caller that gets {@code null} must compute the response and pass it to {@link #complete(String, Response)}
+     * even if computing fails.
+     *
+     * @param key Key built by {@link Rule#key(String, Map)}.
+     * @return {@code null} if caller should compute the response, otherwise future completed with the response
+     * computed by another request or with {@code null} if that response could not be cached.
+     */
+    CompletableFuture<Response> join(String key) {
+        CompletableFuture<Response> computation = new CompletableFuture<>();
+        CompletableFuture<Response> existing = pending.putIfAbsent(key, computation);
+        if (existing != null) {
+            coalesced.increment();
+            return existing;
+        }
+//        response might have been stored between the lookup and the registration
+        Response response = get(key);
+        if (response != null) {
+            pending.remove(key);
+            computation.complete(response);
+            return computation;
+        }
+        misses.increment();
+        return null;
+    }
+
+    /**
+     * Stores computed response, if it can be cached, and hands it to requests waiting for it.
+     *
+     * @param key      Key built by {@link Rule#key(String, Map)}.
+     * @param response Computed response, {@code null} if it could not be captured.
+     */
+    void complete(String key, Response response) {
+        if (response != null && (response.statusCode != 200 || response.body.length > maxEntrySize)) {
+            response = null;
+        }
+        if (response != null) {
+            put(key, response);
+        }
+        CompletableFuture<Response> computation = pending.remove(key);
+        if (computation != null) {
+            computation.complete(response);
+        }
+    }
+
+    /**
+     * Stores a response and evicts least recently used entries until cache fits its capacity.
+     *
+     * @param key      Key of the response.
+     * @param response Response that needs to be stored.
+     */
+    private synchronized void put(String key, Response response) {
+        Response previous = entries.put(key, response);
+        if (previous != null) {
+            size -= previous.weight();
+        }
+        size += response.weight();
+        Iterator<Response> it = entries.values().iterator();
+        while (size > capacity && it.hasNext()) {
+            size -= it.next().weight();
+            it.remove();
+        }
+    }
+
+    /**
+     * Removes all cached responses. Responses that are being computed are still handed to requests waiting for them.
+     */
+    synchronized void clear() {
+        entries.clear();
+        size = 0;
+    }
+
+    /**
+     * @return Number of requests served from the cache.
+     */
+    long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * @return Number of requests that computed the response.
+     */
+    long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return Number of requests that waited for a response computed by another request.
+     */
+    long getCoalesced() {
+        return coalesced.sum();
+    }
+
+    /**
+     * @return Current total size of cached entries in bytes.
+     */
+    synchronized long size() {
+        return size;
+    }
+
+    /**
+     * Caching rule of a path.
+     */
+    static class Rule {
+        private long ttl;
+        private List<String> vary;
+
+        /**
+         * @param ttl  Number of seconds a response stays fresh.
+         * @param vary Names of parameters the response depends on.
+         */
+        private Rule(long ttl, List<String> vary) {
+            this.ttl = ttl;
+            this.vary = vary;
+        }
+
+        /**
+         * Parses a rule specification, a semicolon separated list of options: {@code ttl=<seconds>} (required)
+         * and {@code vary=<comma separated parameter names>}, for example {@code ttl=60; vary=a,b}.
+         *
+         * @param spec Rule specification.
+         * @return Parsed rule.
+         * @throws NullPointerException     If given specification is {@code null}.
+         * @throws IllegalArgumentException If specification is invalid.
+         */
+        static Rule parse(String spec) {
+            long ttl = -1;
+            List<String> vary = new ArrayList<>();
+            for (String option : spec.split(";")) {
+                option = option.trim();
+                if (option.isEmpty()) {
+                    continue;
+                }
+                int eq = option.indexOf('=');
+                String name = eq == -1 ? option : option.substring(0, eq).trim();
+                String value = eq == -1 ? "" : option.substring(eq + 1).trim();
+                if (name.equals("ttl")) {
+                    ttl = Long.parseLong(value);
+                } else if (name.equals("vary")) {
+                    Arrays.stream(value.split(",")).map(String::trim).filter(p -> p.isEmpty() == false).forEach(vary::add);
+                } else {
+                    throw new IllegalArgumentException("Unknown cache option: " + name);
+                }
+            }
+            if (ttl <= 0) {
+                throw new IllegalArgumentException("Cache rule needs a positive ttl.");
+            }
+            return new Rule(ttl, vary);
+        }
+
+        /**
+         * Builds cache key of a request for given path with given parameters.
+         *
+         * @param path       Request path.
+         * @param parameters Request parameters.
+         * @return Cache key.
+         */
+        String key(String path, Map<String, String> parameters) {
+            if (vary.isEmpty()) {
+                return path;
+            }
+            StringBuilder sb = new StringBuilder(path);
+            for (String name : vary) {
+                String value = parameters.get(name);
+//                missing parameter is distinguished from an empty one
+                sb.append('\0').append(value == null ? "\1" : value);
+            }
+            return sb.toString();
+        }
+
+        /**
+         * @return Cache-Control header value of a freshly computed response.
+         */
+        String getCacheControl() {
+            return "max-age=" + ttl;
+        }
+
+        /**
+         * @return Number of seconds a response stays fresh.
+         */
+        long getTtl() {
+            return ttl;
+        }
+    }
+
+    /**
+     * Cached response. Body is kept as it was written by the worker, before any content coding, so it can be
+     * compressed for each client as that client accepts.
+     */
+    static class Response {
+        private int statusCode;
+        private String statusText;
+        private String mimeType;
+        private String encoding;
+        private Map<String, String> headers;
+        private byte[] body;
+        private long createdAt;
+        private long expiresAt;
+
+        /**
+         * @param statusCode Status code.
+         * @param statusText Status text.
+         * @param mimeType   Mime type.
+         * @param encoding   Text encoding.
+         * @param headers    Additional header fields.
+         * @param body       Body of the response.
+         * @param ttl        Number of seconds response stays fresh.
+         */
+        Response(int statusCode, String statusText, String mimeType, String encoding,
+                 Map<String, String> headers, byte[] body, long ttl) {
+            this.statusCode = statusCode;
+            this.statusText = statusText;
+            this.mimeType = mimeType;
+            this.encoding = encoding;
+            this.headers = Collections.unmodifiableMap(headers);
+            this.body = body;
+            this.createdAt = System.nanoTime();
+            this.expiresAt = createdAt + TimeUnit.SECONDS.toNanos(ttl);
+        }
+
+        /**
+         * @param now Current {@link System#nanoTime()}.
+         * @return {@code true} if response can still be served.
+         */
+        private boolean isFresh(long now) {
+            return now - expiresAt < 0;
+        }
+
+        /**
+         * @return Size this response takes in the cache.
+         */
+        private long weight() {
+            return body.length + ENTRY_OVERHEAD;
+        }
+
+        /**
+         * Writes this response to given context. Unless the worker set its own, {@code Cache-Control} header
+         * allows clients to keep the response for the rest of its time in this cache.
+         *
+         * @param rc Context of the request being served.
+         * @throws IOException If data could not be written.
+         */
+        void writeTo(RequestContext rc) throws IOException {
+            long now = System.nanoTime();
+            rc.setStatusCode(statusCode);
+            rc.setStatusText(statusText);
+            rc.setMimeType(mimeType);
+            rc.setEncoding(encoding);
+            headers.forEach(rc::setHeader);
+            if (headers.containsKey("Cache-Control") == false) {
+                rc.setHeader("Cache-Control", "max-age=" + Math.max(0, TimeUnit.NANOSECONDS.toSeconds(expiresAt - now)));
+            }
+            rc.setHeader("Age", Long.toString(TimeUnit.NANOSECONDS.toSeconds(now - createdAt)));
+            rc.setContentLength((long) body.length);
+            rc.write(body);
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package hr.fer.zemris.java.webserver;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Table of request paths served by web workers, built whenever workers configuration is read.
+ * Paths configured in workers configuration are found with a single hash lookup. Paths of the form
+ * {@code /ext/Name} are served by worker class {@code Name} from the workers package; class is loaded
+ * and instantiated on first request and the instance is reused afterwards.
+ * Just like configured workers, these instances are shared between concurrent requests. Names that do not
+ * resolve to a worker are remembered as well, so repeated requests for them do not reach the class loader again;
+ * they are forgotten whenever configuration is reloaded.
+ *
+ * @author Jan Capek
+ */
+class RouteTable {
+
+    /**
+     * Prefix of paths served by workers looked up by class name.
+     */
+    static final String EXT_PREFIX = "/ext/";
+
+    /**
+     * Maximum number of remembered names that are not workers. Once it is reached, all of them are forgotten.
+     */
+    private static final int MAX_MISSING = 1024;
+
+    /**
+     * Workers mapped by request paths.
+     */
+    private Map<String, IWebWorker> routes;
+
+    /**
+     * Workers already resolved for {@code /ext/} paths, mapped by class name.
+     */
+    private Map<String, IWebWorker> extWorkers;
+
+    /**
+     * Class names under {@code /ext/} that do not resolve to a worker.
+     */
+    private Set<String> missingWorkers = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Package holding workers served under {@code /ext/}, including the trailing dot.
+     */
+    private String workersPackage;
+
+    /**
+     * Class loader used to load workers.
+     */
+    private ClassLoader classLoader;
+
+    /**
+     * Constructs a new route table.
+     *
+     * @param routes         Workers mapped by request paths.
+     * @param workersPackage Package holding workers served under {@code /ext/}.
+     * @param classLoader    Class loader used to load workers.
+     * @throws NullPointerException If any of the arguments is {@code null}.
+     */
+    RouteTable(Map<String, IWebWorker> routes, String workersPackage, ClassLoader classLoader) {
+        this(routes, Objects.requireNonNull(workersPackage) + ".", classLoader, new ConcurrentHashMap<>());
+    }
+
+    /**
+     * @param routes         Workers mapped by request paths.
+     * @param workersPackage Package holding workers served under {@code /ext/}, including the trailing dot.
+     * @param classLoader    Class loader used to load workers.
+     * @param extWorkers     Workers already resolved for {@code /ext/} paths.
+     */
+    private RouteTable(Map<String, IWebWorker> routes, String workersPackage, ClassLoader classLoader,
+                       Map<String, IWebWorker> extWorkers) {
+        this.routes = new HashMap<>(Objects.requireNonNull(routes));
+        this.workersPackage = workersPackage;
+        this.classLoader = Objects.requireNonNull(classLoader);
+        this.extWorkers = extWorkers;
+    }
+
+    /**
+     * Constructs a new route table with given configured routes that shares workers resolved for {@code /ext/}
+     * paths with this table, so those keep their state when configuration is reloaded. Names that did not
+     * resolve to a worker are looked up again.
+     *
+     * @param routes Workers mapped by request paths.
+     * @return New route table.
+     * @throws NullPointerException If given map is {@code null}.
+     */
+    RouteTable withRoutes(Map<String, IWebWorker> routes) {
+        return new RouteTable(routes, workersPackage, classLoader, extWorkers);
+    }
+
+    /**
+     * Finds the worker serving given path.
+     *
+     * @param urlPath Request path without query string.
+     * @return Worker serving given path or {@code null} if path is not served by a worker.
+     */
+    IWebWorker find(String urlPath) {
+        if (urlPath.startsWith(EXT_PREFIX)) {
+            IWebWorker worker = findExtWorker(urlPath.substring(EXT_PREFIX.length()));
+            if (worker != null) {
+                return worker;
+            }
+        }
+        return routes.get(urlPath);
+    }
+
+    /**
+     * Finds the worker with given class name in the workers package.
+     *
+     * @param name Simple class name of the worker.
+     * @return Worker instance or {@code null} if there is no such worker.
+     */
+    private IWebWorker findExtWorker(String name) {
+        IWebWorker worker = extWorkers.get(name);
+        if (worker != null || isClassName(name) == false || missingWorkers.contains(name)) {
+            return worker;
+        }
+        worker = loadWorker(name);
+        if (worker == null) {
+            if (missingWorkers.size() >= MAX_MISSING) {
+                missingWorkers.clear();
+            }
+            missingWorkers.add(name);
+            return null;
+        }
+        IWebWorker previous = extWorkers.putIfAbsent(name, worker);
+        return previous == null ? worker : previous;
+    }
+
+    /**
+     * Loads and instantiates the worker with given class name in the workers package.
+     *
+     * @param name Simple class name of the worker.
+     * @return New worker instance or {@code null} if there is no such worker or it could not be instantiated.
+     */
+    private IWebWorker loadWorker(String name) {
+        try {
+            Class<?> workerClass = classLoader.loadClass(workersPackage + name);
+            if (IWebWorker.class.isAssignableFrom(workerClass) == false) {
+                return null;
+            }
+            return (IWebWorker) workerClass.getConstructor().newInstance();
+        } catch (ClassNotFoundException | NoSuchMethodException | InstantiationException
+                | IllegalAccessException | InvocationTargetException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Checks if given string is a valid simple class name, which keeps {@code /ext/} paths from reaching
+     * classes outside of the workers package.
+     *
+     * @param name String that needs to be checked.
+     * @return {@code true} if string is a valid java identifier, {@code false} otherwise.
+     */
+    private static boolean isClassName(String name) {
+        if (name.isEmpty() || Character.isJavaIdentifierStart(name.charAt(0)) == false) {
+            return false;
+        }
+        for (int i = 1, n = name.length(); i < n; i++) {
+            if (Character.isJavaIdentifierPart(name.charAt(i)) == false) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns extension of given file name, without the dot.
+     *
+     * @param fileName File name.
+     * @return Extension or an empty string if file name has no extension.
+     */
+    static String getExtension(String fileName) {
+        int dot = fileName.lastIndexOf('.');
+        return dot == -1 ? "" : fileName.substring(dot + 1);
+    }
+}
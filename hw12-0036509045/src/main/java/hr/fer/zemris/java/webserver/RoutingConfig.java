@@ -0,0 +1,229 @@
+package hr.fer.zemris.java.webserver;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+/**
+ * Immutable snapshot of configuration read from mime and workers config files: mime types, compressible types,
+ * worker routes and response caching rules. Server keeps the current snapshot in a single volatile field and
+ * replaces it as a whole when config files change, so requests read a consistent configuration without locking.
+ *
+ * @author Jan Capek
+ */
+class RoutingConfig {
+
+    /**
+     * Package holding workers served under {@code /ext/}.
+     */
+    private static final String WORKERS_PACKAGE = "hr.fer.zemris.java.webserver.workers";
+
+    /**
+     * Prefix of workers config keys that hold caching rules.
+     */
+    private static final String CACHE_PREFIX = "cache.";
+
+    /**
+     * Mime types mapped by file extensions.
+     */
+    private Map<String, String> mimeTypes;
+
+    /**
+     * Mime types whose responses are compressed if client accepts it.
+     */
+    private Set<String> compressibleTypes;
+
+    /**
+     * Table used to find workers serving request paths.
+     */
+    private RouteTable routes;
+
+    /**
+     * Caching rules mapped by request paths.
+     */
+    private Map<String, ResponseCache.Rule> cacheRules;
+
+    /**
+     * Version of config files this snapshot was read from.
+     */
+    private String version;
+
+    /**
+     * @param mimeTypes         Mime types mapped by file extensions.
+     * @param compressibleTypes Compressible mime types.
+     * @param routes            Worker routes.
+     * @param cacheRules        Caching rules mapped by request paths.
+     * @param version           Version of config files.
+     */
+    private RoutingConfig(Map<String, String> mimeTypes, Set<String> compressibleTypes, RouteTable routes,
+                          Map<String, ResponseCache.Rule> cacheRules, String version) {
+        this.mimeTypes = Collections.unmodifiableMap(mimeTypes);
+        this.compressibleTypes = Collections.unmodifiableSet(compressibleTypes);
+        this.routes = routes;
+        this.cacheRules = Collections.unmodifiableMap(cacheRules);
+        this.version = version;
+    }
+
+    /**
+     * Reads configuration from given config files. Workers whose mapping did not change since the previous
+     * snapshot are reused, together with any state they hold.
+     *
+     * @param mimeConfig    Path of the mime config file.
+     * @param workersConfig Path of the workers config file.
+     * @param previous      Previous snapshot, {@code null} if there is none.
+     * @return New snapshot.
+     * @throws NullPointerException If any of the paths is {@code null}.
+     * @throws RuntimeException     If any of the config files is not readable or is invalid.
+     */
+    static RoutingConfig load(Path mimeConfig, Path workersConfig, RoutingConfig previous) {
+//        version is read first, so files changed while reading are read again on the next check
+        String version = version(mimeConfig, workersConfig);
+        Map<String, String> mimeTypes = new HashMap<>();
+        Set<String> compressibleTypes = new HashSet<>();
+        loadMimeTypes(mimeConfig, mimeTypes, compressibleTypes);
+
+        Map<String, IWebWorker> workers = new HashMap<>();
+        Map<String, ResponseCache.Rule> cacheRules = new HashMap<>();
+        loadWorkers(workersConfig, previous, workers, cacheRules);
+        RouteTable routes = previous == null
+                ? new RouteTable(workers, WORKERS_PACKAGE, RoutingConfig.class.getClassLoader())
+                : previous.routes.withRoutes(workers);
+        return new RoutingConfig(mimeTypes, compressibleTypes, routes, cacheRules, version);
+    }
+
+    /**
+     * Returns version of given config files, which changes whenever any of the files is modified.
+     *
+     * @param mimeConfig    Path of the mime config file.
+     * @param workersConfig Path of the workers config file.
+     * @return Version of the files.
+     * @throws RuntimeException If attributes of any of the files could not be read.
+     */
+    static String version(Path mimeConfig, Path workersConfig) {
+        try {
+            BasicFileAttributes mime = Files.readAttributes(mimeConfig, BasicFileAttributes.class);
+            BasicFileAttributes workers = Files.readAttributes(workersConfig, BasicFileAttributes.class);
+            return mime.lastModifiedTime() + "/" + mime.size() + "/" + workers.lastModifiedTime() + "/" + workers.size();
+        } catch (IOException e) {
+            throw new RuntimeException("Config files could not be read.", e);
+        }
+    }
+
+    /**
+     * Loads mime types from given file.
+     * Key {@code compress.types} holds a comma separated list of mime types that should be compressed,
+     * all other keys are file extensions.
+     *
+     * @param p                 Path to a mime properties file.
+     * @param mimeTypes         Map mime types are put into.
+     * @param compressibleTypes Set compressible types are put into.
+     * @throws RuntimeException If config file could not be read.
+     */
+    private static void loadMimeTypes(Path p, Map<String, String> mimeTypes, Set<String> compressibleTypes) {
+        Properties properties = new Properties();
+        try {
+            properties.load(Files.newBufferedReader(p));
+        } catch (IOException | IllegalArgumentException e) {
+            throw new RuntimeException("Mime config could not be read.");
+        }
+        properties.forEach((key, value) -> {
+            if (key.equals("compress.types")) {
+                for (String type : ((String) value).split(",")) {
+                    if (type.isBlank() == false) {
+                        compressibleTypes.add(type.trim());
+                    }
+                }
+            } else {
+                mimeTypes.put((String) key, (String) value);
+            }
+        });
+    }
+
+    /**
+     * Loads workers and caching rules from given workers config file. Keys starting with {@code cache.} are not
+     * workers but caching rules of paths following the prefix, see {@link ResponseCache.Rule#parse(String)}.
+     *
+     * @param p          Path of the workers config file.
+     * @param previous   Previous snapshot whose workers are reused, can be {@code null}.
+     * @param workers    Map workers are put into.
+     * @param cacheRules Map caching rules are put into.
+     * @throws RuntimeException If config is not readable or is invalid.
+     */
+    private static void loadWorkers(Path p, RoutingConfig previous, Map<String, IWebWorker> workers,
+                                    Map<String, ResponseCache.Rule> cacheRules) {
+        Properties properties = new Properties();
+        try {
+            properties.load(Files.newBufferedReader(p));
+        } catch (IOException | IllegalArgumentException e) {
+            throw new RuntimeException("Worker's configuration file could not be read.");
+        }
+        properties.forEach((key, value) -> {
+            String path = (String) key;
+            String className = ((String) value).trim();
+            if (path.startsWith(CACHE_PREFIX)) {
+                try {
+                    cacheRules.put(path.substring(CACHE_PREFIX.length()), ResponseCache.Rule.parse((String) value));
+                } catch (IllegalArgumentException e) {
+                    throw new RuntimeException("Workers config file has invalid cache entries.", e);
+                }
+                return;
+            }
+            IWebWorker worker = previous == null ? null : previous.routes.find(path);
+            if (worker == null || worker.getClass().getName().equals(className) == false) {
+                try {
+                    Class<?> referenceToClass = RoutingConfig.class.getClassLoader().loadClass(className);
+                    worker = (IWebWorker) referenceToClass.getConstructor().newInstance();
+                } catch (ClassNotFoundException | InvocationTargetException | ClassCastException
+                        | InstantiationException | IllegalAccessException | NoSuchMethodException e) {
+                    throw new RuntimeException("Workers config file has invalid entries.");
+                }
+            }
+            workers.put(path, worker);
+        });
+    }
+
+    /**
+     * @param extension File extension, without the dot.
+     * @return Mime type of files with given extension.
+     */
+    String getMimeType(String extension) {
+        return mimeTypes.getOrDefault(extension, "application/octet-stream");
+    }
+
+    /**
+     * @return Mime types whose responses are compressed if client accepts it.
+     */
+    Set<String> getCompressibleTypes() {
+        return compressibleTypes;
+    }
+
+    /**
+     * @return Table used to find workers serving request paths.
+     */
+    RouteTable getRoutes() {
+        return routes;
+    }
+
+    /**
+     * @param path Request path.
+     * @return Caching rule of given path, {@code null} if its responses are not cached.
+     */
+    ResponseCache.Rule getCacheRule(String path) {
+        return cacheRules.get(path);
+    }
+
+    /**
+     * @return Version of config files this snapshot was read from.
+     */
+    String getVersion() {
+        return version;
+    }
+}
@@ -0,0 +1,489 @@
+package hr.fer.zemris.java.webserver;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Instrumentation of the server, safe for use from multiple threads.
+ * All recording is done with {@link LongAdder}s and atomic arrays, no locks are taken on the request path.
+ * Metrics are exposed in the plain text exposition format understood by Prometheus.
+ *
+ * @author Jan Capek
+ */
+class ServerMetrics {
+
+    /**
+     * Prefix of all metric names.
+     */
+    private static final String PREFIX = "smarthttp_";
+
+    /**
+     * Maximum number of distinct routes, requests to further routes are recorded under {@link #OTHER_ROUTE}.
+     */
+    private static final int MAX_ROUTES = 512;
+
+    /**
+     * Route name used once route limit is reached.
+     */
+    private static final String OTHER_ROUTE = "other";
+
+    /**
+     * Quantiles exported for every latency histogram.
+     */
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    /**
+     * Recorded routes mapped by kind and name.
+     */
+    private ConcurrentMap<String, Route> routes = new ConcurrentHashMap<>();
+
+    /**
+     * Bytes read from clients.
+     */
+    private LongAdder bytesIn = new LongAdder();
+
+    /**
+     * Bytes sent to clients.
+     */
+    private LongAdder bytesOut = new LongAdder();
+
+    /**
+     * Number of accepted connections.
+     */
+    private LongAdder connectionsAccepted = new LongAdder();
+
+    /**
+     * Number of currently open connections.
+     */
+    private LongAdder connectionsOpen = new LongAdder();
+
+    /**
+     * Number of requests currently being served.
+     */
+    private LongAdder requestsInFlight = new LongAdder();
+
+    /**
+     * Number of workers submitted to the executor which have not started yet.
+     */
+    private LongAdder queued = new LongAdder();
+
+    /**
+     * Values read from other server components when metrics are rendered.
+     */
+    private List<Gauge> gauges = new ArrayList<>();
+
+    /**
+     * Returns the route with given kind and name, creating it on first use.
+     *
+     * @param kind Kind of the route: {@code worker}, {@code script}, {@code static} or {@code none}.
+     * @param name Route name, usually the request path.
+     * @return Route.
+     * @throws NullPointerException If any of the arguments is {@code null}.
+     */
+    Route route(String kind, String name) {
+        String key = Objects.requireNonNull(kind) + ' ' + Objects.requireNonNull(name);
+        Route route = routes.get(key);
+        if (route != null) {
+            return route;
+        }
+        if (routes.size() >= MAX_ROUTES) {
+            return routes.computeIfAbsent(kind + ' ' + OTHER_ROUTE, k -> new Route(kind, OTHER_ROUTE));
+        }
+        return routes.computeIfAbsent(key, k -> new Route(kind, name));
+    }
+
+    /**
+     * Registers a value that is read every time metrics are rendered. Must be called before the server starts.
+     *
+     * @param name    Metric name without prefix.
+     * @param type    Metric type, {@code counter} or {@code gauge}.
+     * @param help    Description of the metric.
+     * @param reading Function reading the current value.
+     * @throws NullPointerException If any of the arguments is {@code null}.
+     */
+    void register(String name, String type, String help, LongSupplier reading) {
+        gauges.add(new Gauge(Objects.requireNonNull(name), Objects.requireNonNull(type),
+                Objects.requireNonNull(help), Objects.requireNonNull(reading)));
+    }
+
+    /**
+     * Records a new client connection.
+     */
+    void connectionOpened() {
+        connectionsAccepted.increment();
+        connectionsOpen.increment();
+    }
+
+    /**
+     * Records that a client connection has been closed.
+     */
+    void connectionClosed() {
+        connectionsOpen.decrement();
+    }
+
+    /**
+     * Records that a worker has been submitted to the executor.
+     */
+    void workerQueued() {
+        queued.increment();
+    }
+
+    /**
+     * Records that a submitted worker has started running.
+     */
+    void workerStarted() {
+        queued.decrement();
+    }
+
+    /**
+     * Records that serving of a request has started.
+     */
+    void requestStarted() {
+        requestsInFlight.increment();
+    }
+
+    /**
+     * Records a served request.
+     *
+     * @param route       Route that served the request.
+     * @param statusCode  Response status code.
+     * @param nanoseconds Time it took to serve the request.
+     * @throws NullPointerException If given route is {@code null}.
+     */
+    void requestCompleted(Route route, int statusCode, long nanoseconds) {
+        requestsInFlight.decrement();
+        route.record(statusCode, nanoseconds);
+    }
+
+    /**
+     * @param bytes Number of bytes read from a client.
+     */
+    void bytesReceived(long bytes) {
+        bytesIn.add(bytes);
+    }
+
+    /**
+     * @param bytes Number of bytes sent to a client.
+     */
+    void bytesSent(long bytes) {
+        bytesOut.add(bytes);
+    }
+
+    /**
+     * Renders all metrics in the plain text exposition format.
+     *
+     * @return Rendered metrics.
+     */
+    String render() {
+        StringBuilder sb = new StringBuilder(4096);
+        writeValue(sb, "connections_accepted_total", "counter", "Accepted client connections.", connectionsAccepted.sum());
+        writeValue(sb, "connections_open", "gauge", "Currently open client connections.", connectionsOpen.sum());
+        writeValue(sb, "requests_in_flight", "gauge", "Requests currently being served.", requestsInFlight.sum());
+        writeValue(sb, "executor_queue_depth", "gauge", "Workers waiting for an executor thread.", queued.sum());
+        writeValue(sb, "received_bytes_total", "counter", "Bytes read from clients.", bytesIn.sum());
+        writeValue(sb, "sent_bytes_total", "counter", "Bytes sent to clients.", bytesOut.sum());
+        for (Gauge gauge : gauges) {
+            writeValue(sb, gauge.name, gauge.type, gauge.help, gauge.reading.getAsLong());
+        }
+
+//            sort routes so that output is stable
+        Map<String, Route> sorted = new TreeMap<>(routes);
+        writeHeader(sb, "requests_total", "counter", "Served requests by route and status code.");
+        for (Route route : sorted.values()) {
+            for (Map.Entry<Integer, LongAdder> e : new TreeMap<>(route.statuses).entrySet()) {
+                sb.append(PREFIX).append("requests_total");
+                route.appendLabels(sb).append(",status=\"").append(e.getKey()).append("\"} ")
+                        .append(e.getValue().sum()).append('\n');
+            }
+        }
+        writeHeader(sb, "request_duration_seconds", "summary", "Time from parsed request to completed response.");
+        for (Route route : sorted.values()) {
+            route.latency.appendSummary(sb, route);
+        }
+        writeHeader(sb, "request_duration_seconds_max", "gauge", "Longest time it took to serve a request.");
+        for (Route route : sorted.values()) {
+            sb.append(PREFIX).append("request_duration_seconds_max");
+            route.appendLabels(sb).append("} ").append(seconds(route.latency.max.get())).append('\n');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Appends a metric with a single value.
+     *
+     * @param sb    Builder the metric is appended to.
+     * @param name  Name of the metric, without the common prefix.
+     * @param type  Type of the metric, {@code counter} or {@code gauge}.
+     * @param help  Description of the metric.
+     * @param value Current value of the metric.
+     */
+    private static void writeValue(StringBuilder sb, String name, String type, String help, long value) {
+        writeHeader(sb, name, type, help);
+        sb.append(PREFIX).append(name).append(' ').append(value).append('\n');
+    }
+
+    /**
+     * Appends help and type lines of a metric.
+     *
+     * @param sb   Builder the lines are appended to.
+     * @param name Name of the metric, without the common prefix.
+     * @param type Type of the metric.
+     * @param help Description of the metric.
+     */
+    private static void writeHeader(StringBuilder sb, String name, String type, String help) {
+        sb.append("# HELP ").append(PREFIX).append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(PREFIX).append(name).append(' ').append(type).append('\n');
+    }
+
+    /**
+     * @param microseconds Duration in microseconds.
+     * @return Duration in seconds formatted for the exposition format.
+     */
+    private static String seconds(long microseconds) {
+        return String.format(Locale.ROOT, "%.6f", microseconds / 1e6);
+    }
+
+    /**
+     * Escapes a label value.
+     *
+     * @param value Label value.
+     * @return Value with backslashes, quotes and line feeds escaped.
+     */
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    /**
+     * Requests served by one worker, script or by static files, together with their status codes and latencies.
+     */
+    static class Route {
+        /**
+         * Kind of the route.
+         */
+        private final String kind;
+        /**
+         * Route name.
+         */
+        private final String name;
+        /**
+         * Number of requests mapped by status code.
+         */
+        private final ConcurrentMap<Integer, LongAdder> statuses = new ConcurrentHashMap<>();
+        /**
+         * Request latencies.
+         */
+        private final Histogram latency = new Histogram();
+
+        /**
+         * @param kind Kind of the route.
+         * @param name Route name.
+         */
+        private Route(String kind, String name) {
+            this.kind = kind;
+            this.name = name;
+        }
+
+        /**
+         * Records a served request.
+         *
+         * @param statusCode  Status code of the response.
+         * @param nanoseconds Time it took to serve the request in nanoseconds.
+         */
+        private void record(int statusCode, long nanoseconds) {
+            LongAdder count = statuses.get(statusCode);
+            if (count == null) {
+                count = statuses.computeIfAbsent(statusCode, k -> new LongAdder());
+            }
+            count.increment();
+            latency.record(nanoseconds / 1000);
+        }
+
+        /**
+         * Appends labels of this route, without the closing brace.
+         *
+         * @param sb Builder the labels are appended to.
+         * @return Given builder.
+         */
+        private StringBuilder appendLabels(StringBuilder sb) {
+            return sb.append("{kind=\"").append(kind).append("\",route=\"").append(escape(name)).append('"');
+        }
+    }
+
+    /**
+     * Histogram of durations in microseconds with logarithmic buckets, each power of two is split into
+     * {@value #SUB_BUCKETS} linear sub-buckets. Values are recorded with a relative error of at most 1/16
+     * using only atomic increments.
+     */
+    static class Histogram {
+        /**
+         * Number of sub-buckets in each power of two.
+         */
+        private static final int SUB_BUCKETS = 16;
+        /**
+         * Largest recorded value, larger values are recorded as this one. It is about 38 hours.
+         */
+        private static final long MAX_VALUE = (1L << 37) - 1;
+        /**
+         * Number of buckets.
+         */
+        private static final int BUCKETS = index(MAX_VALUE) + 1;
+
+        /**
+         * Number of values in each bucket.
+         */
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        /**
+         * Number of recorded values.
+         */
+        private final LongAdder count = new LongAdder();
+        /**
+         * Sum of recorded values.
+         */
+        private final LongAdder sum = new LongAdder();
+        /**
+         * Largest recorded value.
+         */
+        private final AtomicLong max = new AtomicLong();
+
+        /**
+         * Records a value.
+         *
+         * @param value Value in microseconds, negative values are recorded as zero.
+         */
+        void record(long value) {
+            value = Math.min(Math.max(value, 0), MAX_VALUE);
+            counts.incrementAndGet(index(value));
+            count.increment();
+            sum.add(value);
+            long current = max.get();
+            while (value > current && max.compareAndSet(current, value) == false) {
+                current = max.get();
+            }
+        }
+
+        /**
+         * Returns an upper bound of the value at given quantile.
+         *
+         * @param quantile Quantile between 0 and 1.
+         * @return Largest value of the bucket holding the quantile, 0 if nothing is recorded.
+         */
+        long quantile(double quantile) {
+            long[] snapshot = snapshot();
+            return quantile(snapshot, snapshot[BUCKETS], quantile);
+        }
+
+        /**
+         * @return Counts of all buckets followed by their total, read without stopping concurrent recording.
+         */
+        private long[] snapshot() {
+            long[] snapshot = new long[BUCKETS + 1];
+            for (int i = 0; i < BUCKETS; i++) {
+                snapshot[i] = counts.get(i);
+                snapshot[BUCKETS] += snapshot[i];
+            }
+            return snapshot;
+        }
+
+        /**
+         * Returns an upper bound of the value at given quantile of given bucket counts.
+         *
+         * @param snapshot Bucket counts.
+         * @param total    Sum of all bucket counts.
+         * @param quantile Quantile between {@code 0} and {@code 1}.
+         * @return Upper bound of the bucket holding the value at given quantile, at most the largest recorded value.
+         */
+        private long quantile(long[] snapshot, long total, double quantile) {
+            if (total == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(quantile * total));
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += snapshot[i];
+                if (seen >= rank) {
+                    return Math.min(highestValue(i), max.get());
+                }
+            }
+            return max.get();
+        }
+
+        /**
+         * Appends quantiles, sum and count of this histogram.
+         *
+         * @param sb    Builder the summary is appended to.
+         * @param route Route the histogram belongs to.
+         */
+        private void appendSummary(StringBuilder sb, Route route) {
+            long[] snapshot = snapshot();
+            long total = snapshot[BUCKETS];
+            for (double q : QUANTILES) {
+                sb.append(PREFIX).append("request_duration_seconds");
+                route.appendLabels(sb).append(",quantile=\"").append(q).append("\"} ")
+                        .append(seconds(quantile(snapshot, total, q))).append('\n');
+            }
+            sb.append(PREFIX).append("request_duration_seconds_sum");
+            route.appendLabels(sb).append("} ").append(seconds(sum.sum())).append('\n');
+            sb.append(PREFIX).append("request_duration_seconds_count");
+            route.appendLabels(sb).append("} ").append(total).append('\n');
+        }
+
+        /**
+         * @param value Value between 0 and {@link #MAX_VALUE}.
+         * @return Index of the bucket holding given value.
+         */
+        static int index(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int subBucket = (int) (value >>> (exponent - 4)) - SUB_BUCKETS;
+            return (exponent - 3) * SUB_BUCKETS + subBucket;
+        }
+
+        /**
+         * @param index Bucket index.
+         * @return Largest value held by the bucket with given index.
+         */
+        static long highestValue(int index) {
+            if (index < SUB_BUCKETS) {
+                return index;
+            }
+            int exponent = index / SUB_BUCKETS + 3;
+            long mantissa = index % SUB_BUCKETS + SUB_BUCKETS;
+            return ((mantissa + 1) << (exponent - 4)) - 1;
+        }
+    }
+
+    /**
+     * Value read from another server component.
+     */
+    private static class Gauge {
+        private final String name;
+        private final String type;
+        private final String help;
+        private final LongSupplier reading;
+
+        /**
+         * @param name    Metric name without prefix.
+         * @param type    Metric type.
+         * @param help    Description of the metric.
+         * @param reading Function reading the current value.
+         */
+        Gauge(String name, String type, String help, LongSupplier reading) {
+            this.name = name;
+            this.type = type;
+            this.help = help;
+            this.reading = reading;
+        }
+    }
+}
@@ -0,0 +1,309 @@
+package hr.fer.zemris.java.webserver;
+
+import java.security.SecureRandom;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Thread safe store of user sessions. Sessions are kept in a concurrent map keyed by session id and,
+ * ordered by expiry time, in a priority queue. Expired sessions are therefore removed by taking them
+ * from the head of the queue, without scanning all sessions. If the number of sessions reaches the limit,
+ * session closest to its expiry is evicted to make room for a new one.
+ * <p>
+ * Sessions live only in memory; {@link PersistentSessionStore} extends this store to keep them on disk.
+ *
+ * @author Jan Capek
+ */
+class SessionStore {
+
+    /**
+     * Length of generated session ids.
+     */
+    private static final int SID_LENGTH = 20;
+
+    /**
+     * Source of session ids, which must not be predictable from previously issued ones.
+     */
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    /**
+     * Session duration in milliseconds.
+     */
+    private long timeout;
+
+    /**
+     * Maximum number of stored sessions.
+     */
+    private int maxSessions;
+
+    /**
+     * Sessions mapped by their ids.
+     */
+    private Map<String, SessionMapEntry> sessions = new ConcurrentHashMap<>();
+
+    /**
+     * Sessions ordered by expiry time.
+     */
+    private PriorityBlockingQueue<SessionMapEntry> expiryQueue =
+            new PriorityBlockingQueue<>(64, Comparator.comparingLong(SessionMapEntry::getValidUntil));
+
+    /**
+     * Number of created sessions.
+     */
+    private LongAdder created = new LongAdder();
+
+    /**
+     * Number of sessions removed because they expired.
+     */
+    private LongAdder expired = new LongAdder();
+
+    /**
+     * Number of sessions removed before expiry because session limit was reached.
+     */
+    private LongAdder evicted = new LongAdder();
+
+    /**
+     * Constructs a new session store.
+     *
+     * @param timeout     Session duration in seconds.
+     * @param maxSessions Maximum number of stored sessions.
+     * @throws IllegalArgumentException If timeout is negative or maximum number of sessions is less than 1.
+     */
+    SessionStore(int timeout, int maxSessions) {
+        if (timeout < 0) {
+            throw new IllegalArgumentException("Session timeout cannot be negative.");
+        }
+        if (maxSessions < 1) {
+            throw new IllegalArgumentException("Session limit must be at least 1.");
+        }
+        this.timeout = timeout * 1000L;
+        this.maxSessions = maxSessions;
+    }
+
+    /**
+     * Returns a valid session with given id.
+     *
+     * @param sid Session id, can be {@code null}.
+     * @return Session with given id or {@code null} if there is no such session or it has expired.
+     */
+    SessionMapEntry get(String sid) {
+        if (sid == null) {
+            return null;
+        }
+        SessionMapEntry session = sessions.get(sid);
+        if (session == null || session.validUntil <= System.currentTimeMillis()) {
+            return null;
+        }
+        return session;
+    }
+
+    /**
+     * Creates and stores a new session with a random id.
+     * If session limit is reached, session closest to its expiry is removed first.
+     *
+     * @param host Host on which session is valid.
+     * @return Created session.
+     * @throws NullPointerException If given host is {@code null}.
+     */
+    SessionMapEntry create(String host) {
+        Objects.requireNonNull(host);
+        while (sessions.size() >= maxSessions) {
+            SessionMapEntry oldest = expiryQueue.poll();
+            if (oldest == null) {
+                break;
+            }
+            if (sessions.remove(oldest.sid, oldest)) {
+                (oldest.validUntil <= System.currentTimeMillis() ? expired : evicted).increment();
+                changed(oldest);
+            }
+        }
+
+        long validUntil = System.currentTimeMillis() + timeout;
+        SessionMapEntry session;
+        do {
+            session = new SessionMapEntry(generateSid(), host, validUntil);
+        } while (sessions.putIfAbsent(session.sid, session) != null);
+        expiryQueue.add(session);
+        created.increment();
+        changed(session);
+        return session;
+    }
+
+    /**
+     * Stores a previously created session, unless it has expired or a session with the same id exists.
+     *
+     * @param session Session that needs to be stored.
+     * @return {@code true} if session was stored, {@code false} otherwise.
+     * @throws NullPointerException If given session is {@code null}.
+     */
+    boolean restore(SessionMapEntry session) {
+        if (session.validUntil <= System.currentTimeMillis() || sessions.size() >= maxSessions) {
+            return false;
+        }
+        if (sessions.putIfAbsent(session.sid, session) != null) {
+            return false;
+        }
+        expiryQueue.add(session);
+        return true;
+    }
+
+    /**
+     * Notifies the store that a request which used given session has been served,
+     * so its parameters might have changed.
+     *
+     * @param session Session used by the request.
+     */
+    void update(SessionMapEntry session) {
+        changed(session);
+    }
+
+    /**
+     * Called whenever a session is created, removed or possibly modified. This store does nothing.
+     *
+     * @param session Changed session.
+     */
+    void changed(SessionMapEntry session) {
+    }
+
+    /**
+     * Checks if given session is currently stored.
+     *
+     * @param session Session that needs to be checked.
+     * @return {@code true} if session has not been removed, {@code false} otherwise.
+     */
+    boolean contains(SessionMapEntry session) {
+        return sessions.get(session.sid) == session;
+    }
+
+    /**
+     * @return Read-only view of all stored sessions, including expired ones that have not been removed yet.
+     */
+    Iterable<SessionMapEntry> sessions() {
+        return Collections.unmodifiableCollection(sessions.values());
+    }
+
+    /**
+     * Starts any background work of the store. This store has none.
+     */
+    void start() {
+    }
+
+    /**
+     * Stops background work of the store. This store has none.
+     */
+    void close() {
+    }
+
+    /**
+     * Generates a random session id made of upper case letters.
+     *
+     * @return Session id.
+     */
+    String generateSid() {
+        StringBuilder sb = new StringBuilder(SID_LENGTH);
+        RANDOM.ints(SID_LENGTH, 'A', 'Z' + 1).forEach(c -> sb.append((char) c));
+        return sb.toString();
+    }
+
+    /**
+     * Removes all expired sessions. Only sessions at the head of the expiry queue are visited.
+     *
+     * @return Number of removed sessions.
+     */
+    int removeExpired() {
+        int removed = 0;
+        long now = System.currentTimeMillis();
+        while (true) {
+            SessionMapEntry head = expiryQueue.poll();
+            if (head == null) {
+                return removed;
+            }
+            if (head.validUntil > now) {
+//                earliest session is still valid, so are all others
+                expiryQueue.add(head);
+                return removed;
+            }
+            if (sessions.remove(head.sid, head)) {
+                expired.increment();
+                removed++;
+                changed(head);
+            }
+        }
+    }
+
+    /**
+     * @return Number of stored sessions.
+     */
+    int size() {
+        return sessions.size();
+    }
+
+    /**
+     * @return Number of created sessions.
+     */
+    long getCreated() {
+        return created.sum();
+    }
+
+    /**
+     * @return Number of sessions removed because they expired.
+     */
+    long getExpired() {
+        return expired.sum();
+    }
+
+    /**
+     * @return Number of sessions removed before expiry because session limit was reached.
+     */
+    long getEvicted() {
+        return evicted.sum();
+    }
+
+    /**
+     * Session map entry for storing sessions.
+     */
+    static class SessionMapEntry {
+        final String sid;
+        final String host;
+        final long validUntil;
+        final Map<String, String> map;
+
+        /**
+         * Flag that indicates if session is waiting to be persisted.
+         */
+        final AtomicBoolean queued = new AtomicBoolean();
+
+        /**
+         * Last persisted form of the session, used only by the persisting thread.
+         */
+        String persisted;
+
+        /**
+         * Constructs a new session map entry with given attributes.
+         *
+         * @param sid        Session id.
+         * @param host       Host on which session is valid.
+         * @param validUntil Time in milliseconds until which session is valid.
+         * @throws NullPointerException If given sid or host is {@code null}.
+         */
+        SessionMapEntry(String sid, String host, long validUntil) {
+            this.sid = Objects.requireNonNull(sid);
+            this.host = Objects.requireNonNull(host);
+            this.validUntil = validUntil;
+            map = new ConcurrentHashMap<>();
+        }
+
+        /**
+         * @return Time in milliseconds until which session is valid.
+         */
+        long getValidUntil() {
+            return validUntil;
+        }
+    }
+}
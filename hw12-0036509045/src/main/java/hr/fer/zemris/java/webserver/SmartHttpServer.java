@@ -1,21 +1,36 @@
 package hr.fer.zemris.java.webserver;
 
-import hr.fer.zemris.java.custom.scripting.exec.SmartScriptEngine;
+import hr.fer.zemris.java.custom.scripting.exec.CompiledScript;
 import hr.fer.zemris.java.custom.scripting.exec.SmartScriptRuntimeException;
-import hr.fer.zemris.java.custom.scripting.parser.SmartScriptParser;
 
 import java.io.*;
 import java.lang.reflect.InvocationTargetException;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * Smart script http server.
@@ -24,6 +39,11 @@ import java.util.regex.Pattern;
  */
 public class SmartHttpServer {
 
+    /**
+     * Size of buffers used to read requests.
+     */
+    private static final int READ_BUFFER_SIZE = 8 * 1024;
+
     /**
      * Server's ip address.
      */
@@ -40,20 +60,78 @@ public class SmartHttpServer {
      * Number of worker threads the server has.
      */
     private int workerThreads;
+    /**
+     * Executor used for client workers, either {@code fixed} pool of {@link #workerThreads} threads
+     * or {@code virtual} thread per request.
+     */
+    private String executorMode;
+    /**
+     * Connection engine used to accept clients, either {@code blocking} or {@code nio}.
+     */
+    private String connectionMode;
+    /**
+     * Number of threads accepting connections, each with its own listening socket or selector.
+     */
+    private int acceptorThreads;
+    /**
+     * Number of seconds a persistent connection can stay idle before it is closed.
+     */
+    private int keepAliveTimeout;
+    /**
+     * Maximum number of requests served over a single persistent connection.
+     */
+    private int keepAliveMaxRequests;
+    /**
+     * Number of seconds an asynchronous worker has to complete its response.
+     */
+    private int asyncTimeout;
+    /**
+     * Size of the response buffer in bytes.
+     */
+    private int responseBufferSize;
+    /**
+     * Maximum size of request line and header fields in bytes.
+     */
+    private int maxHeaderSize;
+    /**
+     * Maximum size of request body in bytes.
+     */
+    private int maxBodySize;
+    /**
+     * Maximum number of workers waiting for an executor thread before new connections are refused,
+     * {@code 0} if not limited.
+     */
+    private int maxQueuedConnections;
     /**
      * Session timeout time.
      */
     private int sessionTimeout;
     /**
-     * Map of supported mime types.
+     * Number of seconds in-flight requests have to complete once server is stopped.
+     */
+    private int shutdownTimeout;
+    /**
+     * Path to config file for extension to mime-type mappings.
      */
-    private Map<String, String> mimeTypes = new HashMap<>();
+    private Path mimeConfigPath;
     /**
-     * Server's main thread.
+     * Path to config file for url to worker mappings.
      */
-    private ServerThread serverThread;
+    private Path workersConfigPath;
     /**
-     * Thread for cleaning sessions.
+     * Flag that indicates if config files are reloaded when they change.
+     */
+    private boolean watchConfig;
+    /**
+     * Current configuration read from mime and workers config files.
+     */
+    private volatile RoutingConfig routing;
+    /**
+     * Threads accepting connections, in nio mode they also read request headers.
+     */
+    private List<ServerThread> serverThreads = new ArrayList<>();
+    /**
+     * Thread for cleaning sessions and state of idle clients, and reloading changed configuration.
      */
     private SessionCleaner sessionCleanerThread;
     /**
@@ -65,19 +143,103 @@ public class SmartHttpServer {
      */
     private Path documentRoot;
     /**
-     * Web workers used to process request.
+     * Flag that indicates that server is stopping, so persistent connections are closed after their current request.
+     */
+    private volatile boolean draining;
+    /**
+     * Sockets of admitted connections that are still open.
+     */
+    private Set<Socket> connections = ConcurrentHashMap.newKeySet();
+    /**
+     * Sockets of connections whose workers wait for the next request.
+     */
+    private Set<Socket> idleConnections = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Store of user sessions.
+     */
+    private SessionStore sessions;
+
+    /**
+     * Cache of parsed smart scripts.
+     */
+    private SmartScriptCache scriptCache;
+
+    /**
+     * Cache of static files.
      */
-    private Map<String, IWebWorker> workersMap = new HashMap<>();
+    private StaticFileCache staticCache;
 
     /**
-     * Map of sessions.
+     * Cache of generated responses.
      */
-    private Map<String, SessionMapEntry> sessions = new HashMap<>();
+    private ResponseCache responseCache;
 
     /**
-     * Random session id generator.
+     * Limits of individual clients.
      */
-    private Random sessionRandom = new Random();
+    private ClientLimiter limiter;
+
+    /**
+     * Lower case name of the header in which trusted proxies report client addresses, {@code null} if
+     * clients are identified by connecting addresses only.
+     */
+    private String clientAddressHeader;
+
+    /**
+     * Addresses of proxies whose client address header is trusted.
+     */
+    private Set<InetAddress> trustedProxies = new HashSet<>();
+
+    /**
+     * Number of workers waiting for an executor thread.
+     */
+    private AtomicInteger queuedWorkers = new AtomicInteger();
+
+    /**
+     * Number of connections refused because too many workers were waiting for an executor thread.
+     */
+    private LongAdder overloadRefusals = new LongAdder();
+
+    /**
+     * Number of times configuration has been reloaded.
+     */
+    private LongAdder configReloads = new LongAdder();
+
+    /**
+     * Number of times configuration could not be reloaded.
+     */
+    private LongAdder configReloadFailures = new LongAdder();
+
+    /**
+     * Lock held while configuration is reloaded, so concurrent reloads do not lose each other's workers.
+     */
+    private final Object routingLock = new Object();
+
+    /**
+     * Version of config files that could not be loaded, so they are not retried until they change again.
+     */
+    private String failedConfigVersion;
+
+    /**
+     * Access log of served requests, {@code null} if requests are not logged.
+     */
+    private AccessLog accessLog;
+
+    /**
+     * Server instrumentation.
+     */
+    private ServerMetrics metrics = new ServerMetrics();
+
+    /**
+     * Path serving metrics to allowed clients, {@code null} if metrics are not served.
+     */
+    private String metricsPath;
+
+    /**
+     * Addresses of clients allowed to read metrics.
+     */
+    private Set<InetAddress> metricsClients = new HashSet<>();
 
     /**
      * Constructs a new server configured by config file whose path is given as an argument.
@@ -108,6 +270,7 @@ public class SmartHttpServer {
             return;
         }
         SmartHttpServer server = new SmartHttpServer(args[0]);
+        Runtime.getRuntime().addShutdownHook(new Thread(server::stop));
         server.start();
     }
 
@@ -125,10 +288,116 @@ public class SmartHttpServer {
             domainName = Objects.requireNonNull(properties.getProperty("server.domainName"));
             port = Integer.parseInt(properties.getProperty("server.port"));
             workerThreads = Integer.parseInt(properties.getProperty("server.workerThreads"));
+            executorMode = properties.getProperty("server.executor", "fixed");
+            if (executorMode.equals("fixed") == false && executorMode.equals("virtual") == false) {
+                throw new RuntimeException("Unknown executor: " + executorMode);
+            }
+            if (executorMode.equals("virtual")) {
+                createVirtualThreadExecutor().shutdown();
+            }
+            connectionMode = properties.getProperty("server.connectionMode", "blocking");
+            if (connectionMode.equals("blocking") == false && connectionMode.equals("nio") == false) {
+                throw new RuntimeException("Unknown connection mode: " + connectionMode);
+            }
+            acceptorThreads = Integer.parseInt(properties.getProperty("server.acceptorThreads", "1"));
+            if (acceptorThreads < 0) {
+                throw new RuntimeException("Number of acceptor threads cannot be negative.");
+            }
+            if (acceptorThreads == 0) {
+                acceptorThreads = Runtime.getRuntime().availableProcessors();
+            }
+            scriptCache = new SmartScriptCache(Integer.parseInt(properties.getProperty("server.scriptCacheSize", "256")));
+            staticCache = new StaticFileCache(
+                    Long.parseLong(properties.getProperty("server.staticCacheSize", "16777216")),
+                    Long.parseLong(properties.getProperty("server.staticCacheMaxFileSize", "1048576"))
+            );
+            responseCache = new ResponseCache(
+                    Long.parseLong(properties.getProperty("server.responseCacheSize", "16777216")),
+                    Integer.parseInt(properties.getProperty("server.responseCacheMaxEntrySize", "1048576"))
+            );
+            keepAliveTimeout = Integer.parseInt(properties.getProperty("server.keepAliveTimeout", "5"));
+            keepAliveMaxRequests = Integer.parseInt(properties.getProperty("server.keepAliveMaxRequests", "100"));
+            asyncTimeout = Integer.parseInt(properties.getProperty("server.asyncTimeout", "60"));
+            responseBufferSize = Integer.parseInt(properties.getProperty("server.responseBufferSize",
+                    Integer.toString(RequestContext.DEFAULT_BUFFER_SIZE)));
+            if (responseBufferSize < 0) {
+                throw new RuntimeException("Response buffer size cannot be negative.");
+            }
+            maxHeaderSize = Integer.parseInt(properties.getProperty("server.maxHeaderSize", "16384"));
+            maxBodySize = Integer.parseInt(properties.getProperty("server.maxBodySize", "1048576"));
+            if (maxHeaderSize < 1 || maxBodySize < 0) {
+                throw new RuntimeException("Invalid request size limits.");
+            }
+            maxQueuedConnections = Integer.parseInt(properties.getProperty("server.maxQueuedConnections", "1024"));
+            if (maxQueuedConnections < 0) {
+                throw new RuntimeException("Maximum number of queued connections cannot be negative.");
+            }
+            try {
+                limiter = new ClientLimiter(
+                        Double.parseDouble(properties.getProperty("server.clientRequestRate", "0")),
+                        Integer.parseInt(properties.getProperty("server.clientRequestBurst", "1")),
+                        Integer.parseInt(properties.getProperty("server.maxClientConnections", "0"))
+                );
+            } catch (IllegalArgumentException e) {
+                throw new RuntimeException("Invalid client limits.", e);
+            }
+            clientAddressHeader = properties.getProperty("server.clientAddressHeader");
+            if (clientAddressHeader != null) {
+                clientAddressHeader = clientAddressHeader.trim().toLowerCase(Locale.ROOT);
+                for (String proxy : properties.getProperty("server.trustedProxies", "").split(",")) {
+                    if (proxy.isBlank() == false) {
+                        try {
+                            trustedProxies.add(InetAddress.getByName(proxy.trim()));
+                        } catch (UnknownHostException e) {
+                            throw new RuntimeException("Unknown trusted proxy: " + proxy.trim());
+                        }
+                    }
+                }
+                if (trustedProxies.isEmpty()) {
+                    throw new RuntimeException("Trusted proxies must be configured along with client address header.");
+                }
+            }
             sessionTimeout = Integer.parseInt(properties.getProperty("session.timeout"));
-            loadMimeTypes(Path.of(properties.getProperty("server.mimeConfig")));
+            int maxSessions = Integer.parseInt(properties.getProperty("session.maxSessions", "100000"));
+            String sessionDirectory = properties.getProperty("session.storeDirectory");
+            sessions = sessionDirectory == null ? new SessionStore(sessionTimeout, maxSessions) : new PersistentSessionStore(
+                    sessionTimeout, maxSessions, Path.of(sessionDirectory),
+                    Integer.parseInt(properties.getProperty("session.snapshotInterval", "60"))
+            );
+            shutdownTimeout = Integer.parseInt(properties.getProperty("server.shutdownTimeout", "30"));
             documentRoot = Path.of(properties.getProperty("server.documentRoot")).toAbsolutePath().normalize();
-            loadWorkers(Path.of(properties.getProperty("server.workers")));
+            mimeConfigPath = Path.of(properties.getProperty("server.mimeConfig"));
+            workersConfigPath = Path.of(properties.getProperty("server.workers"));
+            watchConfig = Boolean.parseBoolean(properties.getProperty("server.watchConfig", "false"));
+            routing = RoutingConfig.load(mimeConfigPath, workersConfigPath, null);
+            metricsPath = properties.getProperty("server.metricsPath");
+            for (String client : properties.getProperty("server.metricsClients", "").split(",")) {
+                if (client.isBlank() == false) {
+                    try {
+                        metricsClients.add(InetAddress.getByName(client.trim()));
+                    } catch (UnknownHostException e) {
+                        throw new RuntimeException("Unknown metrics client: " + client.trim());
+                    }
+                }
+            }
+            if (metricsPath != null && metricsClients.isEmpty()) {
+                throw new RuntimeException("Clients allowed to read metrics must be configured along with metrics path.");
+            }
+            String accessLogPath = properties.getProperty("server.accessLog");
+            if (accessLogPath != null) {
+                try {
+                    accessLog = new AccessLog(
+                            Path.of(accessLogPath),
+                            properties.getProperty("server.accessLogFormat", AccessLog.JSON_FORMAT),
+                            Long.parseLong(properties.getProperty("server.accessLogMaxSize", "10485760")),
+                            Integer.parseInt(properties.getProperty("server.accessLogMaxFiles", "5")),
+                            Integer.parseInt(properties.getProperty("server.accessLogBufferSize", "65536"))
+                    );
+                } catch (IllegalArgumentException e) {
+                    throw new RuntimeException("Invalid access log configuration.", e);
+                }
+            }
+            registerMetrics();
         } catch (NullPointerException | NumberFormatException e) {
             throw new RuntimeException("Invalid configuration files.");
         } catch (IOError e) {
@@ -137,155 +406,732 @@ public class SmartHttpServer {
     }
 
     /**
-     * Loads workers from workers config file whose path is given as an argument.
-     *
-     * @param workerConfigPath Path of the workers config file.
-     * @throws NullPointerException If given path is {@code null}.
-     * @throws RuntimeException     If config is not readable or is invalid.
+     * Registers metrics read from sessions and caches.
      */
-    private void loadWorkers(Path workerConfigPath) {
-        Objects.requireNonNull(workerConfigPath);
-        Properties properties = new Properties();
-        try {
-            properties.load(Files.newBufferedReader(workerConfigPath));
-        } catch (IOException e) {
-            throw new RuntimeException("Worker's configuration file could not be read.");
+    private void registerMetrics() {
+        metrics.register("sessions", "gauge", "Stored sessions.", sessions::size);
+        metrics.register("sessions_created_total", "counter", "Created sessions.", sessions::getCreated);
+        metrics.register("sessions_expired_total", "counter", "Sessions removed because they expired.", sessions::getExpired);
+        metrics.register("sessions_evicted_total", "counter", "Sessions removed because session limit was reached.", sessions::getEvicted);
+        metrics.register("script_cache_hits_total", "counter", "Smart scripts served without parsing and compiling.", scriptCache::getHits);
+        metrics.register("script_cache_misses_total", "counter", "Smart scripts that had to be parsed and compiled.", scriptCache::getMisses);
+        metrics.register("static_cache_hits_total", "counter", "Files served without reading them.", staticCache::getHits);
+        metrics.register("static_cache_misses_total", "counter", "Files that had to be read.", staticCache::getMisses);
+        metrics.register("static_cache_bytes", "gauge", "Bytes of cached files.", staticCache::size);
+        metrics.register("response_cache_hits_total", "counter", "Responses served from the cache.", responseCache::getHits);
+        metrics.register("response_cache_misses_total", "counter", "Cacheable responses that had to be generated.", responseCache::getMisses);
+        metrics.register("response_cache_coalesced_total", "counter", "Requests that waited for a response generated by another request.", responseCache::getCoalesced);
+        metrics.register("response_cache_bytes", "gauge", "Bytes of cached responses.", responseCache::size);
+        metrics.register("clients_tracked", "gauge", "Clients whose limits are tracked.", limiter::size);
+        metrics.register("client_connections_refused_total", "counter", "Connections refused because their client had too many open.", limiter::getRefusedConnections);
+        metrics.register("client_requests_limited_total", "counter", "Requests refused because their client exceeded its rate.", limiter::getLimitedRequests);
+        metrics.register("overload_connections_refused_total", "counter", "Connections refused because too many workers were queued.", overloadRefusals::sum);
+        metrics.register("config_reloads_total", "counter", "Times mime and workers configuration was reloaded.", configReloads::sum);
+        metrics.register("config_reload_failures_total", "counter", "Times changed configuration could not be loaded.", configReloadFailures::sum);
+        if (accessLog != null) {
+            metrics.register("access_log_written_total", "counter", "Requests written to the access log.", accessLog::getWritten);
+            metrics.register("access_log_dropped_total", "counter", "Requests not logged because the access log buffer was full.", accessLog::getDropped);
         }
-        properties.forEach((key, value) -> {
-            IWebWorker worker;
-            try {
-                Class<?> referenceToClass = this.getClass().getClassLoader().loadClass((String) value);
-                worker = (IWebWorker) referenceToClass.getConstructor().newInstance();
-            } catch (ClassNotFoundException | InvocationTargetException
-                    | InstantiationException | IllegalAccessException | NoSuchMethodException e) {
-                throw new RuntimeException("Workers config file has invalid entries.");
-            }
-            if (workersMap.containsKey(key)) {
-                throw new RuntimeException("Workers config file has multiple entries for the same request path.");
-            }
-            workersMap.put((String) key, worker);
-        });
     }
 
     /**
-     * Loads mime types from a file which path is given as an argument.
+     * Reloads mime types, worker mappings and caching rules from their config files and swaps them in at once.
+     * Requests in progress finish with the configuration they started with. Workers whose mapping did not change
+     * are kept, cached responses are dropped since they might have been generated by replaced workers.
      *
-     * @param p Path to a mime properties file.
-     * @throws NullPointerException If given path is {@code null}.
-     * @throws RuntimeException     If config file could not be read.
+     * @throws RuntimeException If config files are not readable or are invalid, previous configuration is kept then.
      */
-    private void loadMimeTypes(Path p) {
-        Objects.requireNonNull(p);
-        Properties properties = new Properties();
+    protected void reloadConfig() {
+        synchronized (routingLock) {
+            routing = RoutingConfig.load(mimeConfigPath, workersConfigPath, routing);
+            responseCache.clear();
+        }
+        configReloads.increment();
+    }
+
+    /**
+     * Reloads configuration if config files have changed since it was last read. Failure is reported once
+     * per version of the files, and previous configuration stays in use.
+     */
+    private void reloadConfigIfChanged() {
+        String version;
         try {
-            properties.load(Files.newBufferedReader(p));
-        } catch (IOException e) {
-            throw new RuntimeException("Mime config could not be read.");
+            version = RoutingConfig.version(mimeConfigPath, workersConfigPath);
+        } catch (RuntimeException e) {
+            return;
+        }
+        if (version.equals(routing.getVersion()) || version.equals(failedConfigVersion)) {
+            return;
+        }
+        try {
+            reloadConfig();
+            System.out.println("Configuration reloaded.");
+        } catch (RuntimeException e) {
+            failedConfigVersion = version;
+            configReloadFailures.increment();
+            System.err.println("Configuration could not be reloaded, previous one is kept: " + e.getMessage());
         }
-        properties.forEach((key, value) -> {
-            mimeTypes.put((String) key, (String) value);
-        });
     }
 
     /**
      * Starts a server if not already started.
      */
     protected synchronized void start() {
-        if (serverThread != null) {
+        if (serverThreads.isEmpty() == false) {
             return;
         }
-        serverThread = new ServerThread();
-        threadPool = Executors.newFixedThreadPool(workerThreads);
-        serverThread.start();
+        ServerSocketChannel[] channels = openServerChannels();
+        boolean nio = connectionMode.equals("nio");
+        List<SelectorServerThread> loops = new ArrayList<>();
+        for (ServerSocketChannel channel : channels) {
+            if (nio) {
+                SelectorServerThread loop = new SelectorServerThread(channel, loops);
+                loops.add(loop);
+                serverThreads.add(loop);
+            } else {
+                serverThreads.add(new ServerThread(channel));
+            }
+        }
+        threadPool = executorMode.equals("virtual") ? createVirtualThreadExecutor() : Executors.newFixedThreadPool(workerThreads);
+        serverThreads.forEach(Thread::start);
         sessionCleanerThread = new SessionCleaner();
         sessionCleanerThread.start();
+        sessions.start();
+        if (accessLog != null) {
+            accessLog.start();
+        }
 
     }
 
     /**
-     * Stops the server from running.
+     * Opens and binds server channels, one for each acceptor thread. Where the system supports
+     * {@link StandardSocketOptions#SO_REUSEPORT}, every acceptor gets its own listening socket bound to the server
+     * port and the kernel spreads incoming connections among them. Otherwise there is a single listening socket:
+     * in blocking mode all acceptors share it, in nio mode only the first selector accepts from it and hands
+     * accepted connections to all selectors in turn, which is marked by {@code null} channels of the others.
+     * Channels are used instead of plain sockets so file contents can be transferred to clients directly.
+     *
+     * @return Server channels in blocking mode, one for each acceptor thread.
+     * @throws RuntimeException If server channels could not be opened.
+     */
+    private ServerSocketChannel[] openServerChannels() {
+        ServerSocketChannel[] channels = new ServerSocketChannel[acceptorThreads];
+        try {
+            channels[0] = ServerSocketChannel.open();
+            boolean reusePort = acceptorThreads > 1
+                    && channels[0].supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+            for (int i = 0; i < channels.length; i++) {
+                if (i > 0) {
+                    if (reusePort) {
+                        channels[i] = ServerSocketChannel.open();
+                    } else {
+                        channels[i] = connectionMode.equals("nio") ? null : channels[0];
+                        continue;
+                    }
+                }
+                if (reusePort) {
+                    channels[i].setOption(StandardSocketOptions.SO_REUSEPORT, true);
+                }
+                channels[i].bind(new InetSocketAddress((InetAddress) null, port));
+            }
+        } catch (IOException e) {
+            for (ServerSocketChannel channel : channels) {
+                closeQuietly(channel);
+            }
+            throw new RuntimeException("Server socket could not be opened.", e);
+        }
+        return channels;
+    }
+
+    /**
+     * Submits given worker to the thread pool.
+     *
+     * @param worker Worker that needs to be run.
+     */
+    private void submit(ClientWorker worker) {
+        metrics.workerQueued();
+        queuedWorkers.incrementAndGet();
+        try {
+            threadPool.submit(worker);
+        } catch (RejectedExecutionException e) {
+            queuedWorkers.decrementAndGet();
+            throw e;
+        }
+    }
+
+    /**
+     * Checks if a newly accepted connection can be served. Refused connection is sent an empty response
+     * and closed right away.
+     *
+     * @param client     Accepted client channel in blocking mode.
+     * @param checkQueue Flag that indicates if connection should be refused when executor queue is full.
+     * @return {@code true} if connection is admitted, {@code false} if it has been refused.
+     */
+    private boolean admit(SocketChannel client, boolean checkQueue) {
+        metrics.connectionOpened();
+        boolean overloaded = checkQueue && isOverloaded();
+        if (overloaded || limiter.connectionOpened(client.socket().getInetAddress()) == false) {
+            refuse(client, overloaded ? 503 : 429);
+            metrics.connectionClosed();
+            return false;
+        }
+        connections.add(client.socket());
+        return true;
+    }
+
+    /**
+     * @return {@code true} if executor queue is full and new connections should be refused.
+     */
+    private boolean isOverloaded() {
+        return maxQueuedConnections > 0 && queuedWorkers.get() >= maxQueuedConnections;
+    }
+
+    /**
+     * Sends an empty response telling the client to retry later and closes the connection.
+     * Request is not read, so the response is written straight to the channel.
+     *
+     * @param client Client channel in blocking mode.
+     * @param code   Either 503 if server is overloaded or 429 if client exceeded its limits.
+     */
+    private void refuse(SocketChannel client, int code) {
+        if (code == 503) {
+            overloadRefusals.increment();
+        }
+        String response = "HTTP/1.1 " + code + (code == 503 ? " Service Unavailable" : " Too Many Requests")
+                + "\r\nContent-Length: 0\r\nRetry-After: 1\r\nConnection: close\r\n\r\n";
+        try (client) {
+            client.write(ByteBuffer.wrap(response.getBytes(StandardCharsets.ISO_8859_1)));
+            client.shutdownOutput();
+        } catch (IOException e) {
+//            client is gone, nothing to be done
+        }
+    }
+
+    /**
+     * Records that an admitted connection has been closed.
+     *
+     * @param socket Client socket.
+     */
+    private void connectionClosed(Socket socket) {
+        connections.remove(socket);
+        idleConnections.remove(socket);
+        metrics.connectionClosed();
+        limiter.connectionClosed(socket.getInetAddress());
+    }
+
+    /**
+     * @return New request parser with configured limits.
+     */
+    private HttpRequestParser newParser() {
+        return new HttpRequestParser(maxHeaderSize, maxBodySize);
+    }
+
+    /**
+     * Creates an executor that starts a new virtual thread for each task.
+     * Virtual threads are looked up reflectively since they are not available on every supported JVM.
+     *
+     * @return New virtual thread per task executor.
+     * @throws RuntimeException If running JVM does not support virtual threads.
+     */
+    private static ExecutorService createVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (NoSuchMethodException | IllegalAccessException | InvocationTargetException e) {
+            throw new RuntimeException("Virtual threads are not supported by this JVM.", e);
+        }
+    }
+
+    /**
+     * Stops the server from running. New connections are no longer accepted, idle persistent connections are
+     * closed and the rest are closed as soon as their current request is served. Once all connections are closed,
+     * or after {@link #shutdownTimeout} seconds, remaining connections are closed forcibly and sessions are saved.
      */
     protected synchronized void stop() {
-        if (serverThread == null || serverThread.isAlive() == false) {
+        if (serverThreads.stream().noneMatch(Thread::isAlive)) {
+            return;
+        }
+        draining = true;
+        serverThreads.forEach(ServerThread::drain);
+        for (Socket socket : idleConnections) {
+            closeQuietly(socket);
+        }
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(shutdownTimeout);
+        while (connections.isEmpty() == false && System.nanoTime() - deadline < 0) {
+            try {
+                Thread.sleep(20);
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+        serverThreads.forEach(ServerThread::kill);
+        threadPool.shutdownNow();
+        for (Socket socket : connections) {
+            closeQuietly(socket);
+        }
+        sessionCleanerThread.kill();
+        sessions.close();
+        if (accessLog != null) {
+            accessLog.close();
+        }
+    }
+
+    /**
+     * Closes given socket ignoring any errors.
+     *
+     * @param socket Socket that needs to be closed.
+     */
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+//            nothing to be done
+        }
+    }
+
+    /**
+     * Closes given channel ignoring any errors.
+     *
+     * @param channel Channel that needs to be closed, can be {@code null}.
+     */
+    private static void closeQuietly(Closeable channel) {
+        if (channel == null) {
             return;
         }
-        serverThread.kill();
-        threadPool.shutdown();
-        sessionCleanerThread.kill();
-    }
+        try {
+            channel.close();
+        } catch (IOException e) {
+//            nothing to be done
+        }
+    }
+
+    /**
+     * Server thread model.
+     */
+    protected class ServerThread extends Thread {
+
+        /**
+         * Flag that indicates to a thread if it should stop running.
+         */
+        protected volatile boolean shouldTerminate;
+
+        /**
+         * Server channel clients are accepted from, {@code null} if this thread does not accept clients itself.
+         */
+        protected final ServerSocketChannel serverChannel;
+
+        /**
+         * Constructs a new server thread.
+         *
+         * @param serverChannel Bound server channel clients are accepted from, possibly shared with other threads.
+         */
+        protected ServerThread(ServerSocketChannel serverChannel) {
+            this.serverChannel = serverChannel;
+        }
+
+        /**
+         * Terminates the thread.
+         */
+        protected synchronized void kill() {
+            shouldTerminate = true;
+            drain();
+        }
+
+        /**
+         * Stops accepting new clients. Connections that have already been accepted are still served.
+         */
+        protected void drain() {
+            closeQuietly(serverChannel);
+        }
+
+        /**
+         * Server loop.
+         *
+         * @throws RuntimeException In case error with either server socket or client socket occurres.
+         */
+        @Override
+        public void run() {
+            try (serverChannel) {
+                while (true) {
+                    SocketChannel client = serverChannel.accept();
+                    if (shouldTerminate) {
+                        client.close();
+                        break;
+                    }
+                    if (admit(client, true)) {
+                        submit(new ClientWorker(client.socket()));
+                    }
+                }
+            } catch (IOException e) {
+                if (draining || shouldTerminate) {
+//                    server channel has been closed to stop accepting
+                    return;
+                }
+                throw new RuntimeException("IO error occurred with either server or client socket.");
+            }
+        }
+    }
+
+    /**
+     * Non-blocking server thread model. A selector is used to accept clients and read their request headers,
+     * only connections whose header is fully read are handed to the worker thread pool. This way slow or idle clients
+     * do not hold any worker threads. With several acceptor threads each runs its own selector, and a persistent
+     * connection always returns to the selector that accepted it.
+     */
+    protected class SelectorServerThread extends ServerThread {
+
+        /**
+         * Selector used for accepting and reading from clients.
+         */
+        private volatile Selector selector;
+
+        /**
+         * Persistent connections handed back by workers, waiting to be registered with the selector.
+         */
+        private Queue<PendingHeader> resumed = new ConcurrentLinkedQueue<>();
+
+        /**
+         * Selectors that clients accepted by this thread are spread among.
+         */
+        private List<SelectorServerThread> loops;
+
+        /**
+         * Position of the selector the next accepted client is handed to.
+         */
+        private int nextLoop;
+
+        /**
+         * Constructs a new selector thread.
+         *
+         * @param serverChannel Bound server channel clients are accepted from, {@code null} if this thread only
+         *                      serves clients handed to it by another selector thread.
+         * @param loops         All selector threads of the server. If they share a single server channel, clients
+         *                      accepted from it are spread among them, otherwise this thread keeps its clients.
+         */
+        protected SelectorServerThread(ServerSocketChannel serverChannel, List<SelectorServerThread> loops) {
+            super(serverChannel);
+            this.loops = loops;
+        }
+
+        /**
+         * Hands a connection to the selector which will wait for its next request. Used by workers to hand back
+         * persistent connections and by the accepting selector to hand over new clients.
+         *
+         * @param client         Client channel, it will be switched to non-blocking mode.
+         * @param requestsServed Number of requests already served over given connection.
+         * @throws IOException If channel mode could not be changed.
+         */
+        void resume(SocketChannel client, int requestsServed) throws IOException {
+            client.configureBlocking(false);
+            resumed.add(new PendingHeader(client, requestsServed, newParser()));
+            Selector s = selector;
+            if (s != null) {
+                s.wakeup();
+            }
+        }
+
+        @Override
+        protected synchronized void kill() {
+            shouldTerminate = true;
+            drain();
+        }
+
+        /**
+         * Wakes the selector up so it stops accepting and closes connections waiting for their next request.
+         */
+        @Override
+        protected void drain() {
+            Selector s = selector;
+            if (s != null) {
+                s.wakeup();
+            }
+        }
+
+        /**
+         * Selector loop.
+         *
+         * @throws RuntimeException In case error with either server socket or selector occurres.
+         */
+        @Override
+        public void run() {
+            try (Selector selector = Selector.open(); serverChannel) {
+                this.selector = selector;
+                if (serverChannel != null) {
+                    serverChannel.configureBlocking(false);
+                    serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+                }
+
+                List<SelectionKey> completed = new ArrayList<>();
+                long lastSweep = System.currentTimeMillis();
+                boolean drained = false;
+                while (shouldTerminate == false) {
+                    selector.select(1000);
+                    if (draining && drained == false) {
+                        closeQuietly(serverChannel);
+                        closeWaiting(selector);
+                        drained = true;
+                    }
+                    registerResumed(selector);
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        if (key.isValid() == false) {
+                            continue;
+                        }
+                        if (key.isAcceptable()) {
+                            acceptClient(serverChannel, selector);
+                        } else if (key.isReadable() && readClient(key)) {
+                            completed.add(key);
+                        }
+                    }
+                    if (completed.isEmpty() == false) {
+                        dispatchCompleted(completed, selector);
+                        completed.clear();
+                    }
+                    long now = System.currentTimeMillis();
+                    if (now - lastSweep >= 1000) {
+                        closeIdle(selector, now);
+                        lastSweep = now;
+                    }
+                }
+                for (SelectionKey key : selector.keys()) {
+                    closeQuietly(key.channel());
+                }
+            } catch (IOException e) {
+                throw new RuntimeException("IO error occurred with either server socket or selector.");
+            }
+        }
+
+        /**
+         * Accepts a pending client, if there is one, and registers it for reading with this selector or,
+         * if this is the only accepting selector, with the next selector in turn.
+         *
+         * @param serverChannel Server channel with a pending client.
+         * @param selector      Selector to register client with.
+         */
+        private void acceptClient(ServerSocketChannel serverChannel, Selector selector) {
+            SocketChannel client = null;
+            try {
+                client = serverChannel.accept();
+                if (client == null) {
+                    return;
+                }
+                if (admit(client, false) == false) {
+                    return;
+                }
+                SelectorServerThread loop = this;
+//                selectors without their own server channel get their clients from this one
+                if (loops.size() > 1 && loops.get(1).serverChannel == null) {
+                    loop = loops.get(nextLoop);
+                    nextLoop = (nextLoop + 1) % loops.size();
+                }
+                if (loop != this) {
+                    loop.resume(client, 0);
+                    return;
+                }
+                client.configureBlocking(false);
+                client.register(selector, SelectionKey.OP_READ, new PendingHeader(client, 0, newParser()));
+            } catch (IOException e) {
+                closeClient(client);
+            }
+        }
+
+        /**
+         * Registers connections handed back by workers with the selector.
+         *
+         * @param selector Selector to register connections with.
+         */
+        private void registerResumed(Selector selector) {
+            for (PendingHeader pending = resumed.poll(); pending != null; pending = resumed.poll()) {
+                if (draining) {
+                    closeClient(pending.client);
+                    continue;
+                }
+                try {
+                    pending.client.register(selector, SelectionKey.OP_READ, pending);
+                } catch (IOException e) {
+                    closeClient(pending.client);
+                }
+            }
+        }
+
+        /**
+         * Closes connections whose request header did not arrive in time.
+         *
+         * @param selector Selector whose connections are checked.
+         * @param now      Current time in milliseconds.
+         */
+        private void closeIdle(Selector selector, long now) {
+            long timeout = keepAliveTimeout * 1000L;
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof PendingHeader
+                        && now - ((PendingHeader) key.attachment()).lastActivity > timeout) {
+                    key.cancel();
+                    closeClient((SocketChannel) key.channel());
+                }
+            }
+        }
+
+        /**
+         * Closes connections that have not started sending their next request.
+         *
+         * @param selector Selector whose connections are checked.
+         */
+        private void closeWaiting(Selector selector) {
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof PendingHeader
+                        && ((PendingHeader) key.attachment()).parser.isStarted() == false) {
+                    key.cancel();
+                    closeClient((SocketChannel) key.channel());
+                }
+            }
+        }
+
+        /**
+         * Reads available data from a client.
+         *
+         * @param key Selection key of a readable client.
+         * @return {@code true} if whole request header has been read or request is invalid, {@code false} otherwise.
+         */
+        private boolean readClient(SelectionKey key) {
+            SocketChannel client = (SocketChannel) key.channel();
+            PendingHeader pending = (PendingHeader) key.attachment();
+            try {
+                if (pending.read(client)) {
+                    return true;
+                }
+                if (pending.closed == false) {
+                    return false;
+                }
+            } catch (IOException e) {
+//                client is gone, nothing to be done
+            }
+            key.cancel();
+            closeClient(client);
+            return false;
+        }
 
-    /**
-     * Session map entry for storing sessions.
-     */
-    private static class SessionMapEntry {
-        String sid;
-        String host;
-        long validUntil;
-        Map<String, String> map;
+        /**
+         * Hands clients with fully read headers over to the thread pool, together with their parsers.
+         * Channels are switched to blocking mode since workers use socket streams.
+         *
+         * @param completed Keys of clients whose headers have been read.
+         * @param selector  Selector keys are registered with.
+         * @throws IOException If selector could not be used.
+         */
+        private void dispatchCompleted(List<SelectionKey> completed, Selector selector) throws IOException {
+            for (SelectionKey key : completed) {
+                key.cancel();
+            }
+//            flush cancelled keys so channels can be put back to blocking mode
+            selector.selectNow();
+            for (SelectionKey key : completed) {
+                SocketChannel client = (SocketChannel) key.channel();
+                try {
+                    client.configureBlocking(true);
+                } catch (IOException e) {
+                    closeClient(client);
+                    continue;
+                }
+//                connections are held by the selector for free, so overload is checked once they need a thread
+                if (isOverloaded()) {
+                    refuse(client, 503);
+                    connectionClosed(client.socket());
+                    continue;
+                }
+                PendingHeader pending = (PendingHeader) key.attachment();
+                pending.buffer.flip();
+                submit(new ClientWorker(client.socket(), pending.parser, pending.buffer, pending.requestsServed, this));
+            }
+        }
 
         /**
-         * Constructs a new session map entry with given attributes.
+         * Closes given client channel ignoring any errors and records the connection as closed.
          *
-         * @param sid  Session id.
-         * @param host Host on which session is valid.
-         * @throws NullPointerException If given sid or host is {@code null}.
+         * @param client Client channel that needs to be closed, can be {@code null}.
          */
-        SessionMapEntry(String sid, String host, long validUntil) {
-            this.sid = Objects.requireNonNull(sid);
-            this.host = Objects.requireNonNull(host);
-            this.validUntil = validUntil;
-            map = new ConcurrentHashMap<>();
+        private void closeClient(SocketChannel client) {
+            if (client != null) {
+                connectionClosed(client.socket());
+            }
+            closeQuietly(client);
         }
     }
 
     /**
-     * Server thread model.
+     * Request header of a client that is being read by the {@link SelectorServerThread}.
      */
-    protected class ServerThread extends Thread {
-
+    private class PendingHeader {
         /**
-         * Flag that indicates to a thread if it should stop running.
+         * Client channel.
          */
-        private volatile boolean shouldTerminate;
-
+        private SocketChannel client;
         /**
-         * Terminates the thread.
+         * Number of requests already served over this connection.
          */
-        protected synchronized void kill() {
-            shouldTerminate = true;
-        }
+        private int requestsServed;
+        /**
+         * Time of the last read from the client in milliseconds.
+         */
+        private long lastActivity = System.currentTimeMillis();
+        /**
+         * Buffer for reading from the client, in write mode.
+         */
+        private ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        /**
+         * Parser the request is fed to.
+         */
+        private HttpRequestParser parser;
+        /**
+         * Flag that indicates that client closed the connection.
+         */
+        private boolean closed;
 
         /**
-         * Server loop.
+         * Constructs a new pending header of given client.
          *
-         * @throws RuntimeException In case error with either server socket or client socket occurres.
+         * @param client         Client channel.
+         * @param requestsServed Number of requests already served over the connection.
+         * @param parser         Parser the request is fed to.
          */
-        @Override
-        public void run() {
-            try (ServerSocket serverSocket = createServerSocket()) {
-                while (true) {
-                    Socket client = serverSocket.accept();
-                    if (shouldTerminate) {
-                        break;
-                    }
-                    ClientWorker clientWorker = new ClientWorker(client);
-                    threadPool.submit(clientWorker);
-                }
-            } catch (IOException e) {
-                throw new RuntimeException("IO error occurred with either server or client socket.");
-            }
+        PendingHeader(SocketChannel client, int requestsServed, HttpRequestParser parser) {
+            this.client = client;
+            this.requestsServed = requestsServed;
+            this.parser = parser;
         }
 
         /**
-         * Creates a new server socket and returns it.
+         * Reads available data from given channel and feeds it to the parser.
          *
-         * @return New server socket bound to the server port.
-         * @throws IOException If server socket could not be opened.
+         * @param channel Channel to read from.
+         * @return {@code true} if header has been read or request turned out to be invalid, {@code false} otherwise.
+         * @throws IOException If data could not be read.
          */
-        private ServerSocket createServerSocket() throws IOException {
-            ServerSocket serverSocket = new ServerSocket();
-            serverSocket.bind(new InetSocketAddress((InetAddress) null, port));
-            return serverSocket;
+        boolean read(SocketChannel channel) throws IOException {
+            while (true) {
+                int read = channel.read(buffer);
+                if (read == -1) {
+                    closed = true;
+                    return false;
+                }
+                if (read == 0) {
+                    return false;
+                }
+                metrics.bytesReceived(read);
+                lastActivity = System.currentTimeMillis();
+                buffer.flip();
+                try {
+                    parser.feed(buffer);
+                } catch (HttpParseException e) {
+//                    worker will get the same exception and respond with an error
+                    buffer.compact();
+                    return true;
+                }
+                buffer.compact();
+                if (parser.isHeaderComplete()) {
+                    return true;
+                }
+            }
         }
     }
 
@@ -299,7 +1145,8 @@ public class SmartHttpServer {
         private volatile boolean shouldTerminate;
 
         /**
-         * Constructs a new daemon thread for cleaning old sessions.
+         * Constructs a new daemon thread for cleaning old sessions and state of idle clients,
+         * and reloading changed configuration.
          */
         public SessionCleaner() {
             this.setDaemon(true);
@@ -317,26 +1164,17 @@ public class SmartHttpServer {
         public void run() {
             while (true) {
                 try {
-                    Thread.sleep(1000 * 60 * 5); // sleep 5 minutes
+                    Thread.sleep(1000); // expired sessions are found without a scan, so checking often is cheap
                 } catch (InterruptedException e) {
 
                 }
                 if (shouldTerminate) {
                     break;
                 }
-                cleanOldSessions();
-            }
-        }
-
-        /**
-         * Removes old sessions from the session map.
-         */
-        private void cleanOldSessions() {
-            Iterator<Map.Entry<String, SessionMapEntry>> it = sessions.entrySet().iterator();
-            while (it.hasNext()) {
-                SessionMapEntry session = it.next().getValue();
-                if (session.validUntil <= System.currentTimeMillis()) {
-                    it.remove();
+                sessions.removeExpired();
+                limiter.removeIdle();
+                if (watchConfig) {
+                    reloadConfigIfChanged();
                 }
             }
         }
@@ -347,18 +1185,33 @@ public class SmartHttpServer {
      */
     private class ClientWorker implements Runnable, IDispatcher {
         private Socket csocket;
-        private PushbackInputStream istream;
+        private InputStream istream;
+        private ByteBuffer inBuffer;
+        private HttpRequestParser parser;
         private OutputStream ostream;
         private String version;
         private String method;
         private String fullPath;
         private String host;
+        private Map<String, String> headers;
         private Map<String, String> params = new HashMap<String, String>();
         private Map<String, String> tempParams = new HashMap<String, String>();
         private Map<String, String> permParams = new HashMap<String, String>();
         private List<RequestContext.RCCookie> outputCookies = new ArrayList<RequestContext.RCCookie>();
         private String SID;
         private RequestContext context;
+        private int requestsServed;
+        private SelectorServerThread selectorThread;
+        private boolean keepAlive;
+        private boolean responseBroken;
+        private ServerMetrics.Route route;
+        private RoutingConfig config;
+        private SessionStore.SessionMapEntry session;
+        private long requestStart;
+        private long requestStartBytes;
+        private long bytesSent;
+        private CompletionStage<Void> asyncResponse;
+        private Throwable asyncError;
 
         /**
          * Constructs a new worker with given client socket.
@@ -367,88 +1220,382 @@ public class SmartHttpServer {
          * @throws NullPointerException If given socket is {@code null}.
          */
         public ClientWorker(Socket csocket) {
+            this(csocket, newParser(), ByteBuffer.allocate(READ_BUFFER_SIZE).flip(), 0, null);
+        }
+
+        /**
+         * Constructs a new worker with given client socket and a request that has already been partially read.
+         *
+         * @param csocket        Socket used to communicate with a client.
+         * @param parser         Parser that has been fed the bytes read so far.
+         * @param inBuffer       Buffer in read mode holding bytes read from the socket but not yet fed to the parser.
+         * @param requestsServed Number of requests already served over this connection.
+         * @param selectorThread Selector thread that idle persistent connection is handed back to,
+         *                       {@code null} if worker should wait for next request itself.
+         * @throws NullPointerException If given socket, parser or buffer is {@code null}.
+         */
+        public ClientWorker(Socket csocket, HttpRequestParser parser, ByteBuffer inBuffer, int requestsServed,
+                            SelectorServerThread selectorThread) {
             super();
             this.csocket = Objects.requireNonNull(csocket);
+            this.parser = Objects.requireNonNull(parser);
+            this.inBuffer = Objects.requireNonNull(inBuffer);
+            this.requestsServed = requestsServed;
+            this.selectorThread = selectorThread;
         }
 
         @Override
         public void run() {
-//            open stream and read header
-            String header;
+            metrics.workerStarted();
+            queuedWorkers.decrementAndGet();
             try {
-                istream = new PushbackInputStream(new BufferedInputStream(csocket.getInputStream()));
-                ostream = new BufferedOutputStream(csocket.getOutputStream());
-                header = readHeader(istream);
+                if (istream == null) {
+                    csocket.setSoTimeout(keepAliveTimeout * 1000);
+                    istream = csocket.getInputStream();
+                    ostream = new BufferedOutputStream(new FilterOutputStream(csocket.getOutputStream()) {
+                        @Override
+                        public void write(int b) throws IOException {
+                            out.write(b);
+                            bytesSent++;
+                        }
+
+                        @Override
+                        public void write(byte[] b, int off, int len) throws IOException {
+                            out.write(b, off, len);
+                            bytesSent += len;
+                        }
+                    });
+                }
+                boolean keepOpen = asyncResponse != null ? resumeRequest() : serveRequest();
+                while (keepOpen) {
+                    requestsServed++;
+//                    no pipelined request is waiting -> let the selector wait for the next one
+                    if (selectorThread != null && inBuffer.hasRemaining() == false && istream.available() == 0) {
+                        selectorThread.resume(csocket.getChannel(), requestsServed);
+                        return;
+                    }
+                    keepOpen = serveRequest();
+                }
+                if (asyncResponse != null) {
+                    suspend();
+                    return;
+                }
             } catch (IOException e) {
-                return;
+//                client is gone or it was idle for too long
             }
+            close();
+        }
 
-//            extract header information
+        /**
+         * Closes the connection.
+         */
+        private void close() {
+            connectionClosed(csocket);
             try {
-                extractHeaderInfo(header);
-            } catch (Exception e) {
-                sendEmptyResponse(400, "");
-                return;
+                csocket.close();
+            } catch (IOException e) {
+//                nothing to be done
             }
+        }
 
-            getSessionEntry(header);
+        /**
+         * Releases the thread while an asynchronous worker completes the response. Once it does, this worker is
+         * submitted to the thread pool again to send the response and continue serving the connection.
+         * If response is not completed in time, connection is closed since worker might still be writing to it.
+         */
+        private void suspend() {
+            CompletableFuture<Void> completion = new CompletableFuture<>();
+            asyncResponse.whenComplete((result, error) -> {
+                if (error == null) {
+                    completion.complete(null);
+                } else {
+                    completion.completeExceptionally(error);
+                }
+            });
+            completion.orTimeout(asyncTimeout, TimeUnit.SECONDS).whenComplete((result, error) -> {
+                if (error instanceof TimeoutException) {
+                    recordRequest(504);
+                    close();
+                    return;
+                }
+                asyncError = error;
+                try {
+                    submit(this);
+                } catch (RejectedExecutionException e) {
+//                    server is shutting down
+                    close();
+                }
+            });
+        }
 
-//            extract params
-            String paramString = fullPath.replaceFirst("^.*?(?:\\?|$)", "");
-            parseParameters(paramString);
+        /**
+         * Reads and serves a single request from the client.
+         *
+         * @return {@code true} if connection can be used for another request, {@code false} otherwise.
+         * @throws IOException If data could not be read or sent.
+         */
+        private boolean serveRequest() throws IOException {
+            resetRequest();
+            HttpParseException parseError = null;
+            try {
+                if (readRequest() == false) {
+                    return false;
+                }
+            } catch (HttpParseException e) {
+                parseError = e;
+            }
+            requestStart = System.nanoTime();
+            requestStartBytes = bytesSent;
+            metrics.requestStarted();
+            try {
+                if (parseError != null) {
+                    sendEmptyResponse(parseError.getStatusCode(), parseError.getMessage());
+                    context.finish();
+                    return false;
+                }
+                return respond();
+            } finally {
+                if (asyncResponse == null) {
+                    recordRequest();
+                }
+            }
+        }
 
-//            resolve requested path
-            String path = fullPath.replaceFirst("\\?.*", "");
+        /**
+         * Sends the response completed by an asynchronous worker.
+         *
+         * @return {@code true} if connection can be used for another request, {@code false} otherwise.
+         * @throws IOException If data could not be sent.
+         */
+        private boolean resumeRequest() throws IOException {
+            asyncResponse = null;
             try {
-                internalDispatchRequest(path, true);
+                if (asyncError != null) {
+                    (asyncError instanceof CompletionException && asyncError.getCause() != null
+                            ? asyncError.getCause() : asyncError).printStackTrace();
+                    sendEmptyResponse(500, "Unexpected error occurred.");
+                }
+                return completeResponse();
+            } finally {
+                recordRequest();
+            }
+        }
+
+        /**
+         * Records metrics of the request that has just been served and adds it to the access log.
+         */
+        private void recordRequest() {
+            recordRequest(context == null ? 500 : context.getStatusCode());
+        }
+
+        /**
+         * Records metrics of the request that has just been completed and adds it to the access log.
+         *
+         * @param statusCode Status code of the response.
+         */
+        private void recordRequest(int statusCode) {
+            long latency = System.nanoTime() - requestStart;
+            long bytes = bytesSent - requestStartBytes + (context == null ? 0 : context.getTransferredBytes());
+            metrics.requestCompleted(route, statusCode, latency);
+            metrics.bytesSent(bytes);
+            if (accessLog != null) {
+                accessLog.add(new AccessLog.Entry(System.currentTimeMillis(), csocket.getInetAddress().getHostAddress(),
+                        method, fullPath, statusCode, bytes, latency, SID,
+                        headers == null ? null : headers.get("user-agent")));
+            }
+        }
+
+        /**
+         * Serves a request that has been read and parsed.
+         *
+         * @return {@code true} if connection can be used for another request, {@code false} otherwise.
+         * @throws IOException If data could not be sent.
+         */
+        private boolean respond() throws IOException {
+            extractHeaderInfo();
+            keepAlive = isKeepAliveRequested() && requestsServed + 1 < keepAliveMaxRequests && draining == false;
+
+            long wait = limiter.acquire(clientAddressHeader == null ? csocket.getInetAddress() : ClientLimiter.clientOf(
+                    csocket.getInetAddress(), headers.get(clientAddressHeader), trustedProxies));
+            if (wait > 0) {
+                route = metrics.route("none", "limited");
+                sendEmptyResponse(429, "Too Many Requests");
+                context.setHeader("Retry-After", Long.toString((wait + 999_999_999) / 1_000_000_000));
+                return completeResponse();
+            }
+
+            session = getSessionEntry();
+
+//            split path and params
+            int query = fullPath.indexOf('?');
+            String path = query == -1 ? fullPath : fullPath.substring(0, query);
+            if (query != -1) {
+                parseParameters(fullPath.substring(query + 1));
+            }
+            String contentType = headers.getOrDefault("content-type", "");
+            if (contentType.regionMatches(true, 0, "application/x-www-form-urlencoded", 0, 33)) {
+                parseParameters(new String(parser.getBody(), StandardCharsets.ISO_8859_1));
+            }
+
+            try {
+                ResponseCache.Rule rule = method.equals("GET") ? config.getCacheRule(path) : null;
+                if (rule == null) {
+                    internalDispatchRequest(path, true);
+                } else {
+                    serveCached(path, rule);
+                }
             } catch (Exception e) {
                 e.printStackTrace();
                 sendEmptyResponse(500, "Unexpected error occurred.");
+                asyncResponse = null;
+            }
+            if (asyncResponse != null) {
+                return false;
+            }
+            return completeResponse();
+        }
+
+        /**
+         * Serves a request for a path whose responses are cached. Fresh cached response is served if there is one.
+         * Otherwise, if another request is already generating the response, this request waits for it and
+         * only generates the response itself if it turns out not to be cacheable.
+         *
+         * @param path Request path.
+         * @param rule Caching rule of the path.
+         * @throws Exception In case an error occurred while processing a request.
+         */
+        private void serveCached(String path, ResponseCache.Rule rule) throws Exception {
+            String key = rule.key(path, params);
+            ResponseCache.Response cached = responseCache.get(key);
+            if (cached == null) {
+                CompletableFuture<ResponseCache.Response> computation = responseCache.join(key);
+                if (computation == null) {
+                    generateCached(path, key, rule);
+                    return;
+                }
+                try {
+                    cached = computation.get(asyncTimeout, TimeUnit.SECONDS);
+                } catch (ExecutionException | TimeoutException e) {
+                    cached = null;
+                }
+                if (cached == null) {
+                    internalDispatchRequest(path, true);
+                    return;
+                }
+            }
+            route = metrics.route("cache", path);
+            cached.writeTo(getRequestContext());
+        }
+
+        /**
+         * Generates a response for a path whose responses are cached and stores it in the cache.
+         * Captured response is handed to the cache before it is sent to the client, so waiting requests
+         * do not depend on how fast this client reads.
+         *
+         * @param path Request path.
+         * @param key  Cache key of the request.
+         * @param rule Caching rule of the path.
+         * @throws Exception In case an error occurred while processing a request.
+         */
+        private void generateCached(String path, String key, ResponseCache.Rule rule) throws Exception {
+            RequestContext rc = getRequestContext();
+            rc.setHeader("Cache-Control", rule.getCacheControl());
+            rc.startCapture(responseCache.getMaxEntrySize());
+            ResponseCache.Response response = null;
+            try {
+                internalDispatchRequest(path, true);
+//                asynchronous and replaced responses are not cached
+                if (asyncResponse == null && context == rc) {
+                    response = rc.endCapture(rule);
+                }
+            } finally {
+                responseCache.complete(key, response);
             }
         }
 
+        /**
+         * Completes the response once workers are done with it.
+         *
+         * @return {@code true} if connection can be used for another request, {@code false} otherwise.
+         * @throws IOException If data could not be sent.
+         */
+        private boolean completeResponse() throws IOException {
+            if (session != null) {
+                sessions.update(session);
+            }
+            if (responseBroken) {
+//                response was interrupted, it cannot be completed properly
+                ostream.flush();
+                return false;
+            }
+            getRequestContext().finish();
+            parser.reset();
+            return getRequestContext().isKeepAlive();
+        }
+
+        /**
+         * Clears all state of the previous request served over this connection.
+         */
+        private void resetRequest() {
+            version = null;
+            method = null;
+            fullPath = null;
+            host = null;
+            headers = null;
+            params = new HashMap<>();
+            tempParams = new HashMap<>();
+            permParams = new HashMap<>();
+            outputCookies = new ArrayList<>();
+            SID = null;
+            session = null;
+            asyncError = null;
+            context = null;
+            keepAlive = false;
+            responseBroken = false;
+            route = metrics.route("none", "unmatched");
+            config = routing;
+        }
+
+        /**
+         * Checks if client wants the connection to be kept open after the response.
+         *
+         * @return {@code true} if connection should be persistent, {@code false} otherwise.
+         */
+        private boolean isKeepAliveRequested() {
+            String connection = headers.getOrDefault("connection", "").toLowerCase(Locale.ROOT);
+            if (version.equals("HTTP/1.1")) {
+                return connection.contains("close") == false;
+            }
+            return connection.contains("keep-alive");
+        }
+
         /**
          * Returns a session entry for current request. If no entry is found or existing one is
          * invalid, new entry will be created and returned.
          * This will automatically save session entry to the sessions map and set sid cookie of the request context if needed.
          *
-         * @param header Request header.
          * @return Session entry for current request.
-         * @throws NullPointerException If given header is {@code null}.
          */
-        private SessionMapEntry getSessionEntry(String header) {
-            Objects.requireNonNull(header);
-            Matcher m = Pattern.compile("\r\nCookie:.*[\\s;]sid=\"([A-Z]+)\"").matcher(header);
-            String sidCandidate = null;
-            if (m.find()) {
-                sidCandidate = m.group(1);
-            }
-            SessionMapEntry sessionEntry = sessions.get(sidCandidate);
+        private SessionStore.SessionMapEntry getSessionEntry() {
+            String sidCandidate = HttpRequestParser.parseCookies(headers.get("cookie")).get("sid");
+            SessionStore.SessionMapEntry sessionEntry = sessions.get(sidCandidate);
 
 //            session entry is valid -> return it
-            if (sessionEntry != null && sessionEntry.validUntil > System.currentTimeMillis()) {
+            if (sessionEntry != null) {
                 SID = sessionEntry.sid;
                 permParams = sessionEntry.map;
                 return sessionEntry;
             }
 
 //            ------------ NEW SESSION ENTRY ------------
-//            crete sid
-            StringBuilder sb = new StringBuilder();
-            sessionRandom.ints(20, 65, 91).forEach(num -> sb.append((char) num));
-            sidCandidate = sb.toString();
-
-//            create session entry
-            long validUntil = System.currentTimeMillis() + sessionTimeout * 1000;
-            sessionEntry = new SessionMapEntry(sidCandidate, host, validUntil);
+            sessionEntry = sessions.create(host);
 
 //            update globals
             SID = sessionEntry.sid;
-            sessions.put(sessionEntry.sid, sessionEntry);
             permParams = sessionEntry.map;
 
 //            set sid cookie
-            getRequestContext().addRCCookie(new RequestContext.RCCookie("sid", sidCandidate, null, host, "/"));
+            getRequestContext().addRCCookie(new RequestContext.RCCookie("sid", SID, null, host, "/"));
             return sessionEntry;
         }
 
@@ -458,28 +1605,34 @@ public class SmartHttpServer {
          * @return Request context.
          */
         private RequestContext getRequestContext() {
-            return context = context != null ?
-                    context : new RequestContext(ostream, params, permParams, outputCookies, tempParams, this, SID);
+            if (context == null) {
+                context = new RequestContext(ostream, params, permParams, outputCookies, tempParams, this, SID);
+                context.setKeepAlive(keepAlive, "HTTP/1.1".equals(version));
+                context.setBufferSize(responseBufferSize);
+                context.setOutputChannel(csocket.getChannel());
+                context.setCompression(headers.get("accept-encoding"), config.getCompressibleTypes());
+            }
+            return context;
         }
 
         /**
-         * Sends empty response and closes client socket.
+         * Replaces current response with an empty response. If current response has already started,
+         * it cannot be replaced and the connection will be closed after it.
          *
          * @param code    Response code.
          * @param message Response message.
          * @throws NullPointerException If given message is {@code null}.
          */
         private void sendEmptyResponse(int code, String message) {
-            RequestContext rc = new RequestContext(ostream, null, null, null, SID);
-            rc.setStatusCode(code);
-            rc.setStatusText(message);
-            try {
-                rc.write("");
-                csocket.close();
-            } catch (IOException e) {
-//                nothing to be done
-                e.printStackTrace();
+            if (context != null && context.isHeaderGenerated()) {
+                responseBroken = true;
+                return;
             }
+            context = new RequestContext(ostream, null, null, null, SID);
+            context.setKeepAlive(keepAlive, "HTTP/1.1".equals(version));
+            context.setStatusCode(code);
+            context.setStatusText(message);
+            context.setContentLength(0L);
         }
 
         /**
@@ -490,116 +1643,84 @@ public class SmartHttpServer {
          */
         private void parseParameters(String paramString) {
             Objects.requireNonNull(paramString);
-            paramString = URLDecoder.decode(paramString, StandardCharsets.ISO_8859_1);
-            Matcher m = Pattern.compile("([^&=]+)=([^&=]*)").matcher(paramString);
-            m.results().forEach(matchResult -> {
-                String var = matchResult.group(1);
-                String val = matchResult.group(2);
-                params.put(var, val);
-            });
+            int start = 0;
+            int length = paramString.length();
+            while (start < length) {
+                int end = paramString.indexOf('&', start);
+                if (end == -1) {
+                    end = length;
+                }
+                int eq = paramString.indexOf('=', start);
+//                parameters without a name or a value are skipped
+                if (eq > start && eq < end) {
+                    params.put(URLDecoder.decode(paramString.substring(start, eq), StandardCharsets.ISO_8859_1),
+                            URLDecoder.decode(paramString.substring(eq + 1, end), StandardCharsets.ISO_8859_1));
+                }
+                start = end + 1;
+            }
         }
 
         /**
-         * Reads request header.
+         * Reads the next request from the client and feeds it to the parser.
+         * Bytes following the request are kept for the next request. While waiting for the first byte of a request,
+         * connection is marked idle so that it can be closed if server stops.
          *
-         * @param clientIn Client's input stream. Header will be read with that.
-         * @return Request header without last \r\n\r\n
-         * @throws IOException          In case data could not be read.
-         * @throws NullPointerException If given stream is {@code null}.
-         * @throws RuntimeException     If header is invalid.
+         * @return {@code true} if request has been read, {@code false} if client closed the connection
+         * before sending anything or server is stopping.
+         * @throws IOException         If data could not be read or connection was closed in the middle of a request.
+         * @throws HttpParseException If request is invalid.
          */
-        private String readHeader(PushbackInputStream clientIn) throws IOException {
-            Objects.requireNonNull(clientIn);
-            ByteArrayOutputStream bos = new ByteArrayOutputStream();
-            int state = 0;
-            loop:
-            while (true) {
-                int b = clientIn.read();
-                if (b == -1) {
-                    throw new RuntimeException("Header could not be read.");
-                }
-                bos.write(b);
-                switch (state) {
-                    case 0:
-                        if (b == 13) {
-                            state = 1;
-                        } else if (b == 10) {
-                            state = 4;
-                        }
-                        break;
-                    case 1:
-                        if (b == 10) {
-                            state = 2;
-                        } else {
-                            state = 0;
-                        }
-                        break;
-                    case 2:
-                        if (b == 13) {
-                            state = 3;
-                        } else {
-                            state = 0;
-                        }
-                        break;
-                    case 3:
-                    case 4:
-                        if (b == 10) {
-                            break loop;
-                        } else {
-                            state = 0;
-                        }
-                        break;
+        private boolean readRequest() throws IOException {
+            while (parser.feed(inBuffer) == false) {
+                boolean idle = parser.isStarted() == false;
+                if (idle) {
+                    idleConnections.add(csocket);
+                    if (draining) {
+                        return false;
+                    }
                 }
+                inBuffer.compact();
+                int read;
+                try {
+                    read = istream.read(inBuffer.array(), inBuffer.position(), inBuffer.remaining());
+                } finally {
+                    if (idle) {
+                        idleConnections.remove(csocket);
+                    }
+                }
+                if (read == -1) {
+                    inBuffer.flip();
+                    if (parser.isStarted()) {
+                        throw new EOFException("Request could not be read.");
+                    }
+                    return false;
+                }
+                metrics.bytesReceived(read);
+                inBuffer.position(inBuffer.position() + read);
+                inBuffer.flip();
             }
-            String requestData = new String(bos.toByteArray(), StandardCharsets.ISO_8859_1);
-            int headerEnd = requestData.indexOf("\r\n\r\n");
-            if (headerEnd == -1) {
-                throw new RuntimeException("Header is missing.");
-            }
-            return requestData.substring(0, headerEnd);
+            return true;
         }
 
         /**
-         * Extracts header information.
-         *
-         * @param header Header that needs to be extracted.
-         * @throws NullPointerException If given header is {@code null}.
-         * @throws RuntimeException     If header is invalid.
+         * Extracts request information from the parser.
          */
-        private void extractHeaderInfo(String header) {
-            Objects.requireNonNull(header);
-
-//            extract first header line
-            extractFirstHeaderLine(header);
+        private void extractHeaderInfo() {
+            version = parser.getVersion();
+            method = parser.getMethod();
+            fullPath = parser.getTarget();
+            headers = parser.getHeaders();
 
-//            extract host
-            Matcher m = Pattern.compile("\r\nHost:\\s?([^\\s]+)(?:\r\n|$)").matcher(header);
-            if (m.find()) {
-                host = m.group(1).replaceFirst(":\\d+$", "");
-            } else {
+//            extract host, without port
+            String hostHeader = headers.get("host");
+            if (hostHeader == null || hostHeader.isEmpty()) {
                 host = domainName;
+            } else {
+                int colon = hostHeader.lastIndexOf(':');
+                host = colon > hostHeader.lastIndexOf(']') ? hostHeader.substring(0, colon) : hostHeader;
             }
         }
 
-        /**
-         * Extracts first line of a header.
-         *
-         * @param header Header which needs to be extracted.
-         * @throws NullPointerException If given header is {@code null}.
-         * @throws RuntimeException     If header is invalid.
-         */
-        private void extractFirstHeaderLine(String header) {
-            Objects.requireNonNull(header);
-            Pattern p = Pattern.compile("^GET\\s([^\\s]+)\\s(HTTP/1\\.[01])\r\n");
-            Matcher m = p.matcher(header);
-            if (m.find() == false) {
-                throw new RuntimeException("Invalid header.");
-            }
-            version = m.group(2);
-            method = "GET";
-            fullPath = m.group(1);
-        }
-
         /**
          * Dispatches a request but internally.
          *
@@ -608,6 +1729,11 @@ public class SmartHttpServer {
          * @throws Exception In case an error occurred while processing a request.
          */
         public void internalDispatchRequest(String urlPath, boolean directCall) throws Exception {
+            if (directCall && urlPath.equals(metricsPath) && metricsClients.contains(csocket.getInetAddress())) {
+                route = metrics.route("metrics", urlPath);
+                serveMetrics();
+                return;
+            }
             if (urlPath.startsWith("/private/") && directCall) {
                 sendEmptyResponse(404, "Path not available.");
                 return;
@@ -628,20 +1754,28 @@ public class SmartHttpServer {
             }
 
 //            get file extension and serve
-            String fileExtension = requestedPath.getFileName().toString().replaceFirst("(?:.*\\.|.*)", "");
+            Path fileName = requestedPath.getFileName();
+            String fileExtension = fileName == null ? "" : RouteTable.getExtension(fileName.toString());
             try {
-                if (urlPath.matches("/ext/[^/]+")) {
-                    Class<?> referenceToClass = this.getClass().getClassLoader()
-                            .loadClass("hr.fer.zemris.java.webserver.workers." + urlPath.replaceFirst("/ext/", ""));
-                    ((IWebWorker) referenceToClass.getConstructor().newInstance()).processRequest(getRequestContext());
-                    csocket.close();
-                } else if (workersMap.containsKey(urlPath)) {
-                    workersMap.get(urlPath).processRequest(getRequestContext());
-                    csocket.close();
+                IWebWorker worker = config.getRoutes().find(urlPath);
+                if (worker != null) {
+                    if (directCall) {
+                        route = metrics.route("worker", urlPath);
+                    }
+                    if (directCall && worker instanceof IAsyncWebWorker) {
+                        asyncResponse = Objects.requireNonNull(((IAsyncWebWorker) worker).processRequestAsync(getRequestContext()),
+                                "Asynchronous worker returned no stage.");
+                    } else {
+                        worker.processRequest(getRequestContext());
+                    }
                 } else if (fileExtension.equals("smscr")) {
-                    executeSmartScript(Files.readString(requestedPath));
+                    CompiledScript script = scriptCache.get(requestedPath);
+                    if (directCall) {
+                        route = metrics.route("script", urlPath);
+                    }
+                    executeSmartScript(script);
                 } else {
-                    serveFile(requestedPath);
+                    serveFile(requestedPath, directCall);
                 }
             } catch (IOException e) {
                 sendEmptyResponse(404, "File not found");
@@ -649,37 +1783,150 @@ public class SmartHttpServer {
         }
 
         /**
-         * Serves a file and closes the connection.
+         * Serves a file. Small files are served from the static file cache, together with their precompressed
+         * variant if file is compressible, larger ones are never loaded into memory but transferred
+         * from the file channel straight to the client.
+         * If client's cached copy is still valid, empty 304 response is sent instead. If client requested
+         * ranges of the file and its copy, if any, is still valid, only those ranges are sent.
          *
-         * @param file File that needs to be served.
+         * @param file       File that needs to be served.
+         * @param directCall Flag that indicates if file has been requested by the client directly.
          * @throws IOException          If data either could not be read or sent.
          * @throws NullPointerException If given path is {@code null}.
          */
-        private void serveFile(Path file) throws IOException {
+        private void serveFile(Path file, boolean directCall) throws IOException {
             Objects.requireNonNull(file);
-            String fileExtension = file.getFileName().toString().replaceFirst("(?:.*\\.|.*)", "");
-            String mimeType = mimeTypes.getOrDefault(fileExtension, "application/octet-stream");
+            String fileExtension = RouteTable.getExtension(file.getFileName().toString());
+            String mimeType = config.getMimeType(fileExtension);
+            StaticFileCache.Entry entry = staticCache.get(file, config.getCompressibleTypes().contains(mimeType));
+//            files are grouped by mime type, there can be too many of them to track each one
+            if (directCall) {
+                route = metrics.route("static", mimeType);
+            }
             RequestContext rc = getRequestContext();
+            rc.setHeader("ETag", entry.getETag());
+            rc.setHeader("Last-Modified", entry.getLastModified());
+            rc.setHeader("Accept-Ranges", "bytes");
+            if (entry.isNotModified(headers.get("if-none-match"), headers.get("if-modified-since"))) {
+                rc.setStatusCode(304);
+                rc.setStatusText("Not Modified");
+                return;
+            }
+
             rc.setMimeType(mimeType);
-            rc.write(Files.readAllBytes(file));
-            csocket.close();
+            if (directCall && method.equals("GET") && entry.matchesIfRange(headers.get("if-range"), System.currentTimeMillis())) {
+                List<ByteRange> ranges = ByteRange.parse(headers.get("range"), entry.getSize());
+                if (ranges != null) {
+                    serveRanges(file, entry, mimeType, ranges);
+                    return;
+                }
+            }
+            if (entry.getGzipData() != null && "gzip".equals(RequestContext.negotiateEncoding(headers.get("accept-encoding")))) {
+                rc.setHeader("Content-Encoding", "gzip");
+                rc.setContentLength((long) entry.getGzipData().length);
+                rc.write(entry.getGzipData());
+                return;
+            }
+            if (entry.getData() != null) {
+                rc.setContentLength((long) entry.getData().length);
+                rc.write(entry.getData());
+                return;
+            }
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                long size = channel.size();
+                rc.setContentLength(size);
+                rc.write(channel, 0, size);
+            }
+        }
+
+        /**
+         * Serves given ranges of a file with a 206 response, or an empty 416 response if there are none.
+         * Single range is sent as the body, several ranges are sent as parts of a {@code multipart/byteranges} body.
+         * Ranges are read from cached file content if there is one, otherwise only the requested ranges are
+         * transferred from the file.
+         *
+         * @param file     File that needs to be served.
+         * @param entry    Cache entry of the file.
+         * @param mimeType Mime type of the file.
+         * @param ranges   Sorted disjoint ranges within the file.
+         * @throws IOException If data either could not be read or sent.
+         */
+        private void serveRanges(Path file, StaticFileCache.Entry entry, String mimeType, List<ByteRange> ranges)
+                throws IOException {
+            RequestContext rc = getRequestContext();
+            long size = entry.getSize();
+            if (ranges.isEmpty()) {
+                rc.setStatusCode(416);
+                rc.setStatusText("Range Not Satisfiable");
+                rc.setHeader("Content-Range", "bytes */" + size);
+                rc.setContentLength(0L);
+                return;
+            }
+//            positions refer to the file itself, so body must not be compressed
+            rc.setCompression(null, Collections.emptySet());
+            rc.setStatusCode(206);
+            rc.setStatusText("Partial Content");
+            byte[][] partHeaders = new byte[ranges.size()][];
+            byte[] end = null;
+            if (ranges.size() == 1) {
+                ByteRange range = ranges.get(0);
+                rc.setHeader("Content-Range", range.toContentRange(size));
+                rc.setContentLength(range.length());
+            } else {
+                String boundary = Long.toHexString(ThreadLocalRandom.current().nextLong() | Long.MIN_VALUE);
+                end = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.ISO_8859_1);
+                long length = end.length;
+                for (int i = 0; i < partHeaders.length; i++) {
+                    ByteRange range = ranges.get(i);
+                    partHeaders[i] = ("\r\n--" + boundary + "\r\nContent-Type: " + mimeType + "\r\nContent-Range: "
+                            + range.toContentRange(size) + "\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+                    length += partHeaders[i].length + range.length();
+                }
+                rc.setMimeType("multipart/byteranges; boundary=" + boundary);
+                rc.setContentLength(length);
+            }
+
+            byte[] data = entry.getData();
+            try (FileChannel channel = data == null ? FileChannel.open(file, StandardOpenOption.READ) : null) {
+                for (int i = 0; i < partHeaders.length; i++) {
+                    ByteRange range = ranges.get(i);
+                    if (partHeaders[i] != null) {
+                        rc.write(partHeaders[i]);
+                    }
+                    if (data != null) {
+                        rc.write(data, (int) range.getFirst(), (int) range.length());
+                    } else {
+                        rc.write(channel, range.getFirst(), range.length());
+                    }
+                }
+            }
+            if (end != null) {
+                rc.write(end);
+            }
+        }
+
+        /**
+         * Serves current server metrics as plain text.
+         *
+         * @throws IOException If data could not be sent.
+         */
+        private void serveMetrics() throws IOException {
+            RequestContext rc = getRequestContext();
+            rc.setMimeType("text/plain; version=0.0.4");
+            rc.setHeader("Cache-Control", "no-store");
+            rc.write(metrics.render());
         }
 
         /**
-         * Executes smart script and closes the client socket.
+         * Executes smart script.
          *
-         * @param script Loaded smart script that needs to be executed.
+         * @param script Compiled smart script that needs to be executed.
          * @throws NullPointerException If any of the parameters are {@code null}.
-         * @throws IOException          If socket could not be closed.
          */
-        private void executeSmartScript(String script) throws IOException {
+        private void executeSmartScript(CompiledScript script) {
             Objects.requireNonNull(script);
             try {
-                new SmartScriptEngine(
-                        new SmartScriptParser(script).getDocumentNode(),
-                        getRequestContext()
-                ).execute();
-                csocket.close();
+                script.execute(getRequestContext());
             } catch (SmartScriptRuntimeException e) {
                 sendEmptyResponse(500, "Script error");
             }
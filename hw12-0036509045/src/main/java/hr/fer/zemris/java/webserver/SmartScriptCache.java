@@ -0,0 +1,168 @@
+package hr.fer.zemris.java.webserver;
+
+import hr.fer.zemris.java.custom.scripting.exec.CompiledScript;
+import hr.fer.zemris.java.custom.scripting.exec.SmartScriptCompiler;
+import hr.fer.zemris.java.custom.scripting.parser.SmartScriptParser;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded cache of compiled smart scripts, safe for use from multiple threads.
+ * Scripts are keyed by their path and a cached script is parsed and compiled again once its file's modification
+ * time or size changes. When cache is full, least recently used script is evicted.
+ * Compiled scripts are immutable, so they are shared between requests.
+ *
+ * @author Jan Capek
+ */
+class SmartScriptCache {
+
+    /**
+     * Maximum number of cached scripts.
+     */
+    private int capacity;
+
+    /**
+     * Cached scripts.
+     */
+    private Map<Path, Entry> entries = new ConcurrentHashMap<>();
+
+    /**
+     * Logical clock used to track when entries were used.
+     */
+    private AtomicLong clock = new AtomicLong();
+
+    /**
+     * Number of requests served from the cache.
+     */
+    private LongAdder hits = new LongAdder();
+
+    /**
+     * Number of requests that had to parse and compile a script.
+     */
+    private LongAdder misses = new LongAdder();
+
+    /**
+     * Constructs a new cache.
+     *
+     * @param capacity Maximum number of cached scripts.
+     * @throws IllegalArgumentException If capacity is less than 1.
+     */
+    SmartScriptCache(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Cache capacity must be at least 1.");
+        }
+        this.capacity = capacity;
+    }
+
+    /**
+     * Returns compiled script stored at given path.
+     *
+     * @param path Path of the script.
+     * @return Compiled script.
+     * @throws IOException                                                            If script could not be read.
+     * @throws hr.fer.zemris.java.custom.scripting.parser.SmartScriptParserException If script is invalid.
+     * @throws NullPointerException                                                   If given path is {@code null}.
+     */
+    CompiledScript get(Path path) throws IOException {
+        Objects.requireNonNull(path);
+        BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        Entry entry = entries.get(path);
+        if (entry != null && entry.isFresh(attributes)) {
+            hits.increment();
+            entry.lastUsed = clock.incrementAndGet();
+            return entry.script;
+        }
+
+        misses.increment();
+        CompiledScript script;
+        try (Reader reader = Files.newBufferedReader(path)) {
+            script = SmartScriptCompiler.compile(SmartScriptParser.fromReader(reader).getDocumentNode());
+        }
+        entries.put(path, new Entry(script, attributes, clock.incrementAndGet()));
+        if (entries.size() > capacity) {
+            evict();
+        }
+        return script;
+    }
+
+    /**
+     * Removes least recently used entries until cache fits its capacity.
+     */
+    private void evict() {
+        while (entries.size() > capacity) {
+            Path oldest = null;
+            long oldestUse = Long.MAX_VALUE;
+            for (Map.Entry<Path, Entry> e : entries.entrySet()) {
+                if (e.getValue().lastUsed < oldestUse) {
+                    oldestUse = e.getValue().lastUsed;
+                    oldest = e.getKey();
+                }
+            }
+            if (oldest == null) {
+                return;
+            }
+            entries.remove(oldest);
+        }
+    }
+
+    /**
+     * @return Number of requests served from the cache.
+     */
+    long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * @return Number of requests that had to parse and compile a script.
+     */
+    long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return Number of cached scripts.
+     */
+    int size() {
+        return entries.size();
+    }
+
+    /**
+     * Cached script.
+     */
+    private static class Entry {
+        private CompiledScript script;
+        private FileTime lastModified;
+        private long size;
+        private volatile long lastUsed;
+
+        /**
+         * @param script     Compiled script.
+         * @param attributes Attributes of the script file at the time it was read.
+         * @param lastUsed   Logical time of the last use.
+         */
+        Entry(CompiledScript script, BasicFileAttributes attributes, long lastUsed) {
+            this.script = script;
+            this.lastModified = attributes.lastModifiedTime();
+            this.size = attributes.size();
+            this.lastUsed = lastUsed;
+        }
+
+        /**
+         * @param attributes Current attributes of the script file.
+         * @return {@code true} if file did not change since it was parsed, {@code false} otherwise.
+         */
+        boolean isFresh(BasicFileAttributes attributes) {
+            return lastModified.equals(attributes.lastModifiedTime()) && size == attributes.size();
+        }
+    }
+}
@@ -0,0 +1,326 @@
+package hr.fer.zemris.java.webserver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Least recently used cache of static files bounded by total size of cached data.
+ * Every entry holds validators of a file version (weak entity tag and last modification time) and,
+ * if the file is small enough, its whole content and, for compressible files, its gzip compressed variant.
+ * Larger files are cached without content so only their validators are reused.
+ * <p>
+ * File attributes are checked again at most once per {@link #VALIDATION_INTERVAL} milliseconds, so requests
+ * for hot files in between do not touch the file system at all.
+ *
+ * @author Jan Capek
+ */
+class StaticFileCache {
+
+    /**
+     * Number of milliseconds during which cached entry is trusted without checking file attributes.
+     */
+    private static final long VALIDATION_INTERVAL = 1000;
+
+    /**
+     * Size accounted for every entry on top of its data.
+     */
+    private static final int ENTRY_OVERHEAD = 256;
+
+    /**
+     * Format of http dates.
+     */
+    private static final DateTimeFormatter HTTP_DATE = DateTimeFormatter.RFC_1123_DATE_TIME.withZone(ZoneOffset.UTC);
+
+    /**
+     * Maximum total size of cached entries in bytes.
+     */
+    private long capacity;
+
+    /**
+     * Maximum size of a file whose content is cached.
+     */
+    private long maxFileSize;
+
+    /**
+     * Current total size of cached entries in bytes.
+     */
+    private long size;
+
+    /**
+     * Cached entries in access order.
+     */
+    private LinkedHashMap<Path, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * Number of requests served without reading the file.
+     */
+    private LongAdder hits = new LongAdder();
+
+    /**
+     * Number of requests that had to read the file.
+     */
+    private LongAdder misses = new LongAdder();
+
+    /**
+     * Constructs a new cache.
+     *
+     * @param capacity    Maximum total size of cached entries in bytes.
+     * @param maxFileSize Maximum size of a file whose content is cached.
+     * @throws IllegalArgumentException If any of the arguments is negative.
+     */
+    StaticFileCache(long capacity, long maxFileSize) {
+        if (capacity < 0 || maxFileSize < 0) {
+            throw new IllegalArgumentException("Cache sizes cannot be negative.");
+        }
+        this.capacity = capacity;
+        this.maxFileSize = Math.min(maxFileSize, capacity);
+    }
+
+    /**
+     * Returns cache entry of the file at given path, reading the file if needed.
+     *
+     * @param path     Path to a file.
+     * @param compress Flag that indicates if gzip compressed variant of the file should be cached as well.
+     * @return Entry of the current version of the file.
+     * @throws NoSuchFileException  If given path is not a regular file.
+     * @throws IOException          If file could not be read.
+     * @throws NullPointerException If given path is {@code null}.
+     */
+    Entry get(Path path, boolean compress) throws IOException {
+        return get(path, compress, System.currentTimeMillis());
+    }
+
+    /**
+     * Returns cache entry of the file at given path as it is at given time, reading the file if needed.
+     *
+     * @param path     Path to a file.
+     * @param compress Flag that indicates if gzip compressed variant of the file should be cached as well.
+     * @param now      Current time in milliseconds.
+     * @return Entry of the current version of the file.
+     * @throws NoSuchFileException  If given path is not a regular file.
+     * @throws IOException          If file could not be read.
+     * @throws NullPointerException If given path is {@code null}.
+     */
+    Entry get(Path path, boolean compress, long now) throws IOException {
+        Objects.requireNonNull(path);
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(path);
+        }
+        if (entry != null && now - entry.checkedAt < VALIDATION_INTERVAL) {
+            hits.increment();
+            return entry;
+        }
+
+        BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        if (attributes.isRegularFile() == false) {
+            throw new NoSuchFileException(path.toString());
+        }
+        if (entry != null && entry.isVersionOf(attributes)) {
+            entry.checkedAt = now;
+            hits.increment();
+            return entry;
+        }
+
+        misses.increment();
+        byte[] data = attributes.size() <= maxFileSize ? Files.readAllBytes(path) : null;
+        entry = new Entry(attributes, data, compress && data != null ? gzip(data) : null, now);
+        put(path, entry);
+        return entry;
+    }
+
+    /**
+     * Compresses given data with gzip.
+     *
+     * @param data Data that needs to be compressed.
+     * @return Compressed data or {@code null} if compression does not make data smaller.
+     * @throws IOException If data could not be compressed.
+     */
+    private static byte[] gzip(byte[] data) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(data.length / 2 + 32);
+        try (GZIPOutputStream gzip = new GZIPOutputStream(bos)) {
+            gzip.write(data);
+        }
+        return bos.size() < data.length ? bos.toByteArray() : null;
+    }
+
+    /**
+     * Stores an entry and evicts least recently used entries until cache fits its capacity.
+     *
+     * @param path  Path of the file.
+     * @param entry Entry of the file.
+     */
+    private synchronized void put(Path path, Entry entry) {
+        Entry previous = entries.put(path, entry);
+        if (previous != null) {
+            size -= previous.weight();
+        }
+        size += entry.weight();
+        Iterator<Entry> it = entries.values().iterator();
+        while (size > capacity && it.hasNext()) {
+            size -= it.next().weight();
+            it.remove();
+        }
+    }
+
+    /**
+     * @return Number of requests served without reading the file.
+     */
+    long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * @return Number of requests that had to read the file.
+     */
+    long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return Current total size of cached entries in bytes.
+     */
+    synchronized long size() {
+        return size;
+    }
+
+    /**
+     * Cached version of a file.
+     */
+    static class Entry {
+        private long size;
+        private long lastModifiedMillis;
+        private byte[] data;
+        private byte[] gzipData;
+        private String eTag;
+        private String lastModified;
+        private volatile long checkedAt;
+
+        /**
+         * @param attributes Attributes of the file.
+         * @param data       Content of the file or {@code null} if it is not cached.
+         * @param gzipData   Gzip compressed content of the file or {@code null} if it is not cached.
+         * @param checkedAt  Time at which attributes were read.
+         */
+        private Entry(BasicFileAttributes attributes, byte[] data, byte[] gzipData, long checkedAt) {
+            this.size = data == null ? attributes.size() : data.length;
+            this.lastModifiedMillis = attributes.lastModifiedTime().toMillis();
+            this.data = data;
+            this.gzipData = gzipData;
+            this.checkedAt = checkedAt;
+            this.eTag = String.format("W/\"%x-%x\"", size, lastModifiedMillis);
+            this.lastModified = HTTP_DATE.format(Instant.ofEpochMilli(lastModifiedMillis));
+        }
+
+        /**
+         * @param attributes Current file attributes.
+         * @return {@code true} if entry holds the version of the file with given attributes.
+         */
+        private boolean isVersionOf(BasicFileAttributes attributes) {
+            return size == attributes.size() && lastModifiedMillis == attributes.lastModifiedTime().toMillis();
+        }
+
+        /**
+         * @return Size this entry takes in the cache.
+         */
+        private long weight() {
+            return (data == null ? 0 : data.length) + (gzipData == null ? 0 : gzipData.length) + ENTRY_OVERHEAD;
+        }
+
+        /**
+         * @return Size of the file in bytes.
+         */
+        long getSize() {
+            return size;
+        }
+
+        /**
+         * @return Content of the file or {@code null} if file is too large to be cached.
+         */
+        byte[] getData() {
+            return data;
+        }
+
+        /**
+         * @return Gzip compressed content of the file or {@code null} if it is not cached.
+         */
+        byte[] getGzipData() {
+            return gzipData;
+        }
+
+        /**
+         * @return Weak entity tag of this file version.
+         */
+        String getETag() {
+            return eTag;
+        }
+
+        /**
+         * @return Last modification time of the file formatted as http date.
+         */
+        String getLastModified() {
+            return lastModified;
+        }
+
+        /**
+         * Checks if client's cached copy described by conditional request headers is still valid.
+         * {@code If-None-Match} takes precedence over {@code If-Modified-Since}, as required by http.
+         *
+         * @param ifNoneMatch     Value of the {@code If-None-Match} header, can be {@code null}.
+         * @param ifModifiedSince Value of the {@code If-Modified-Since} header, can be {@code null}.
+         * @return {@code true} if client's copy is current and 304 response can be sent, {@code false} otherwise.
+         */
+        boolean isNotModified(String ifNoneMatch, String ifModifiedSince) {
+            if (ifNoneMatch != null) {
+                String opaqueTag = eTag.substring(2);
+                for (String tag : ifNoneMatch.split(",")) {
+                    tag = tag.trim();
+                    if (tag.equals("*") || tag.equals(eTag) || tag.equals(opaqueTag)) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+            if (ifModifiedSince != null) {
+                try {
+                    long since = Instant.from(HTTP_DATE.parse(ifModifiedSince.trim())).toEpochMilli();
+                    return lastModifiedMillis / 1000 <= since / 1000;
+                } catch (RuntimeException e) {
+                    return false;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Checks if validator of {@code If-Range} header matches this file version, in which case requested ranges
+         * can be served. Ranges may only be combined with a strong validator, so an entity tag never matches since
+         * the tag of an entry is weak, with or without its {@code W/} prefix. Last modification date matches if it
+         * is the exact date of this version and the file was modified at least a second before given time, because
+         * the date has a resolution of one second and could also belong to another version within that second.
+         *
+         * @param ifRange Value of {@code If-Range} header, can be {@code null}.
+         * @param now     Current time in milliseconds.
+         * @return {@code true} if header is missing or matches this version, {@code false} otherwise.
+         */
+        boolean matchesIfRange(String ifRange, long now) {
+            if (ifRange == null) {
+                return true;
+            }
+            return ifRange.trim().equals(lastModified) && now - lastModifiedMillis >= 1000;
+        }
+    }
+}
@@ -28,8 +28,9 @@ public class DemoRequestContext {
         rc.setMimeType("text/plain");
         rc.setStatusCode(205);
         rc.setStatusText("Idemo dalje");
-//        Only at this point will header be created and written...
         rc.write("Čevapčići i Šiščevapčići.");
+//        Only at this point will header be created and written...
+        rc.flush();
         os.close();
     }
 
@@ -45,8 +46,9 @@ public class DemoRequestContext {
         rc.addRCCookie(new RequestContext.RCCookie("korisnik", "perica", 3600, "127.0.0.1",
                 "/"));
         rc.addRCCookie(new RequestContext.RCCookie("zgrada", "B4", null, null, "/"));
-//        Only at this point will header be created and written...
         rc.write("Čevapčići i Šiščevapčići.");
+//        Only at this point will header be created and written...
+        rc.flush();
         os.close();
     }
 }
\ No newline at end of file
@@ -0,0 +1,640 @@
+package hr.fer.zemris.java.webserver.loadgen;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Http load generator. All connections are driven by a single selector so thousands of them can be opened
+ * without as many threads. Requests are taken from a {@link Scenario} and every connection keeps the session
+ * cookie it gets from the server, just like a browser would.
+ * <p>
+ * Generator runs in one of two modes:
+ * <ul>
+ * <li><b>closed loop</b> - given number of connections, each sends a request, waits for the whole response and
+ * immediately sends the next one. Throughput is what the server manages to serve.</li>
+ * <li><b>open loop</b> - requests are started at a fixed rate no matter how fast the server responds, using up to
+ * given number of connections. Latency is measured from the moment request was due, so time a request spent
+ * waiting for a free connection counts too and a stalled server can not hide behind fewer requests sent.</li>
+ * </ul>
+ * Program is used to compare server configurations and to check for performance regressions before a release:
+ * limits given with {@code --max-p99}, {@code --min-throughput} and {@code --max-errors} make the program
+ * exit with status 1 if any run misses them. Arguments are host and port followed by options, e.g.
+ * {@code 127.0.0.1 5721 --scenario=config/scenarios/mixed.scenario --mode=open --rate=2000 --connections=200
+ * --duration=30 --warmup=5 --max-p99=50}. Run it without arguments to see all options.
+ * Large numbers of connections need a raised open file limit on both sides ({@code ulimit -n}) and, since
+ * all connections come from one address, enough ephemeral ports.
+ *
+ * @author Jan Capek
+ */
+public class LoadGenerator {
+
+    /**
+     * Usage of the program.
+     */
+    private static final String USAGE = String.join(System.lineSeparator(),
+            "Arguments: host port [options]",
+            "  --path=PATH              requested path when no scenario is given (default /index.html)",
+            "  --scenario=FILE          scenario file with weighted requests",
+            "  --mode=closed|open       closed loop or fixed request rate (default closed)",
+            "  --connections=N[,N...]   connections of each closed loop run, maximum connections in open loop (default 100)",
+            "  --rate=R[,R...]          requests per second of each open loop run",
+            "  --duration=SECONDS       measured duration of each run (default 30)",
+            "  --warmup=SECONDS         duration of each run before measuring starts (default 0)",
+            "  --keepalive=true|false   reuse connections for further requests (default true)",
+            "  --max-p99=MS             fail if 99th percentile latency of any run is higher",
+            "  --min-throughput=R       fail if any run completes fewer requests per second",
+            "  --max-errors=N           fail if any run has more errors");
+
+    /**
+     * Server address.
+     */
+    private InetSocketAddress address;
+
+    /**
+     * Requests that are sent.
+     */
+    private Scenario scenario;
+
+    /**
+     * Flag that indicates if connections are reused.
+     */
+    private boolean keepAlive = true;
+
+    /**
+     * Duration of each run before measuring starts in seconds.
+     */
+    private int warmupSeconds;
+
+    /**
+     * Constructs a new load generator for given server and scenario.
+     *
+     * @param address  Server address.
+     * @param scenario Requests that are sent.
+     * @throws NullPointerException If any of the arguments is {@code null}.
+     */
+    public LoadGenerator(InetSocketAddress address, Scenario scenario) {
+        this.address = Objects.requireNonNull(address);
+        this.scenario = Objects.requireNonNull(scenario);
+    }
+
+    /**
+     * @param keepAlive Flag that indicates if connections are reused for further requests.
+     */
+    public void setKeepAlive(boolean keepAlive) {
+        this.keepAlive = keepAlive;
+    }
+
+    /**
+     * @param warmupSeconds Duration of each run before measuring starts in seconds.
+     * @throws IllegalArgumentException If given duration is negative.
+     */
+    public void setWarmup(int warmupSeconds) {
+        if (warmupSeconds < 0) {
+            throw new IllegalArgumentException("Warmup cannot be negative.");
+        }
+        this.warmupSeconds = warmupSeconds;
+    }
+
+    /**
+     * Keeps given number of connections busy for given time.
+     *
+     * @param connections Number of concurrent connections.
+     * @param seconds     Measured duration of the run in seconds.
+     * @return Report of the run.
+     * @throws IOException              If selector could not be opened.
+     * @throws IllegalArgumentException If any of the arguments is less than 1.
+     */
+    public LoadReport runClosed(int connections, int seconds) throws IOException {
+        if (connections < 1 || seconds < 1) {
+            throw new IllegalArgumentException("Connections and duration must be positive.");
+        }
+        return new Run(connections, 0).execute("closed, " + connections + " conns", seconds);
+    }
+
+    /**
+     * Starts requests at given rate for given time.
+     *
+     * @param rate           Requests started per second.
+     * @param maxConnections Maximum number of concurrent connections.
+     * @param seconds        Measured duration of the run in seconds.
+     * @return Report of the run.
+     * @throws IOException              If selector could not be opened.
+     * @throws IllegalArgumentException If any of the arguments is not positive.
+     */
+    public LoadReport runOpen(double rate, int maxConnections, int seconds) throws IOException {
+        if (rate <= 0 || maxConnections < 1 || seconds < 1) {
+            throw new IllegalArgumentException("Rate, connections and duration must be positive.");
+        }
+        return new Run(maxConnections, Math.max(1, (long) (1e9 / rate)))
+                .execute(String.format(Locale.ROOT, "open, %.0f req/s, %d conns", rate, maxConnections), seconds);
+    }
+
+    /**
+     * State of a single run.
+     */
+    private class Run {
+        /**
+         * Number of connections in closed loop, maximum number of connections in open loop.
+         */
+        private int connections;
+        /**
+         * Time between two requests in nanoseconds in open loop, {@code 0} in closed loop.
+         */
+        private long interval;
+        /**
+         * Results of each scenario request.
+         */
+        private Recorder[] recorders;
+        /**
+         * Number of connections that could not be established.
+         */
+        private long connectErrors;
+        /**
+         * Number of requests sent so far, used to pick the next scenario request.
+         */
+        private long sequence;
+        /**
+         * Time when measuring starts.
+         */
+        private long measureStart;
+        /**
+         * Times at which requests that wait for a free connection were due, open loop only.
+         */
+        private Deque<Long> backlog = new ArrayDeque<>();
+        /**
+         * Connections waiting for a request, open loop only.
+         */
+        private Deque<Client> idle = new ArrayDeque<>();
+        /**
+         * Session cookies of closed connections, new connections continue their sessions.
+         */
+        private Deque<String> cookies = new ArrayDeque<>();
+        /**
+         * Number of open connections, including those being established.
+         */
+        private int open;
+        /**
+         * Number of connections being established.
+         */
+        private int connecting;
+        /**
+         * Selector driving all connections.
+         */
+        private Selector selector;
+
+        /**
+         * @param connections Number of connections in closed loop, maximum number of connections in open loop.
+         * @param interval    Time between two requests in nanoseconds in open loop, {@code 0} in closed loop.
+         */
+        Run(int connections, long interval) {
+            this.connections = connections;
+            this.interval = interval;
+            recorders = new Recorder[scenario.getRequests().size()];
+            for (int i = 0; i < recorders.length; i++) {
+                recorders[i] = new Recorder();
+            }
+        }
+
+        /**
+         * Executes the run.
+         *
+         * @param label   Description of the run.
+         * @param seconds Measured duration of the run in seconds.
+         * @return Report of the run.
+         * @throws IOException If selector could not be opened.
+         */
+        LoadReport execute(String label, int seconds) throws IOException {
+            try (Selector selector = Selector.open()) {
+                this.selector = selector;
+                long start = System.nanoTime();
+                measureStart = start + warmupSeconds * 1_000_000_000L;
+                long end = measureStart + seconds * 1_000_000_000L;
+                long nextDue = start;
+                if (interval == 0) {
+                    for (int i = 0; i < connections; i++) {
+                        connect();
+                    }
+                }
+                while (true) {
+                    long now = System.nanoTime();
+                    if (now >= end) {
+                        break;
+                    }
+                    long timeout = 100;
+                    if (interval != 0) {
+                        for (; nextDue <= now; nextDue += interval) {
+                            backlog.add(nextDue);
+                        }
+                        dispatch();
+                        timeout = Math.max(1, Math.min(timeout, (nextDue - now) / 1_000_000));
+                    }
+                    selector.select(timeout);
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        handle(key);
+                    }
+                }
+                for (SelectionKey key : selector.keys()) {
+                    key.channel().close();
+                }
+            }
+            return report(label, seconds * 1_000_000_000L);
+        }
+
+        /**
+         * Sends waiting requests over idle connections and opens new connections for the rest, open loop only.
+         */
+        private void dispatch() {
+            while (backlog.isEmpty() == false && idle.isEmpty() == false) {
+                Client client = idle.poll();
+                if (client.key.isValid()) {
+                    client.send(backlog.poll());
+                }
+            }
+            for (int needed = backlog.size() - connecting; needed > 0 && open < connections; needed--) {
+                connect();
+            }
+        }
+
+        /**
+         * Opens a new connection to the server.
+         */
+        private void connect() {
+            SocketChannel channel = null;
+            try {
+                channel = SocketChannel.open();
+                channel.configureBlocking(false);
+                Client client = new Client(System.nanoTime(), cookies.poll());
+                client.key = channel.register(selector, 0, client);
+                open++;
+                connecting++;
+                if (channel.connect(address)) {
+                    client.connected();
+                } else {
+                    client.key.interestOps(SelectionKey.OP_CONNECT);
+                }
+            } catch (IOException e) {
+                connectErrors++;
+                closeQuietly(channel);
+            }
+        }
+
+        /**
+         * Handles a ready connection.
+         *
+         * @param key Key of the connection.
+         */
+        private void handle(SelectionKey key) {
+            Client client = (Client) key.attachment();
+            try {
+                if (key.isConnectable()) {
+                    ((SocketChannel) key.channel()).finishConnect();
+                    client.connected();
+                } else if (key.isWritable()) {
+                    client.write();
+                } else if (key.isReadable()) {
+                    client.read();
+                }
+            } catch (IOException | RuntimeException e) {
+                if (client.inFlight) {
+                    client.fail();
+                } else if (client.isConnecting) {
+                    connectErrors++;
+                }
+                client.close();
+            }
+        }
+
+        /**
+         * Creates report of the run.
+         *
+         * @param label         Description of the run.
+         * @param durationNanos Measured duration of the run.
+         * @return Report of the run.
+         */
+        private LoadReport report(String label, long durationNanos) {
+            List<LoadReport> details = new ArrayList<>();
+            long[] all = new long[0];
+            long errors = connectErrors;
+            long bytes = 0;
+            for (int i = 0; i < recorders.length; i++) {
+                Recorder r = recorders[i];
+                long[] latencies = Arrays.copyOf(r.latencies, r.completed);
+                details.add(new LoadReport(scenario.getRequests().get(i).getName(), durationNanos,
+                        latencies, r.errors, r.bytes, List.of()));
+                int offset = all.length;
+                all = Arrays.copyOf(all, offset + latencies.length);
+                System.arraycopy(latencies, 0, all, offset, latencies.length);
+                errors += r.errors;
+                bytes += r.bytes;
+            }
+            return new LoadReport(label, durationNanos, all, errors, bytes, recorders.length > 1 ? details : List.of());
+        }
+
+        /**
+         * Single connection of the run.
+         */
+        private class Client {
+            private SelectionKey key;
+            private ByteBuffer out;
+            private ByteBuffer in = ByteBuffer.allocate(16 * 1024);
+            private ResponseReader reader = new ResponseReader();
+            private String cookie;
+            private boolean isConnecting = true;
+            private boolean inFlight;
+            private int current;
+            private long connectStartedAt;
+            private long dueAt;
+
+            /**
+             * @param connectStartedAt Time when connecting started.
+             * @param cookie           Session cookie sent with requests, {@code null} if there is none yet.
+             */
+            Client(long connectStartedAt, String cookie) {
+                this.connectStartedAt = connectStartedAt;
+                this.cookie = cookie;
+            }
+
+            /**
+             * Starts using the connection once it is established.
+             */
+            void connected() {
+                isConnecting = false;
+                connecting--;
+                if (interval == 0) {
+//                    without keep alive every request pays for its connection
+                    send(keepAlive ? System.nanoTime() : connectStartedAt);
+                } else if (backlog.isEmpty() == false) {
+                    send(backlog.poll());
+                } else {
+                    becomeIdle();
+                }
+            }
+
+            /**
+             * Starts sending the next scenario request.
+             *
+             * @param dueAt Time from which latency of the request is measured.
+             */
+            void send(long dueAt) {
+                this.dueAt = dueAt;
+                current = scenario.indexOf(sequence++);
+                out = ByteBuffer.wrap(scenario.getRequests().get(current)
+                        .encode(address.getHostString(), cookie, keepAlive));
+                reader.reset();
+                inFlight = true;
+                try {
+                    write();
+                } catch (IOException e) {
+                    fail();
+                    close();
+                }
+            }
+
+            /**
+             * Writes pending request bytes and waits for the response once request is sent.
+             *
+             * @throws IOException If request could not be sent.
+             */
+            void write() throws IOException {
+                ((SocketChannel) key.channel()).write(out);
+                key.interestOps(out.hasRemaining() ? SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+            }
+
+            /**
+             * Reads available response bytes and continues once response is complete.
+             *
+             * @throws IOException If response could not be read.
+             */
+            void read() throws IOException {
+                in.clear();
+                int read = ((SocketChannel) key.channel()).read(in);
+                if (read == -1) {
+                    if (inFlight == false) {
+//                        server closed an idle connection
+                        close();
+                        return;
+                    }
+                    if (reader.close() == false) {
+                        throw new IOException("Connection closed before response was complete.");
+                    }
+                    complete();
+                    close();
+                    return;
+                }
+                if (inFlight == false) {
+                    throw new IOException("Unexpected data from server.");
+                }
+                in.flip();
+                if (reader.feed(in) == false) {
+                    return;
+                }
+                complete();
+                if (reader.isConnectionClose() || keepAlive == false) {
+                    close();
+                } else if (interval == 0) {
+                    send(System.nanoTime());
+                } else if (backlog.isEmpty() == false) {
+                    send(backlog.poll());
+                } else {
+                    becomeIdle();
+                }
+            }
+
+            /**
+             * Records the response that has just been read.
+             */
+            private void complete() {
+                inFlight = false;
+                if (reader.getCookie() != null) {
+                    cookie = reader.getCookie();
+                }
+                if (dueAt < measureStart) {
+                    return;
+                }
+                Recorder r = recorders[current];
+                r.bytes += reader.getBodyBytes();
+                if (reader.getStatusCode() >= 500) {
+                    r.errors++;
+                } else {
+                    r.record(System.nanoTime() - dueAt);
+                }
+            }
+
+            /**
+             * Records failure of the request in flight.
+             */
+            private void fail() {
+                inFlight = false;
+                if (dueAt >= measureStart) {
+                    recorders[current].errors++;
+                }
+            }
+
+            /**
+             * Waits for the next request, open loop only. Connection is still read so that it is noticed if
+             * server closes it.
+             */
+            private void becomeIdle() {
+                key.interestOps(SelectionKey.OP_READ);
+                idle.add(this);
+            }
+
+            /**
+             * Closes the connection and, in closed loop, opens a new one in its place.
+             */
+            private void close() {
+                if (key.isValid() == false) {
+                    return;
+                }
+                if (isConnecting) {
+                    connecting--;
+                }
+                open--;
+                if (cookie != null) {
+                    cookies.add(cookie);
+                }
+                key.cancel();
+                closeQuietly((SocketChannel) key.channel());
+                if (interval == 0) {
+                    connect();
+                }
+            }
+        }
+    }
+
+    /**
+     * Latencies and failures of a single scenario request.
+     */
+    private static class Recorder {
+        private long[] latencies = new long[1024];
+        private int completed;
+        private long errors;
+        private long bytes;
+
+        /**
+         * Records a completed request.
+         *
+         * @param latency Latency of the request in nanoseconds.
+         */
+        void record(long latency) {
+            if (completed == latencies.length) {
+                latencies = Arrays.copyOf(latencies, latencies.length * 2);
+            }
+            latencies[completed++] = latency;
+        }
+    }
+
+    /**
+     * Closes given channel ignoring any errors.
+     *
+     * @param channel Channel that needs to be closed, can be {@code null}.
+     */
+    private static void closeQuietly(SocketChannel channel) {
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+//            nothing to be done
+        }
+    }
+
+    /**
+     * Runs the load generator and checks its results against given limits.
+     *
+     * @param args Host, port and options.
+     * @throws IOException If scenario could not be read or load could not be generated.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.out.println(USAGE);
+            return;
+        }
+        Map<String, String> options = new HashMap<>();
+        for (int i = 2; i < args.length; i++) {
+            int eq = args[i].indexOf('=');
+            if (args[i].startsWith("--") == false || eq == -1) {
+                System.out.println("Invalid option: " + args[i]);
+                System.out.println(USAGE);
+                return;
+            }
+            options.put(args[i].substring(2, eq), args[i].substring(eq + 1));
+        }
+
+        Scenario scenario = options.containsKey("scenario")
+                ? Scenario.load(Path.of(options.remove("scenario")))
+                : Scenario.single(options.getOrDefault("path", "/index.html"));
+        options.remove("path");
+        LoadGenerator generator = new LoadGenerator(new InetSocketAddress(args[0], Integer.parseInt(args[1])), scenario);
+        generator.setKeepAlive(Boolean.parseBoolean(options.getOrDefault("keepalive", "true")));
+        generator.setWarmup(Integer.parseInt(options.getOrDefault("warmup", "0")));
+        int seconds = Integer.parseInt(options.getOrDefault("duration", "30"));
+        boolean openLoop = options.getOrDefault("mode", "closed").equals("open");
+        String[] connections = options.getOrDefault("connections", "100").split(",");
+        String rates = options.get("rate");
+        String maxP99 = options.get("max-p99");
+        String minThroughput = options.get("min-throughput");
+        String maxErrors = options.get("max-errors");
+        options.keySet().removeAll(List.of("keepalive", "warmup", "duration", "mode", "connections", "rate",
+                "max-p99", "min-throughput", "max-errors"));
+        if (options.isEmpty() == false) {
+            System.out.println("Unknown options: " + options.keySet());
+            System.out.println(USAGE);
+            return;
+        }
+
+        List<LoadReport> reports = new ArrayList<>();
+        System.out.println(LoadReport.header());
+        if (openLoop) {
+            if (rates == null) {
+                System.out.println("Open loop needs --rate.");
+                return;
+            }
+            for (String rate : rates.split(",")) {
+                reports.add(generator.runOpen(Double.parseDouble(rate), Integer.parseInt(connections[0]), seconds));
+                System.out.println(reports.get(reports.size() - 1));
+            }
+        } else {
+            for (String c : connections) {
+                reports.add(generator.runClosed(Integer.parseInt(c), seconds));
+                System.out.println(reports.get(reports.size() - 1));
+            }
+        }
+
+        List<String> failures = new ArrayList<>();
+        for (LoadReport report : reports) {
+            if (maxP99 != null && report.getLatencyMillis(99) > Double.parseDouble(maxP99)) {
+                failures.add(report.getLabel() + ": p99 latency above " + maxP99 + " ms");
+            }
+            if (minThroughput != null && report.getThroughput() < Double.parseDouble(minThroughput)) {
+                failures.add(report.getLabel() + ": throughput below " + minThroughput + " req/s");
+            }
+            if (maxErrors != null && report.getErrors() > Long.parseLong(maxErrors)) {
+                failures.add(report.getLabel() + ": more than " + maxErrors + " errors");
+            }
+        }
+        if (failures.isEmpty() == false) {
+            failures.forEach(f -> System.out.println("FAILED " + f));
+            System.exit(1);
+        }
+    }
+}
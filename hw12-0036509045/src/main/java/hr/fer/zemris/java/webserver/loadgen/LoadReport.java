@@ -0,0 +1,152 @@
+package hr.fer.zemris.java.webserver.loadgen;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Results of a single load generator run, or of one request of a run.
+ *
+ * @author Jan Capek
+ */
+public class LoadReport {
+
+    /**
+     * Description of the run or request.
+     */
+    private String label;
+
+    /**
+     * Duration of the measured part of the run in nanoseconds.
+     */
+    private long durationNanos;
+
+    /**
+     * Sorted latencies of all completed requests in nanoseconds.
+     */
+    private long[] latencies;
+
+    /**
+     * Number of failed requests.
+     */
+    private long errors;
+
+    /**
+     * Number of response body bytes received.
+     */
+    private long bytes;
+
+    /**
+     * Reports of individual scenario requests.
+     */
+    private List<LoadReport> details;
+
+    /**
+     * Constructs a new report.
+     *
+     * @param label         Description of the run or request.
+     * @param durationNanos Duration of the measured part of the run in nanoseconds.
+     * @param latencies     Latencies of all completed requests in nanoseconds, array will be sorted.
+     * @param errors        Number of failed requests.
+     * @param bytes         Number of response body bytes received.
+     * @param details       Reports of individual scenario requests.
+     * @throws NullPointerException If label, latencies or details are {@code null}.
+     */
+    public LoadReport(String label, long durationNanos, long[] latencies, long errors, long bytes, List<LoadReport> details) {
+        this.label = Objects.requireNonNull(label);
+        this.durationNanos = durationNanos;
+        this.latencies = Objects.requireNonNull(latencies);
+        this.errors = errors;
+        this.bytes = bytes;
+        this.details = Collections.unmodifiableList(details);
+        Arrays.sort(latencies);
+    }
+
+    /**
+     * @return Description of the run or request.
+     */
+    public String getLabel() {
+        return label;
+    }
+
+    /**
+     * @return Number of completed requests.
+     */
+    public long getRequests() {
+        return latencies.length;
+    }
+
+    /**
+     * @return Number of failed requests.
+     */
+    public long getErrors() {
+        return errors;
+    }
+
+    /**
+     * @return Number of response body bytes received.
+     */
+    public long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * @return Reports of individual scenario requests, empty if this is a report of a single request.
+     */
+    public List<LoadReport> getDetails() {
+        return details;
+    }
+
+    /**
+     * @return Completed requests per second.
+     */
+    public double getThroughput() {
+        return latencies.length / (durationNanos / 1e9);
+    }
+
+    /**
+     * Returns latency at given percentile.
+     *
+     * @param percentile Percentile between 0 and 100.
+     * @return Latency in milliseconds or {@code 0} if no request completed.
+     */
+    public double getLatencyMillis(double percentile) {
+        if (latencies.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(percentile / 100 * latencies.length) - 1;
+        return latencies[Math.max(0, Math.min(index, latencies.length - 1))] / 1e6;
+    }
+
+    /**
+     * @return Header of the table rows returned by {@link #toString()}.
+     */
+    public static String header() {
+        return String.format("%-40s %10s %10s %8s %8s %8s %8s %8s %8s",
+                "run / request", "requests", "req/s", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms", "errors");
+    }
+
+    /**
+     * @return Table row of this report followed by indented rows of its details.
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(row(label));
+        for (LoadReport detail : details) {
+            sb.append(System.lineSeparator()).append(detail.row("  " + detail.label));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @param name Label shown in the row.
+     * @return Table row of this report.
+     */
+    private String row(String name) {
+        return String.format("%-40s %10d %10.1f %8.2f %8.2f %8.2f %8.2f %8.2f %8d",
+                name.length() > 40 ? name.substring(0, 37) + "..." : name, getRequests(), getThroughput(),
+                getLatencyMillis(50), getLatencyMillis(90), getLatencyMillis(99), getLatencyMillis(99.9),
+                getLatencyMillis(100), errors);
+    }
+}
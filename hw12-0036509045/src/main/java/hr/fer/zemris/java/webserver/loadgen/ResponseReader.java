@@ -0,0 +1,219 @@
+package hr.fer.zemris.java.webserver.loadgen;
+
+import java.nio.ByteBuffer;
+import java.util.Locale;
+
+/**
+ * Incremental reader of http responses. Bytes are fed as they arrive and reader reports when a whole response
+ * has been read. Responses framed by content length, chunks or connection close are supported.
+ *
+ * @author Jan Capek
+ */
+class ResponseReader {
+
+    /**
+     * Maximum size of a response header.
+     */
+    private static final int MAX_HEADER_SIZE = 16 * 1024;
+
+    /**
+     * Reader states.
+     */
+    private enum State {
+        HEADER, BODY, CHUNK_SIZE, CHUNK_DATA, CHUNK_END, TRAILER, UNTIL_CLOSE, DONE
+    }
+
+    private State state = State.HEADER;
+    private StringBuilder line = new StringBuilder();
+    private StringBuilder header = new StringBuilder();
+    private long remaining;
+    private int statusCode;
+    private boolean connectionClose;
+    private long bodyBytes;
+    private String cookie;
+
+    /**
+     * Prepares reader for the next response.
+     */
+    void reset() {
+        state = State.HEADER;
+        line.setLength(0);
+        header.setLength(0);
+        remaining = 0;
+        statusCode = 0;
+        connectionClose = false;
+        bodyBytes = 0;
+        cookie = null;
+    }
+
+    /**
+     * Consumes bytes of the response from given buffer. Bytes following the response are left in the buffer.
+     *
+     * @param buffer Buffer in read mode.
+     * @return {@code true} if the whole response has been read, {@code false} otherwise.
+     * @throws IllegalStateException If response is malformed.
+     */
+    boolean feed(ByteBuffer buffer) {
+        while (buffer.hasRemaining() && state != State.DONE) {
+            switch (state) {
+                case HEADER:
+                    if (readLine(buffer)) {
+                        if (line.length() == 0) {
+                            parseHeader();
+                        } else {
+                            header.append(line).append('\n');
+                            line.setLength(0);
+                        }
+                    } else if (header.length() + line.length() > MAX_HEADER_SIZE) {
+                        throw new IllegalStateException("Response header is too large.");
+                    }
+                    break;
+                case BODY:
+                case CHUNK_DATA:
+                    int n = (int) Math.min(remaining, buffer.remaining());
+                    buffer.position(buffer.position() + n);
+                    remaining -= n;
+                    bodyBytes += n;
+                    if (remaining == 0) {
+                        state = state == State.BODY ? State.DONE : State.CHUNK_END;
+                    }
+                    break;
+                case CHUNK_END:
+                    if (readLine(buffer)) {
+                        line.setLength(0);
+                        state = State.CHUNK_SIZE;
+                    }
+                    break;
+                case CHUNK_SIZE:
+                    if (readLine(buffer)) {
+                        int extension = line.indexOf(";");
+                        String size = (extension == -1 ? line.toString() : line.substring(0, extension)).trim();
+                        line.setLength(0);
+                        remaining = Long.parseLong(size, 16);
+                        state = remaining == 0 ? State.TRAILER : State.CHUNK_DATA;
+                    }
+                    break;
+                case TRAILER:
+                    if (readLine(buffer)) {
+                        state = line.length() == 0 ? State.DONE : State.TRAILER;
+                        line.setLength(0);
+                    }
+                    break;
+                case UNTIL_CLOSE:
+                    bodyBytes += buffer.remaining();
+                    buffer.position(buffer.limit());
+                    break;
+            }
+        }
+        return state == State.DONE;
+    }
+
+    /**
+     * Notifies the reader that the connection has been closed by the server.
+     *
+     * @return {@code true} if that completed the response, {@code false} if response was cut off.
+     */
+    boolean close() {
+        if (state == State.UNTIL_CLOSE) {
+            state = State.DONE;
+            return true;
+        }
+        return state == State.DONE;
+    }
+
+    /**
+     * Reads bytes into {@link #line} until a line feed is found. Carriage returns are dropped.
+     *
+     * @param buffer Buffer to read from.
+     * @return {@code true} if whole line has been read, {@code false} otherwise.
+     */
+    private boolean readLine(ByteBuffer buffer) {
+        while (buffer.hasRemaining()) {
+            char c = (char) (buffer.get() & 0xFF);
+            if (c == '\n') {
+                return true;
+            }
+            if (c != '\r') {
+                line.append(c);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Parses status line and header fields and chooses how the body is framed.
+     */
+    private void parseHeader() {
+        String[] lines = header.toString().split("\n");
+        String[] status = lines[0].split(" ", 3);
+        if (status.length < 2 || status[0].startsWith("HTTP/") == false) {
+            throw new IllegalStateException("Invalid status line: " + lines[0]);
+        }
+        statusCode = Integer.parseInt(status[1]);
+        Long contentLength = null;
+        boolean chunked = false;
+        connectionClose = status[0].equals("HTTP/1.0");
+        for (int i = 1; i < lines.length; i++) {
+            int colon = lines[i].indexOf(':');
+            if (colon == -1) {
+                continue;
+            }
+            String name = lines[i].substring(0, colon).trim().toLowerCase(Locale.ROOT);
+            if (name.equals("set-cookie")) {
+                String pair = lines[i].substring(colon + 1).trim();
+                int attributes = pair.indexOf(';');
+                cookie = attributes == -1 ? pair : pair.substring(0, attributes);
+                continue;
+            }
+            String value = lines[i].substring(colon + 1).trim().toLowerCase(Locale.ROOT);
+            switch (name) {
+                case "content-length":
+                    contentLength = Long.parseLong(value);
+                    break;
+                case "transfer-encoding":
+                    chunked = value.contains("chunked");
+                    break;
+                case "connection":
+                    connectionClose = value.contains("close");
+                    break;
+            }
+        }
+        if (chunked) {
+            state = State.CHUNK_SIZE;
+        } else if (contentLength != null) {
+            remaining = contentLength;
+            state = remaining == 0 ? State.DONE : State.BODY;
+        } else {
+            connectionClose = true;
+            state = State.UNTIL_CLOSE;
+        }
+    }
+
+    /**
+     * @return Status code of the response, {@code 0} if header has not been read yet.
+     */
+    int getStatusCode() {
+        return statusCode;
+    }
+
+    /**
+     * @return {@code true} if server will close the connection after the response.
+     */
+    boolean isConnectionClose() {
+        return connectionClose;
+    }
+
+    /**
+     * @return Name-value pair of the last cookie set by the response, {@code null} if response sets no cookies.
+     */
+    String getCookie() {
+        return cookie;
+    }
+
+    /**
+     * @return Number of body bytes read so far.
+     */
+    long getBodyBytes() {
+        return bodyBytes;
+    }
+}
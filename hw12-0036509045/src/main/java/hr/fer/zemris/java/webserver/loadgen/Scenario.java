@@ -0,0 +1,191 @@
+package hr.fer.zemris.java.webserver.loadgen;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Weighted list of requests sent by the load generator.
+ * <p>
+ * Scenario file has one request per line: weight, method and path separated by whitespace, optionally followed by
+ * a form encoded body of a {@code POST} request, e.g. {@code 3 GET /scripts/fibonacciHTML.smscr} or
+ * {@code 1 POST /calc a=5&b=7}. Empty lines and lines starting with {@code #} are ignored.
+ * Requests are sent in a fixed order in which each request appears as many times as its weight, spread as evenly
+ * as possible, so two runs of the same scenario send the same requests.
+ *
+ * @author Jan Capek
+ */
+public class Scenario {
+
+    /**
+     * Maximum sum of all weights.
+     */
+    private static final int MAX_TOTAL_WEIGHT = 10_000;
+
+    /**
+     * Requests of the scenario.
+     */
+    private List<Request> requests;
+
+    /**
+     * Indexes of requests in the order they are sent.
+     */
+    private int[] order;
+
+    /**
+     * Constructs a new scenario.
+     *
+     * @param requests Requests of the scenario.
+     * @param weights  Weight of each request.
+     * @throws IllegalArgumentException If there are no requests or weights are invalid.
+     */
+    private Scenario(List<Request> requests, List<Integer> weights) {
+        if (requests.isEmpty()) {
+            throw new IllegalArgumentException("Scenario has no requests.");
+        }
+        int total = 0;
+        for (int weight : weights) {
+            if (weight < 1 || (total += weight) > MAX_TOTAL_WEIGHT) {
+                throw new IllegalArgumentException("Weights must be positive and add up to at most " + MAX_TOTAL_WEIGHT + ".");
+            }
+        }
+        this.requests = Collections.unmodifiableList(requests);
+
+//        smooth weighted round robin, heavier requests do not come in bursts
+        order = new int[total];
+        int[] current = new int[weights.size()];
+        for (int i = 0; i < total; i++) {
+            int best = 0;
+            for (int j = 0; j < current.length; j++) {
+                current[j] += weights.get(j);
+                if (current[j] > current[best]) {
+                    best = j;
+                }
+            }
+            current[best] -= total;
+            order[i] = best;
+        }
+    }
+
+    /**
+     * Creates a scenario consisting of a single {@code GET} request.
+     *
+     * @param path Requested path, including query string if any.
+     * @return New scenario.
+     * @throws NullPointerException If given path is {@code null}.
+     */
+    public static Scenario single(String path) {
+        List<Request> requests = new ArrayList<>();
+        requests.add(new Request("GET", Objects.requireNonNull(path), null));
+        return new Scenario(requests, List.of(1));
+    }
+
+    /**
+     * Loads a scenario from given file.
+     *
+     * @param file Scenario file.
+     * @return Loaded scenario.
+     * @throws IOException              If file could not be read.
+     * @throws IllegalArgumentException If file is invalid.
+     */
+    public static Scenario load(Path file) throws IOException {
+        List<Request> requests = new ArrayList<>();
+        List<Integer> weights = new ArrayList<>();
+        int lineNumber = 0;
+        for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+            lineNumber++;
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] parts = line.split("\\s+", 4);
+            if (parts.length < 3 || (parts[1].equals("GET") == false && parts[1].equals("POST") == false)
+                    || parts[2].startsWith("/") == false || (parts.length == 4 && parts[1].equals("GET"))) {
+                throw new IllegalArgumentException("Invalid scenario line " + lineNumber + ": " + line);
+            }
+            try {
+                weights.add(Integer.parseInt(parts[0]));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid weight on scenario line " + lineNumber + ".");
+            }
+            requests.add(new Request(parts[1], parts[2], parts.length == 4 ? parts[3] : null));
+        }
+        return new Scenario(requests, weights);
+    }
+
+    /**
+     * @return Requests of the scenario.
+     */
+    public List<Request> getRequests() {
+        return requests;
+    }
+
+    /**
+     * Returns index of the request that is sent as the given request of a run.
+     *
+     * @param sequence Sequence number of the request in the run.
+     * @return Index of the request in {@link #getRequests()}.
+     */
+    int indexOf(long sequence) {
+        return order[(int) (sequence % order.length)];
+    }
+
+    /**
+     * Single request of a scenario.
+     */
+    public static class Request {
+        private String method;
+        private String path;
+        private String body;
+
+        /**
+         * @param method Request method.
+         * @param path   Requested path, including query string if any.
+         * @param body   Form encoded request body, {@code null} if request has no body.
+         */
+        Request(String method, String path, String body) {
+            this.method = method;
+            this.path = path;
+            this.body = body;
+        }
+
+        /**
+         * @return Method and path of the request.
+         */
+        public String getName() {
+            return method + " " + path;
+        }
+
+        /**
+         * Encodes the request.
+         *
+         * @param host      Value of the host header.
+         * @param cookie    Cookie name-value pair sent with the request, {@code null} if there is none.
+         * @param keepAlive Flag that indicates if connection should be kept open after the response.
+         * @return Request bytes.
+         */
+        byte[] encode(String host, String cookie, boolean keepAlive) {
+            StringBuilder sb = new StringBuilder(128);
+            sb.append(method).append(' ').append(path).append(" HTTP/1.1\r\n")
+                    .append("Host: ").append(host).append("\r\n")
+                    .append("Connection: ").append(keepAlive ? "keep-alive" : "close").append("\r\n");
+            if (cookie != null) {
+                sb.append("Cookie: ").append(cookie).append("\r\n");
+            }
+            if (body != null) {
+                sb.append("Content-Type: application/x-www-form-urlencoded\r\n")
+                        .append("Content-Length: ").append(body.length()).append("\r\n");
+            }
+            sb.append("\r\n");
+            if (body != null) {
+                sb.append(body);
+            }
+            return sb.toString().getBytes(StandardCharsets.ISO_8859_1);
+        }
+    }
+}
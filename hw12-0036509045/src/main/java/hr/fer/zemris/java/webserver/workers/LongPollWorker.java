@@ -0,0 +1,131 @@
+package hr.fer.zemris.java.webserver.workers;
+
+import hr.fer.zemris.java.webserver.IAsyncWebWorker;
+import hr.fer.zemris.java.webserver.RequestContext;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Long polling worker. Request with parameter {@code publish} delivers its value to all clients currently waiting,
+ * any other request waits for the next published message for at most {@code wait} seconds (20 by default)
+ * and gets an empty 204 response if nothing is published in that time.
+ * Waiting clients do not hold any server threads.
+ *
+ * @author Jan Capek
+ */
+public class LongPollWorker implements IAsyncWebWorker {
+
+    /**
+     * Maximum number of seconds a client can wait.
+     */
+    private static final int MAX_WAIT = 50;
+
+    /**
+     * Timer used to end waits in which nothing was published.
+     */
+    private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "long-poll-timer");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * Clients waiting for the next message.
+     */
+    private List<Waiter> waiters = new ArrayList<>();
+
+    @Override
+    public CompletionStage<Void> processRequestAsync(RequestContext context) throws Exception {
+        context.setMimeType("text/plain");
+        String message = context.getParameter("publish");
+        if (message != null) {
+            int delivered = publish(message);
+            context.write("Delivered to " + delivered + " clients.");
+            return CompletableFuture.completedFuture(null);
+        }
+
+        int wait;
+        try {
+            wait = Math.max(1, Math.min(MAX_WAIT, Integer.parseInt(context.getParameter("wait"))));
+        } catch (NumberFormatException e) {
+            wait = 20;
+        }
+        Waiter waiter = new Waiter(context);
+        waiter.timeout = TIMER.schedule(() -> {
+            synchronized (this) {
+                waiters.remove(waiter);
+            }
+            waiter.respond(null);
+        }, wait, TimeUnit.SECONDS);
+        synchronized (this) {
+            if (waiter.done.isDone() == false) {
+                waiters.add(waiter);
+            }
+        }
+        return waiter.done;
+    }
+
+    /**
+     * Delivers given message to all waiting clients.
+     *
+     * @param message Message that needs to be delivered.
+     * @return Number of clients message was delivered to.
+     */
+    private int publish(String message) {
+        List<Waiter> current;
+        synchronized (this) {
+            current = waiters;
+            waiters = new ArrayList<>();
+        }
+        for (Waiter waiter : current) {
+            waiter.timeout.cancel(false);
+            waiter.respond(message);
+        }
+        return current.size();
+    }
+
+    /**
+     * Client waiting for a message.
+     */
+    private static class Waiter {
+        private RequestContext context;
+        private CompletableFuture<Void> done = new CompletableFuture<>();
+        private ScheduledFuture<?> timeout;
+
+        /**
+         * @param context Context of the waiting request.
+         */
+        Waiter(RequestContext context) {
+            this.context = context;
+        }
+
+        /**
+         * Writes the response, unless it has already been written.
+         *
+         * @param message Delivered message, {@code null} if nothing was published in time.
+         */
+        synchronized void respond(String message) {
+            if (done.isDone()) {
+                return;
+            }
+            try {
+                if (message == null) {
+                    context.setStatusCode(204);
+                    context.setStatusText("No Content");
+                } else {
+                    context.write(message);
+                }
+                done.complete(null);
+            } catch (Exception e) {
+                done.completeExceptionally(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package hr.fer.zemris.java.custom.scripting.exec;
+
+import hr.fer.zemris.java.custom.scripting.nodes.DocumentNode;
+import hr.fer.zemris.java.custom.scripting.parser.SmartScriptParser;
+import hr.fer.zemris.java.webserver.RequestContext;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures execution of smart scripts: the Fibonacci table served by the web server, the basic sample
+ * with its sine table, and nested loops doing arithmetic like report templates do. Scripts are either executed
+ * from their document node, which compiles them every time, or compiled once like the web server does.
+ * Output is written to a stream that discards it.
+ * <p>
+ * Run from the module directory with {@code mvn test-compile exec:exec -Dexec.classpathScope=test
+ * -Dexec.executable=java "-Dexec.args=-cp %classpath hr.fer.zemris.java.custom.scripting.exec.SmartScriptEngineBenchmark"}.
+ *
+ * @author Jan Capek
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SmartScriptEngineBenchmark {
+
+    /**
+     * Script with nested loops, 2500 iterations of the inner one.
+     */
+    private static final String LOOPS = "{$FOR i 1 50 1$}<tr>{$FOR j 1 50 1$}<td>{$= i j * 3 + i \"2\" - $}</td>"
+            + "{$END$}</tr>\n{$END$}";
+
+    /**
+     * Script that is executed.
+     */
+    @Param({"fibonacciHTML", "osnovni", "loops"})
+    public String script;
+
+    private OutputStream sink = OutputStream.nullOutputStream();
+    private DocumentNode document;
+    private CompiledScript compiled;
+
+    @Setup
+    public void setup() throws IOException {
+        String text = script.equals("loops") ? LOOPS : Files.readString(Path.of("webroot/scripts/" + script + ".smscr"));
+        document = new SmartScriptParser(text).getDocumentNode();
+        compiled = SmartScriptCompiler.compile(document);
+    }
+
+    /**
+     * @return New context of a request writing to the sink.
+     */
+    private RequestContext newContext() {
+        return new RequestContext(sink, new HashMap<>(), new HashMap<>(), new ArrayList<>(), null);
+    }
+
+    @Benchmark
+    public RequestContext compileAndExecute() {
+        RequestContext context = newContext();
+        new SmartScriptEngine(document, context).execute();
+        return context;
+    }
+
+    @Benchmark
+    public RequestContext executeCompiled() {
+        RequestContext context = newContext();
+        compiled.execute(context);
+        return context;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(SmartScriptEngineBenchmark.class.getSimpleName()).build()).run();
+    }
+}
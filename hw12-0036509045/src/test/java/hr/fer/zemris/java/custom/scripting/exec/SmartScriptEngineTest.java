@@ -0,0 +1,76 @@
+package hr.fer.zemris.java.custom.scripting.exec;
+
+import hr.fer.zemris.java.custom.scripting.parser.SmartScriptParser;
+import hr.fer.zemris.java.webserver.RequestContext;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SmartScriptEngineTest {
+
+    private static String execute(String script) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        Map<String, String> parameters = new HashMap<>();
+        parameters.put("q", "3");
+        RequestContext context = new RequestContext(bos, parameters, new HashMap<>(), new ArrayList<>(), null);
+        new SmartScriptEngine(new SmartScriptParser(script).getDocumentNode(), context).execute();
+        context.flush();
+        String output = bos.toString(StandardCharsets.UTF_8);
+        return output.substring(output.indexOf("\r\n\r\n") + 4);
+    }
+
+    @Test
+    void testNestedLoopsHideVariables() throws IOException {
+        assertEquals("a[1][3][5]1x1.5|a[2][4]2x1.5|a[3][5]3x1.5|",
+                execute("{$FOR i 1 3 1$}a{$FOR i i 5 2$}[{$= i$}]{$END$}{$= i \"x\" 1.5 $}|{$END$}"));
+    }
+
+    @Test
+    void testVariableScopes() throws IOException {
+        assertEquals("1112131|122232|3", execute("{$FOR i 1 2 1$}{$FOR j 1 i 1$}{$= j $}{$END$}"
+                + "{$FOR k i 3 1$}{$= k i $}{$END$}|{$END$}{$FOR i 3 i 1$}{$= i $}{$END$}"));
+        assertEquals("123424", execute("{$FOR i 1 2 i$}{$FOR i i 4 i$}{$= i $}{$END$}{$END$}"));
+        assertThrows(SmartScriptRuntimeException.class, () -> execute("{$FOR i 1 2 1$}{$END$}{$= i $}"));
+    }
+
+    @Test
+    void testLoopBounds() throws IOException {
+        assertEquals("1.5,2.0,2.5,3.0,",
+                execute("{$FOR i 10 1 1$}never{$END$}{$FOR i 1.5 3 \"0.5\"$}{$=i$},{$END$}"));
+    }
+
+    @Test
+    void testMethodsAndOperators() throws IOException {
+        assertEquals("x21.03.25y300.66666666666666669.0",
+                execute("x{$= 1 2 @swap \"0.0\" @decfmt 3.25 $}y{$= \"7\" \"2\" / 2 3 / 2.0 3 / -1 \"1e1\" + $}"));
+        assertEquals("z9", execute("{$= \"a\" \"b\" @pparamSet \"a\" \"z\" @pparamGet \"q\" 4 @paramGet @dup * $}"));
+    }
+
+    @Test
+    void testErrorsAreRaisedWhenReached() throws IOException {
+        assertEquals("ok", execute("ok{$FOR i 1 0 1$}{$= 1 @nosuch $}{$= j $}{$END$}"));
+        assertThrows(SmartScriptRuntimeException.class, () -> execute("ok{$= 1 @nosuch $}"));
+        assertThrows(SmartScriptRuntimeException.class, () -> execute("ok{$= j $}"));
+        assertThrows(SmartScriptRuntimeException.class, () -> execute("ok{$= 1 0 / $}"));
+    }
+
+    @Test
+    void testCompiledScriptIsReusable() throws IOException {
+        CompiledScript script = SmartScriptCompiler.compile(
+                new SmartScriptParser("{$FOR i 1 3 1$}{$= i i * $} {$END$}").getDocumentNode());
+        for (int run = 0; run < 2; run++) {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            RequestContext context = new RequestContext(bos, new HashMap<>(), new HashMap<>(), new ArrayList<>(), null);
+            script.execute(context);
+            context.flush();
+            assertTrue(bos.toString(StandardCharsets.UTF_8).endsWith("\r\n\r\n1 4 9 "));
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package hr.fer.zemris.java.custom.scripting.exec.util;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ValueWrapperTest {
+
+    @Test
+    void testIntegerOperations() {
+        ValueWrapper value = new ValueWrapper(null);
+        value.add(7);
+        value.multiply("3");
+        value.subtract(new ValueWrapper(-2));
+        assertEquals(23, value.getValue());
+        value.divide(new ValueWrapper("-4"));
+        assertEquals(-5, value.getValue());
+
+        value.setValue(Integer.MAX_VALUE);
+        value.add(1);
+        assertEquals(Integer.MAX_VALUE, value.getValue());
+        value.multiply(-2);
+        assertEquals(Integer.MIN_VALUE, value.getValue());
+        value.divide(-1);
+        assertEquals(Integer.MAX_VALUE, value.getValue());
+    }
+
+    @Test
+    void testDoubleOperations() {
+        ValueWrapper value = new ValueWrapper("1.5");
+        value.add(1);
+        assertEquals(2.5, value.getValue());
+        value.multiply(new ValueWrapper("1e1"));
+        assertEquals(25.0, value.getValue());
+
+        value.setValue(1);
+        value.divide(new ValueWrapper(0.0));
+        assertEquals(Double.POSITIVE_INFINITY, value.getValue());
+        value.setValue("2147483648");
+        value.add(0);
+        assertEquals(2147483648.0, value.getValue());
+    }
+
+    @Test
+    void testErrors() {
+        ValueWrapper value = new ValueWrapper("5");
+        assertThrows(ArithmeticException.class, () -> value.divide(null));
+        assertThrows(RuntimeException.class, () -> value.add("five"));
+        assertThrows(RuntimeException.class, () -> value.add(5L));
+        assertEquals("5", value.getValue());
+        value.setValue(new Object());
+        assertThrows(RuntimeException.class, () -> value.numCompare(0));
+    }
+
+    @Test
+    void testNumCompare() {
+        ValueWrapper value = new ValueWrapper(3);
+        assertEquals(0, value.numCompare("3"));
+        assertTrue(value.numCompare(3.5) < 0);
+        assertTrue(value.numCompare(null) > 0);
+        value.setValue(Integer.MIN_VALUE);
+        assertTrue(value.numCompare(Integer.MAX_VALUE) < 0);
+        value.setValue(null);
+        assertEquals(0, value.numCompare(0.0));
+    }
+}
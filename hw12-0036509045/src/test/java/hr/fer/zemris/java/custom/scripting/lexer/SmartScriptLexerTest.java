@@ -3,6 +3,11 @@ package hr.fer.zemris.java.custom.scripting.lexer;
 import hr.fer.zemris.java.custom.scripting.lexer.*;
 import org.junit.jupiter.api.Test;
 
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.CharBuffer;
+
 import static org.junit.jupiter.api.Assertions.*;
 
 class SmartScriptLexerTest {
@@ -256,4 +261,50 @@ class SmartScriptLexerTest {
         };
         test(lexer, tokens);
     }
+
+    @Test
+    void nextTokenReaderReadingSingleCharacters() {
+        Reader reader = new StringReader("a\\\\b\\{$ {$ FOR i-1.5 .5 \"x\\\\\\\"\" @f_1 $}text") {
+            @Override
+            public int read(char[] cbuf, int off, int len) throws IOException {
+                return super.read(cbuf, off, Math.min(len, 1));
+            }
+        };
+        lexer = new SmartScriptLexer(reader);
+        assertEquals(new SmartScriptToken(SmartScriptTokenType.NORMAL_TEXT, "a\\b{$ "), lexer.nextToken());
+        assertEquals(new SmartScriptToken(SmartScriptTokenType.OPEN_TAG_BRACKET, "{$"), lexer.nextToken());
+        lexer.setState(SmartScriptLexerState.TAG);
+        SmartScriptToken[] tokens = {
+                new SmartScriptToken(SmartScriptTokenType.KEYWORD, "for"),
+                new SmartScriptToken(SmartScriptTokenType.IDENTIFIER, "i"),
+                new SmartScriptToken(SmartScriptTokenType.DOUBLE_CONSTANT, -1.5),
+                new SmartScriptToken(SmartScriptTokenType.DOUBLE_CONSTANT, 0.5),
+                new SmartScriptToken(SmartScriptTokenType.STRING, "x\\\""),
+                new SmartScriptToken(SmartScriptTokenType.FUNCTION, "f_1"),
+                new SmartScriptToken(SmartScriptTokenType.CLOSED_TAG_BRACKET, "$}")
+        };
+        for (SmartScriptToken token : tokens) {
+            assertEquals(token, lexer.nextToken());
+        }
+        lexer.setState(SmartScriptLexerState.BASIC);
+        test(lexer, new SmartScriptToken(SmartScriptTokenType.NORMAL_TEXT, "text"),
+                new SmartScriptToken(SmartScriptTokenType.EOF, null));
+    }
+
+    @Test
+    void nextTokenTextLongerThanBuffer() {
+        String text = "0123456789\\\\".repeat(10000);
+        lexer = new SmartScriptLexer(CharBuffer.wrap(text + "{$"));
+        test(lexer, new SmartScriptToken(SmartScriptTokenType.NORMAL_TEXT, text.replace("\\\\", "\\")),
+                new SmartScriptToken(SmartScriptTokenType.OPEN_TAG_BRACKET, "{$"),
+                new SmartScriptToken(SmartScriptTokenType.EOF, null));
+    }
+
+    @Test
+    void nextTokenTagStateEndsWithSpaces() {
+        lexer = new SmartScriptLexer("$}  \n");
+        lexer.setState(SmartScriptLexerState.TAG);
+        test(lexer, new SmartScriptToken(SmartScriptTokenType.CLOSED_TAG_BRACKET, "$}"),
+                new SmartScriptToken(SmartScriptTokenType.EOF, null));
+    }
 }
\ No newline at end of file
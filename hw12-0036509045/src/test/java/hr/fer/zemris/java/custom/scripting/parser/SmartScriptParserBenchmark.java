@@ -0,0 +1,94 @@
+package hr.fer.zemris.java.custom.scripting.parser;
+
+import hr.fer.zemris.java.custom.scripting.lexer.SmartScriptLexer;
+import hr.fer.zemris.java.custom.scripting.lexer.SmartScriptLexerState;
+import hr.fer.zemris.java.custom.scripting.lexer.SmartScriptToken;
+import hr.fer.zemris.java.custom.scripting.lexer.SmartScriptTokenType;
+import hr.fer.zemris.java.custom.scripting.nodes.DocumentNode;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures parsing of large templates stored in a file: the Fibonacci table served by the web server repeated
+ * until the file has the given size. Templates are either read whole into a string and parsed, or parsed
+ * while they are read. Lexing alone shows the memory used by the lexer itself, which does not depend on
+ * the size of the template.
+ * <p>
+ * Run from the module directory with {@code mvn test-compile exec:exec -Dexec.classpathScope=test
+ * -Dexec.executable=java "-Dexec.args=-cp %classpath hr.fer.zemris.java.custom.scripting.parser.SmartScriptParserBenchmark -prof gc"}.
+ *
+ * @author Jan Capek
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SmartScriptParserBenchmark {
+
+    /**
+     * Size of the template in megabytes.
+     */
+    @Param({"1", "8"})
+    public int megabytes;
+
+    private Path file;
+
+    @Setup
+    public void setup() throws IOException {
+        String script = Files.readString(Path.of("webroot/scripts/fibonacciHTML.smscr"));
+        StringBuilder sb = new StringBuilder();
+        while (sb.length() < megabytes * 1024 * 1024) {
+            sb.append(script);
+        }
+        file = Files.createTempFile("template", ".smscr");
+        Files.writeString(file, sb);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    @Benchmark
+    public DocumentNode parseString() throws IOException {
+        return new SmartScriptParser(Files.readString(file)).getDocumentNode();
+    }
+
+    @Benchmark
+    public DocumentNode parseReader() throws IOException {
+        try (Reader reader = Files.newBufferedReader(file)) {
+            return SmartScriptParser.fromReader(reader).getDocumentNode();
+        }
+    }
+
+    @Benchmark
+    public int lexReader() throws IOException {
+        try (Reader reader = Files.newBufferedReader(file)) {
+            SmartScriptLexer lexer = new SmartScriptLexer(reader);
+            int tokens = 0;
+            for (SmartScriptToken token = lexer.nextToken(); token.getType() != SmartScriptTokenType.EOF; token = lexer.nextToken()) {
+                if (token.getType() == SmartScriptTokenType.OPEN_TAG_BRACKET) {
+                    lexer.setState(SmartScriptLexerState.TAG);
+                } else if (token.getType() == SmartScriptTokenType.CLOSED_TAG_BRACKET) {
+                    lexer.setState(SmartScriptLexerState.BASIC);
+                }
+                tokens++;
+            }
+            return tokens;
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(SmartScriptParserBenchmark.class.getSimpleName()).build()).run();
+    }
+}
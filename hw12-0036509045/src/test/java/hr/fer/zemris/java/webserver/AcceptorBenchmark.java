@@ -0,0 +1,105 @@
+package hr.fer.zemris.java.webserver;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how many connections per second a running server accepts and serves, each connection carrying
+ * a single request for a small static file. Several client threads connect at once, so with more acceptor threads
+ * than one the accept rate should grow with the number of cores, until worker threads become the limit.
+ * <p>
+ * Run from the module directory with {@code mvn test-compile exec:exec -Dexec.classpathScope=test
+ * -Dexec.executable=java "-Dexec.args=-cp %classpath hr.fer.zemris.java.webserver.AcceptorBenchmark"}.
+ *
+ * @author Jan Capek
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AcceptorBenchmark {
+
+    private static final byte[] REQUEST = ("GET /sample.txt HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n")
+            .getBytes(StandardCharsets.ISO_8859_1);
+
+    /**
+     * Number of acceptor threads of the server.
+     */
+    @Param({"1", "4"})
+    public int acceptors;
+
+    /**
+     * Connection mode of the server.
+     */
+    @Param({"blocking", "nio"})
+    public String mode;
+
+    private SmartHttpServer server;
+    private Path config;
+    private int port;
+
+    @Setup
+    public void setup() throws IOException {
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        Properties properties = new Properties();
+        try (InputStream is = Files.newInputStream(Path.of("config/server.properties"))) {
+            properties.load(is);
+        }
+        properties.setProperty("server.port", Integer.toString(port));
+        properties.setProperty("server.acceptorThreads", Integer.toString(acceptors));
+        properties.setProperty("server.connectionMode", mode);
+        properties.setProperty("server.workerThreads", "16");
+        properties.setProperty("server.clientRequestRate", "0");
+        properties.setProperty("server.maxClientConnections", "0");
+        properties.setProperty("server.watchConfig", "false");
+        config = Files.createTempFile("acceptor-benchmark", ".properties");
+        try (Writer writer = Files.newBufferedWriter(config)) {
+            properties.store(writer, null);
+        }
+        server = new SmartHttpServer(config.toString());
+        server.start();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        server.stop();
+        Files.deleteIfExists(config);
+    }
+
+    @Benchmark
+    @Threads(16)
+    public int connectAndFetch() throws IOException {
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            socket.getOutputStream().write(REQUEST);
+            InputStream is = socket.getInputStream();
+            byte[] buffer = new byte[4096];
+            int total = 0;
+            for (int read = is.read(buffer); read != -1; read = is.read(buffer)) {
+                total += read;
+            }
+            return total;
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(AcceptorBenchmark.class.getSimpleName()).build()).run();
+    }
+}
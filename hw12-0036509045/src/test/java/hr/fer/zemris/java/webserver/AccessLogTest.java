@@ -0,0 +1,74 @@
+package hr.fer.zemris.java.webserver;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AccessLogTest {
+
+    private static AccessLog.Entry entry(String path) {
+        return new AccessLog.Entry(0, "127.0.0.1", "GET", path, 200, 1234, 56_789_000, null, "curl \"8\"");
+    }
+
+    @Test
+    void testPatternFormat() {
+        AccessLog log = new AccessLog(Path.of("access.log"), "%a \"%m %U\" %s %b %Dus %S \"%u\" 100%%", 0, 0, 1);
+        StringBuilder sb = new StringBuilder();
+        log.format(entry("/index.html?a=1"), sb);
+        assertEquals("127.0.0.1 \"GET /index.html?a=1\" 200 1234 56789us - \"curl \\\"8\\\"\" 100%\n", sb.toString());
+    }
+
+    @Test
+    void testJsonFormat() {
+        AccessLog log = new AccessLog(Path.of("access.log"), AccessLog.JSON_FORMAT, 0, 0, 1);
+        StringBuilder sb = new StringBuilder();
+        log.format(entry("/a\nb"), sb);
+        String line = sb.toString();
+        assertTrue(line.startsWith("{\"time\":\""));
+        assertTrue(line.endsWith(",\"address\":\"127.0.0.1\",\"method\":\"GET\",\"path\":\"/a\\u000ab\",\"status\":200,"
+                + "\"bytes\":1234,\"latencyMicros\":56789,\"sid\":null,\"userAgent\":\"curl \\\"8\\\"\"}\n"));
+    }
+
+    @Test
+    void testInvalidPattern() {
+        assertThrows(IllegalArgumentException.class, () -> new AccessLog(Path.of("access.log"), "%x", 0, 0, 1));
+        assertThrows(IllegalArgumentException.class, () -> new AccessLog(Path.of("access.log"), "%s %", 0, 0, 1));
+    }
+
+    @Test
+    void testFullBufferDropsEntries() {
+        AccessLog log = new AccessLog(Path.of("access.log"), AccessLog.JSON_FORMAT, 0, 0, 3);
+        for (int i = 0; i < 4; i++) {
+            assertTrue(log.add(entry("/" + i)));
+        }
+        assertFalse(log.add(entry("/4")));
+        assertEquals(1, log.getDropped());
+    }
+
+    @Test
+    void testEntriesAreWrittenAndRotated(@TempDir Path directory) throws IOException {
+        Path file = directory.resolve("logs").resolve("access.log");
+        AccessLog log = new AccessLog(file, "%U", 10, 2, 16);
+        log.start();
+        for (int i = 0; i < 5; i++) {
+            log.add(entry("/" + i + "23456"));
+//            each entry fills a file, wait so entries are written one batch at a time
+            long deadline = System.currentTimeMillis() + 5000;
+            while (log.getWritten() <= i && System.currentTimeMillis() < deadline) {
+                Thread.onSpinWait();
+            }
+        }
+        log.close();
+        assertEquals(5, log.getWritten());
+        assertEquals(List.of("/423456"), Files.readAllLines(file));
+        assertEquals(List.of("/323456"), Files.readAllLines(directory.resolve("logs").resolve("access.log.1")));
+        assertEquals(List.of("/223456"), Files.readAllLines(directory.resolve("logs").resolve("access.log.2")));
+        assertFalse(Files.exists(directory.resolve("logs").resolve("access.log.3")));
+    }
+}
@@ -0,0 +1,72 @@
+package hr.fer.zemris.java.webserver;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ByteRangeTest {
+
+    private static String ranges(String header, long size) {
+        List<ByteRange> ranges = ByteRange.parse(header, size);
+        if (ranges == null) {
+            return null;
+        }
+        return ranges.stream().map(r -> r.getFirst() + "-" + r.getLast()).collect(Collectors.joining(","));
+    }
+
+    @Test
+    void testSingleRanges() {
+        assertEquals("0-99", ranges("bytes=0-99", 1000));
+        assertEquals("500-999", ranges("bytes=500-", 1000));
+        assertEquals("900-999", ranges("bytes=-100", 1000));
+        assertEquals("0-999", ranges("bytes=-5000", 1000));
+        assertEquals("990-999", ranges("bytes=990-5000", 1000));
+        assertEquals("7-7", ranges(" BYTES=7-7 ", 1000));
+    }
+
+    @Test
+    void testContentRangeAndLength() {
+        ByteRange range = ByteRange.parse("bytes=10-19", 100).get(0);
+        assertEquals(10, range.length());
+        assertEquals("bytes 10-19/100", range.toContentRange(100));
+    }
+
+    @Test
+    void testRangesAreSortedAndMerged() {
+        assertEquals("0-9,20-29", ranges("bytes=20-29, 0-9", 100));
+        assertEquals("0-29", ranges("bytes=0-9,10-19,15-29", 100));
+        assertEquals("0-99", ranges("bytes=0-,-10", 100));
+    }
+
+    @Test
+    void testUnsatisfiableRanges() {
+        assertEquals("", ranges("bytes=1000-", 1000));
+        assertEquals("", ranges("bytes=-0", 1000));
+        assertEquals("", ranges("bytes=0-", 0));
+        assertEquals("0-9", ranges("bytes=0-9,2000-3000", 1000));
+    }
+
+    @Test
+    void testInvalidHeadersAreIgnored() {
+        assertNull(ranges(null, 1000));
+        assertNull(ranges("items=0-9", 1000));
+        assertNull(ranges("bytes=", 1000));
+        assertNull(ranges("bytes=9-0", 1000));
+        assertNull(ranges("bytes=a-b", 1000));
+        assertNull(ranges("bytes=+1-2", 1000));
+        assertNull(ranges("bytes=5", 1000));
+        assertNull(ranges("bytes=0-99999999999999999999", 1000));
+    }
+
+    @Test
+    void testTooManyRangesAreIgnored() {
+        StringBuilder sb = new StringBuilder("bytes=0-0");
+        for (int i = 1; i <= ByteRange.MAX_RANGES; i++) {
+            sb.append(',').append(i * 2).append('-').append(i * 2);
+        }
+        assertNull(ranges(sb.toString(), 1000));
+    }
+}
@@ -0,0 +1,84 @@
+package hr.fer.zemris.java.webserver;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures rate limit and connection limit checks of a {@link ClientLimiter} from several threads at once,
+ * since every request takes a token and every connection is counted. Clients are spread over given number of
+ * addresses; with a single address all threads contend for the same stripe.
+ * <p>
+ * Run with {@code mvn test-compile exec:exec -Dexec.classpathScope=test -Dexec.executable=java
+ * "-Dexec.args=-cp %classpath hr.fer.zemris.java.webserver.ClientLimiterBenchmark"}.
+ *
+ * @author Jan Capek
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ClientLimiterBenchmark {
+
+    /**
+     * Number of distinct client addresses.
+     */
+    @Param({"1", "10000"})
+    public int clients;
+
+    private ClientLimiter limiter;
+    private InetAddress[] addresses;
+
+    @Setup
+    public void setup() throws UnknownHostException {
+        limiter = new ClientLimiter(1e9, 1_000_000, 1_000_000);
+        addresses = new InetAddress[clients];
+        for (int i = 0; i < clients; i++) {
+            addresses[i] = InetAddress.getByAddress(new byte[]{10, (byte) (i >> 16), (byte) (i >> 8), (byte) i});
+        }
+    }
+
+    /**
+     * Position of the next client, separate for each thread.
+     */
+    @State(Scope.Thread)
+    public static class Cursor {
+        private int next;
+    }
+
+    /**
+     * @param cursor Position of the next client.
+     * @return Address of the next client.
+     */
+    private InetAddress next(Cursor cursor) {
+        int i = cursor.next;
+        cursor.next = i + 1 == addresses.length ? 0 : i + 1;
+        return addresses[i];
+    }
+
+    @Benchmark
+    @Threads(4)
+    public long acquire(Cursor cursor) {
+        return limiter.acquire(next(cursor));
+    }
+
+    @Benchmark
+    @Threads(4)
+    public boolean openAndClose(Cursor cursor) {
+        InetAddress address = next(cursor);
+        boolean opened = limiter.connectionOpened(address);
+        limiter.connectionClosed(address);
+        return opened;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(ClientLimiterBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -0,0 +1,92 @@
+package hr.fer.zemris.java.webserver;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ClientLimiterTest {
+
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private static InetAddress address(String address) throws UnknownHostException {
+        return InetAddress.getByName(address);
+    }
+
+    @Test
+    void testBurstAndRefill() throws UnknownHostException {
+        ClientLimiter limiter = new ClientLimiter(10, 3, 0);
+        InetAddress client = address("10.0.0.1");
+        long now = System.nanoTime();
+        for (int i = 0; i < 3; i++) {
+            assertEquals(0, limiter.acquire(client, now));
+        }
+        long wait = limiter.acquire(client, now);
+        assertTrue(wait > 0 && wait <= SECOND / 10);
+        assertEquals(0, limiter.acquire(address("10.0.0.2"), now));
+
+        assertEquals(0, limiter.acquire(client, now + SECOND / 10));
+        assertTrue(limiter.acquire(client, now + SECOND / 10) > 0);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(0, limiter.acquire(client, now + 10 * SECOND));
+        }
+        assertTrue(limiter.acquire(client, now + 10 * SECOND) > 0);
+        assertEquals(3, limiter.getLimitedRequests());
+    }
+
+    @Test
+    void testConnectionsArePerAddress() throws UnknownHostException {
+        ClientLimiter limiter = new ClientLimiter(0, 0, 2);
+        InetAddress client = address("10.0.0.1");
+        assertTrue(limiter.connectionOpened(client));
+        assertTrue(limiter.connectionOpened(client));
+        assertFalse(limiter.connectionOpened(client));
+        assertTrue(limiter.connectionOpened(address("10.0.0.2")));
+
+        limiter.connectionClosed(client);
+        assertTrue(limiter.connectionOpened(client));
+        assertFalse(limiter.connectionOpened(client));
+        assertEquals(2, limiter.getRefusedConnections());
+        assertEquals(0, limiter.acquire(client));
+    }
+
+    @Test
+    void testIdleClientsAreRemoved() throws UnknownHostException {
+        ClientLimiter limiter = new ClientLimiter(10, 5, 4);
+        InetAddress connected = address("10.0.0.1");
+        InetAddress limited = address("10.0.0.2");
+        long now = System.nanoTime();
+        assertTrue(limiter.connectionOpened(connected));
+        assertEquals(0, limiter.acquire(limited, now));
+        assertEquals(2, limiter.size());
+
+        limiter.removeIdle(now);
+        assertEquals(2, limiter.size());
+        limiter.removeIdle(now + SECOND);
+        assertEquals(1, limiter.size());
+        limiter.connectionClosed(connected);
+        limiter.removeIdle(now + SECOND);
+        assertEquals(0, limiter.size());
+    }
+
+    @Test
+    void testClientOfForwardedRequest() throws UnknownHostException {
+        InetAddress proxy = address("10.0.0.1");
+        Set<InetAddress> trusted = Set.of(proxy, address("10.0.0.2"));
+
+        assertEquals(address("1.2.3.4"), ClientLimiter.clientOf(proxy, "1.2.3.4", trusted));
+        assertEquals(address("1.2.3.4"), ClientLimiter.clientOf(proxy, "6.6.6.6, 1.2.3.4, 10.0.0.2", trusted));
+        assertEquals(address("2001:db8::1"), ClientLimiter.clientOf(proxy, "2001:db8::1", trusted));
+        assertEquals(proxy, ClientLimiter.clientOf(proxy, null, trusted));
+        assertEquals(proxy, ClientLimiter.clientOf(proxy, "localhost", trusted));
+        assertEquals(proxy, ClientLimiter.clientOf(proxy, "999.1.1.1", trusted));
+        assertEquals(address("10.0.0.2"), ClientLimiter.clientOf(proxy, "1.2.3.4, unknown, 10.0.0.2", trusted));
+
+        InetAddress direct = address("1.2.3.4");
+        assertEquals(direct, ClientLimiter.clientOf(direct, "5.6.7.8", trusted));
+    }
+}
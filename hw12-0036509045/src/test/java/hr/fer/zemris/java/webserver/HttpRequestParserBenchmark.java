@@ -0,0 +1,101 @@
+package hr.fer.zemris.java.webserver;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PushbackInputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Compares reading a typical browser request header the way the server did before, byte by byte from a stream
+ * and then taken apart with regular expressions, against {@link HttpRequestParser} fed from a buffer.
+ * Both variants extract request line, header fields, host and session cookie.
+ * <p>
+ * Run with {@code mvn test-compile exec:exec -Dexec.classpathScope=test -Dexec.executable=java
+ * "-Dexec.args=-cp %classpath hr.fer.zemris.java.webserver.HttpRequestParserBenchmark"}.
+ *
+ * @author Jan Capek
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HttpRequestParserBenchmark {
+
+    private static final byte[] REQUEST = ("GET /scripts/osnovni.smscr?name=Jan&a=1 HTTP/1.1\r\n"
+            + "Host: localhost:5721\r\n"
+            + "User-Agent: Mozilla/5.0 (X11; Linux x86_64; rv:109.0) Gecko/20100101 Firefox/119.0\r\n"
+            + "Accept: text/html,application/xhtml+xml,application/xml;q=0.9,image/avif,image/webp,*/*;q=0.8\r\n"
+            + "Accept-Language: hr,en-US;q=0.7,en;q=0.3\r\n"
+            + "Accept-Encoding: gzip, deflate, br\r\n"
+            + "Connection: keep-alive\r\n"
+            + "Cookie: theme=dark; sid=\"QWERTYUIOPASDFGHJKLZ\"\r\n"
+            + "Upgrade-Insecure-Requests: 1\r\n"
+            + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+
+    private HttpRequestParser parser = new HttpRequestParser(16 * 1024, 0);
+
+    @Benchmark
+    public Object streamAndRegex() throws IOException {
+        PushbackInputStream in = new PushbackInputStream(new ByteArrayInputStream(REQUEST));
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        int state = 0;
+        while (true) {
+            int b = in.read();
+            bos.write(b);
+            if (state == 3 && b == 10) {
+                break;
+            }
+            state = (b == 13 && (state == 0 || state == 2)) || (b == 10 && state == 1) ? state + 1 : 0;
+        }
+        String requestData = new String(bos.toByteArray(), StandardCharsets.ISO_8859_1);
+        String header = requestData.substring(0, requestData.indexOf("\r\n\r\n"));
+
+        Matcher first = Pattern.compile("^GET\\s([^\\s]+)\\s(HTTP/1\\.[01])(?:\r?\n|$)").matcher(header);
+        if (first.find() == false) {
+            throw new RuntimeException("Invalid header.");
+        }
+        Map<String, String> headers = new HashMap<>();
+        String[] lines = header.split("\r?\n");
+        for (int i = 1; i < lines.length; i++) {
+            int colon = lines[i].indexOf(':');
+            if (colon > 0) {
+                headers.put(lines[i].substring(0, colon).trim().toLowerCase(Locale.ROOT), lines[i].substring(colon + 1).trim());
+            }
+        }
+        String host = headers.get("host").replaceFirst(":\\d+$", "");
+        Matcher sid = Pattern.compile("\r\nCookie:.*[\\s;]sid=\"([A-Z]+)\"").matcher(header);
+        return sid.find() ? sid.group(1) + host + first.group(1) : host;
+    }
+
+    @Benchmark
+    public Object bufferParser() {
+        parser.reset();
+        if (parser.feed(ByteBuffer.wrap(REQUEST)) == false) {
+            throw new RuntimeException("Invalid header.");
+        }
+        String host = parser.getHeaders().get("host");
+        int colon = host.lastIndexOf(':');
+        host = colon > host.lastIndexOf(']') ? host.substring(0, colon) : host;
+        String sid = HttpRequestParser.parseCookies(parser.getHeaders().get("cookie")).get("sid");
+        return sid != null ? sid + host + parser.getTarget() : host;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(HttpRequestParserBenchmark.class.getSimpleName()).build()).run();
+    }
+}
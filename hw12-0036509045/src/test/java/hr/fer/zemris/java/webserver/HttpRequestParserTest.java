@@ -0,0 +1,261 @@
+package hr.fer.zemris.java.webserver;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HttpRequestParserTest {
+
+    private static final String GET = "GET /index.html?a=1 HTTP/1.1\r\nHost: localhost:5721\r\nAccept: text/html\r\n\r\n";
+
+    private static final String POST = "POST /calc HTTP/1.1\r\nHost: localhost\r\n"
+            + "Content-Type: application/x-www-form-urlencoded\r\nContent-Length: 7\r\n\r\na=1&b=2";
+
+    private static final String CHUNKED = "POST /calc HTTP/1.1\r\nHost: localhost\r\nTransfer-Encoding: chunked\r\n\r\n"
+            + "3;ext=1\r\na=1\r\n4\r\n&b=2\r\n0\r\nTrailer: x\r\n\r\n";
+
+    private static HttpRequestParser parser() {
+        return new HttpRequestParser(1024, 64);
+    }
+
+    private static ByteBuffer buffer(String data) {
+        return ByteBuffer.wrap(data.getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    private static int status(String request) {
+        HttpRequestParser parser = parser();
+        HttpParseException e = assertThrows(HttpParseException.class, () -> parser.feed(buffer(request)));
+        return e.getStatusCode();
+    }
+
+    @Test
+    void testGet() {
+        HttpRequestParser parser = parser();
+        ByteBuffer buffer = buffer(GET);
+        assertTrue(parser.feed(buffer));
+        assertFalse(buffer.hasRemaining());
+        assertEquals("GET", parser.getMethod());
+        assertEquals("/index.html?a=1", parser.getTarget());
+        assertEquals("HTTP/1.1", parser.getVersion());
+        assertEquals("localhost:5721", parser.getHeaders().get("host"));
+        assertEquals("text/html", parser.getHeaders().get("accept"));
+        assertEquals(0, parser.getBody().length);
+    }
+
+    @Test
+    void testIncompleteRequest() {
+        HttpRequestParser parser = parser();
+        assertFalse(parser.isStarted());
+        assertFalse(parser.feed(buffer("GET / HTTP/1.1\r\nHost: x\r\n")));
+        assertTrue(parser.isStarted());
+        assertFalse(parser.isHeaderComplete());
+        assertTrue(parser.feed(buffer("\r\n")));
+        assertTrue(parser.isHeaderComplete());
+    }
+
+    @Test
+    void testBareLineFeedsAndLeadingEmptyLines() {
+        HttpRequestParser parser = parser();
+        assertTrue(parser.feed(buffer("\r\n\nGET / HTTP/1.0\nHost: x\n\n")));
+        assertEquals("HTTP/1.0", parser.getVersion());
+        assertEquals("x", parser.getHeaders().get("host"));
+    }
+
+    @Test
+    void testHeaderValuesAreTrimmedAndRepeatedFieldsJoined() {
+        HttpRequestParser parser = parser();
+        assertTrue(parser.feed(buffer("GET / HTTP/1.1\r\nAccept:  a \t\r\nACCEPT: b\r\nCookie: x=1\r\ncookie: y=2\r\n\r\n")));
+        assertEquals("a, b", parser.getHeaders().get("accept"));
+        assertEquals("x=1; y=2", parser.getHeaders().get("cookie"));
+    }
+
+    @Test
+    void testContentLengthBody() {
+        HttpRequestParser parser = parser();
+        assertTrue(parser.feed(buffer(POST)));
+        assertEquals("POST", parser.getMethod());
+        assertEquals("a=1&b=2", new String(parser.getBody(), StandardCharsets.ISO_8859_1));
+    }
+
+    @Test
+    void testChunkedBody() {
+        HttpRequestParser parser = parser();
+        assertTrue(parser.feed(buffer(CHUNKED)));
+        assertEquals("a=1&b=2", new String(parser.getBody(), StandardCharsets.ISO_8859_1));
+    }
+
+    @Test
+    void testPipelinedRequests() {
+        HttpRequestParser parser = parser();
+        ByteBuffer buffer = buffer(POST + GET + CHUNKED);
+        assertTrue(parser.feed(buffer));
+        assertEquals("/calc", parser.getTarget());
+        parser.reset();
+        assertTrue(parser.feed(buffer));
+        assertEquals("/index.html?a=1", parser.getTarget());
+        parser.reset();
+        assertTrue(parser.feed(buffer));
+        assertEquals("a=1&b=2", new String(parser.getBody(), StandardCharsets.ISO_8859_1));
+        assertFalse(buffer.hasRemaining());
+    }
+
+    @Test
+    void testEverySplitPointGivesSameResult() {
+        for (String request : new String[]{GET, POST, CHUNKED}) {
+            HttpRequestParser whole = parser();
+            assertTrue(whole.feed(buffer(request)));
+            byte[] data = request.getBytes(StandardCharsets.ISO_8859_1);
+            for (int split = 0; split < data.length; split++) {
+                HttpRequestParser parser = parser();
+                assertFalse(parser.feed(ByteBuffer.wrap(data, 0, split)));
+                assertTrue(parser.feed(ByteBuffer.wrap(data, split, data.length - split)));
+                assertSameRequest(whole, parser);
+            }
+            HttpRequestParser bytewise = parser();
+            for (int i = 0; i < data.length; i++) {
+                assertEquals(i == data.length - 1, bytewise.feed(ByteBuffer.wrap(data, i, 1)));
+            }
+            assertSameRequest(whole, bytewise);
+        }
+    }
+
+    private static void assertSameRequest(HttpRequestParser expected, HttpRequestParser actual) {
+        assertEquals(expected.getMethod(), actual.getMethod());
+        assertEquals(expected.getTarget(), actual.getTarget());
+        assertEquals(expected.getVersion(), actual.getVersion());
+        assertEquals(expected.getHeaders(), actual.getHeaders());
+        assertArrayEquals(expected.getBody(), actual.getBody());
+    }
+
+    @Test
+    void testLimits() {
+        assertEquals(414, status("GET /" + "a".repeat(1100) + " HTTP/1.1\r\n\r\n"));
+        assertEquals(431, status("GET / HTTP/1.1\r\nX: " + "a".repeat(1100) + "\r\n\r\n"));
+        assertEquals(431, status("GET / HTTP/1.1\r\n" + "X: a\r\n".repeat(200) + "\r\n"));
+        assertEquals(413, status("POST / HTTP/1.1\r\nContent-Length: 65\r\n\r\n"));
+        assertEquals(413, status("POST / HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n40\r\n" + "a".repeat(64) + "\r\n1\r\n"));
+        assertEquals(413, status("POST / HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\nFFFFFFFFF\r\n"));
+
+        HttpRequestParser parser = parser();
+        assertTrue(parser.feed(buffer("POST / HTTP/1.1\r\nContent-Length: 64\r\n\r\n" + "a".repeat(64))));
+    }
+
+    @Test
+    void testInvalidRequests() {
+        assertEquals(400, status("GET /\r\n\r\n"));
+        assertEquals(400, status("GET  / HTTP/1.1\r\n\r\n"));
+        assertEquals(400, status("GE(T / HTTP/1.1\r\n\r\n"));
+        assertEquals(400, status("GET / FTP/1.1\r\n\r\n"));
+        assertEquals(505, status("GET / HTTP/2.0\r\n\r\n"));
+        assertEquals(501, status("PUT / HTTP/1.1\r\n\r\n"));
+        assertEquals(400, status("GET / HTTP/1.1\r\nHost: x\r\n folded\r\n\r\n"));
+        assertEquals(400, status("GET / HTTP/1.1\r\nHost x\r\n\r\n"));
+        assertEquals(400, status("GET / HTTP/1.1\r\nHost : x\r\n\r\n"));
+        assertEquals(400, status("GET / HTTP/1.1\r\nHost: x\ry\r\n\r\n"));
+        assertEquals(400, status("POST / HTTP/1.1\r\nContent-Length: 1\r\nTransfer-Encoding: chunked\r\n\r\n"));
+        assertEquals(400, status("POST / HTTP/1.1\r\nContent-Length: 1\r\nContent-Length: 2\r\n\r\n"));
+        assertEquals(400, status("POST / HTTP/1.1\r\nContent-Length: -1\r\n\r\n"));
+        assertEquals(400, status("POST / HTTP/1.0\r\nTransfer-Encoding: chunked\r\n\r\n"));
+        assertEquals(501, status("POST / HTTP/1.1\r\nTransfer-Encoding: gzip, chunked\r\n\r\n"));
+        assertEquals(400, status("POST / HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\nxyz\r\n"));
+        assertEquals(400, status("POST / HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n1\r\nab\r\n"));
+    }
+
+    @Test
+    void testRepeatedContentLengthWithSameValue() {
+        HttpRequestParser parser = parser();
+        assertTrue(parser.feed(buffer("POST / HTTP/1.1\r\nContent-Length: 1\r\nContent-Length: 1\r\n\r\nx")));
+        assertEquals(1, parser.getBody().length);
+    }
+
+    @Test
+    void testErrorIsSticky() {
+        HttpRequestParser parser = parser();
+        HttpParseException e = assertThrows(HttpParseException.class, () -> parser.feed(buffer("PUT / HTTP/1.1\r\n")));
+        assertSame(e, assertThrows(HttpParseException.class, () -> parser.feed(buffer(GET))));
+        parser.reset();
+        assertTrue(parser.feed(buffer(GET)));
+    }
+
+    @Test
+    void testParseCookies() {
+        Map<String, String> cookies = HttpRequestParser.parseCookies("a=1; sid=\"ABC\";b = x=y ;;=z; c; sid=XYZ");
+        assertEquals("1", cookies.get("a"));
+        assertEquals("ABC", cookies.get("sid"));
+        assertEquals("x=y", cookies.get("b"));
+        assertEquals(3, cookies.size());
+        assertTrue(HttpRequestParser.parseCookies(null).isEmpty());
+        assertTrue(HttpRequestParser.parseCookies("").isEmpty());
+    }
+
+    @Test
+    void testFuzzedRequests() {
+        Random random = new Random(42);
+        byte[][] seeds = {
+                GET.getBytes(StandardCharsets.ISO_8859_1),
+                POST.getBytes(StandardCharsets.ISO_8859_1),
+                CHUNKED.getBytes(StandardCharsets.ISO_8859_1)
+        };
+        byte[] interesting = {'\r', '\n', ' ', ':', ';', '0', 'f', 'F', '\t', 0, (byte) 0xFF, '"', '='};
+        for (int i = 0; i < 20_000; i++) {
+            byte[] data = seeds[random.nextInt(seeds.length)].clone();
+            int mutations = 1 + random.nextInt(4);
+            for (int m = 0; m < mutations; m++) {
+                int pos = random.nextInt(data.length);
+                switch (random.nextInt(4)) {
+                    case 0:
+                        data[pos] = (byte) random.nextInt(256);
+                        break;
+                    case 1:
+                        data[pos] = interesting[random.nextInt(interesting.length)];
+                        break;
+                    case 2:
+                        data = Arrays.copyOf(data, pos);
+                        break;
+                    default:
+                        byte[] longer = Arrays.copyOf(data, data.length + 1);
+                        System.arraycopy(data, pos, longer, pos + 1, data.length - pos);
+                        longer[pos] = interesting[random.nextInt(interesting.length)];
+                        data = longer;
+                }
+                if (data.length == 0) {
+                    break;
+                }
+            }
+            feedInRandomPieces(data, random);
+        }
+        for (int i = 0; i < 5_000; i++) {
+            byte[] data = new byte[random.nextInt(2048)];
+            random.nextBytes(data);
+            feedInRandomPieces(data, random);
+        }
+    }
+
+    private static void feedInRandomPieces(byte[] data, Random random) {
+        HttpRequestParser parser = parser();
+        int pos = 0;
+        try {
+            while (pos < data.length) {
+                int len = 1 + random.nextInt(Math.min(64, data.length - pos));
+                ByteBuffer buffer = ByteBuffer.wrap(data, pos, len);
+                boolean done = parser.feed(buffer);
+                pos += len - buffer.remaining();
+                if (done) {
+                    assertTrue(parser.getMethod().equals("GET") || parser.getMethod().equals("POST"));
+                    assertTrue(parser.getBody().length <= 64);
+                    parser.reset();
+                }
+            }
+        } catch (HttpParseException e) {
+            int code = e.getStatusCode();
+            assertTrue(code == 400 || code == 413 || code == 414 || code == 431 || code == 501 || code == 505,
+                    () -> "Unexpected status " + code);
+        }
+    }
+}
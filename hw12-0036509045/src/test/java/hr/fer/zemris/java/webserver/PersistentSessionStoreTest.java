@@ -0,0 +1,107 @@
+package hr.fer.zemris.java.webserver;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PersistentSessionStoreTest {
+
+    @TempDir
+    Path dir;
+
+    private final long validUntil = System.currentTimeMillis() + 60_000;
+
+    private PersistentSessionStore start() {
+        PersistentSessionStore store = new PersistentSessionStore(60, 100, dir, 60);
+        store.start();
+        return store;
+    }
+
+    private List<String> files() throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.map(f -> f.getFileName().toString()).sorted().collect(Collectors.toList());
+        }
+    }
+
+    @Test
+    void testSessionsSurviveRestart() {
+        PersistentSessionStore store = start();
+        SessionStore.SessionMapEntry first = store.create("localhost");
+        first.map.put("user name", "a&b=c č");
+        store.update(first);
+        SessionStore.SessionMapEntry second = store.create("www.example.com");
+        store.close();
+
+        store = start();
+        SessionStore.SessionMapEntry restored = store.get(first.sid);
+        assertNotNull(restored);
+        assertEquals("localhost", restored.host);
+        assertEquals(first.validUntil, restored.validUntil);
+        assertEquals(Map.of("user name", "a&b=c č"), restored.map);
+        assertEquals("www.example.com", store.get(second.sid).host);
+        assertEquals(2, store.size());
+        store.close();
+    }
+
+    @Test
+    void testUnterminatedRecordIsIgnored() throws IOException {
+        Files.writeString(dir.resolve("sessions.snapshot"), "G 1\nS SNAP localhost " + validUntil + " \n");
+        Files.writeString(dir.resolve("sessions-1.log"), "S A localhost " + validUntil + " x=1\n"
+                + "R SNAP\nS A localhost " + validUntil + " x=2");
+
+        PersistentSessionStore store = start();
+        assertEquals(Map.of("x", "1"), store.get("A").map);
+        assertNull(store.get("SNAP"));
+        store.close();
+    }
+
+    @Test
+    void testOnlyLogOfSnapshotGenerationIsApplied() throws IOException {
+        Files.writeString(dir.resolve("sessions.snapshot"), "G 3\nS SNAP localhost " + validUntil + " \n");
+        Files.writeString(dir.resolve("sessions-2.log"), "S OLD localhost " + validUntil + " \nR SNAP\n");
+        Files.writeString(dir.resolve("sessions-3.log"), "S NEW localhost " + validUntil + " \n");
+        Files.writeString(dir.resolve("sessions.snapshot.tmp"), "G 4\nS TMP localhost " + validUntil + " \n");
+
+        PersistentSessionStore store = start();
+        assertNotNull(store.get("SNAP"));
+        assertNotNull(store.get("NEW"));
+        assertNull(store.get("OLD"));
+        assertNull(store.get("TMP"));
+        store.close();
+
+        assertEquals(List.of("sessions-5.log", "sessions.snapshot"), files());
+        assertTrue(Files.readString(dir.resolve("sessions.snapshot")).startsWith("G 5\n"));
+    }
+
+    @Test
+    void testUnreadableFilesAreMovedAside() throws IOException {
+        Files.writeString(dir.resolve("sessions.snapshot"), "G x\nS SNAP localhost " + validUntil + " \n");
+        Files.writeString(dir.resolve("sessions-1.log"), "S A localhost " + validUntil + " \n");
+
+        PersistentSessionStore store = start();
+        assertNull(store.get("SNAP"));
+        SessionStore.SessionMapEntry created = store.create("localhost");
+        store.close();
+
+        List<String> files = files();
+        assertEquals(3, files.size());
+        assertEquals(List.of("sessions-2.log", "sessions.snapshot"), files.subList(0, 2));
+        Path aside = dir.resolve(files.get(2));
+        assertTrue(aside.getFileName().toString().startsWith("unreadable-"));
+        assertEquals("G x\nS SNAP localhost " + validUntil + " \n", Files.readString(aside.resolve("sessions.snapshot")));
+        assertTrue(Files.exists(aside.resolve("sessions-1.log")));
+
+        store = start();
+        assertNotNull(store.get(created.sid));
+        store.close();
+    }
+}
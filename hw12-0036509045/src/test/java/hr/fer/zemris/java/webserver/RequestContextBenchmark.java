@@ -0,0 +1,118 @@
+package hr.fer.zemris.java.webserver;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures writing a whole response through {@link RequestContext}: header generation on its own, a body written
+ * in one piece, in many small pieces like smart scripts do, and as text. Responses are written to a stream that
+ * discards them, so only the work done by the context is measured.
+ * <p>
+ * Run with {@code mvn test-compile exec:exec -Dexec.classpathScope=test -Dexec.executable=java
+ * "-Dexec.args=-cp %classpath hr.fer.zemris.java.webserver.RequestContextBenchmark"}.
+ *
+ * @author Jan Capek
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RequestContextBenchmark {
+
+    /**
+     * Size of the response body in bytes.
+     */
+    @Param({"128", "4096", "65536"})
+    public int bodySize;
+
+    /**
+     * Accept-Encoding header of the request, empty if client does not accept compression.
+     */
+    @Param({"", "gzip"})
+    public String acceptEncoding;
+
+    private OutputStream sink = OutputStream.nullOutputStream();
+    private byte[] body;
+    private String text;
+    private Map<String, String> parameters = new HashMap<>();
+    private Map<String, String> persistentParameters = new HashMap<>();
+    private Map<String, String> temporaryParameters = new HashMap<>();
+
+    @Setup
+    public void setup() {
+        body = new byte[bodySize];
+        for (int i = 0; i < bodySize; i++) {
+            body[i] = (byte) "<p>Hello, world!</p>\n".charAt(i % 21);
+        }
+        text = new String(body, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * @return Context set up the way server sets it up for a keep-alive request with a new session.
+     */
+    private RequestContext newContext() {
+        List<RequestContext.RCCookie> cookies = new ArrayList<>();
+        RequestContext rc = new RequestContext(sink, parameters, persistentParameters, cookies,
+                temporaryParameters, null, "ABCDEFGHIJKLMNOPQRST");
+        rc.setKeepAlive(true, true);
+        rc.setCompression(acceptEncoding.isEmpty() ? null : acceptEncoding, Set.of("text/html"));
+        rc.addRCCookie(new RequestContext.RCCookie("sid", "ABCDEFGHIJKLMNOPQRST", null, "localhost", "/"));
+        rc.setMimeType("text/html");
+        return rc;
+    }
+
+    @Benchmark
+    public RequestContext headerGeneration() throws IOException {
+        RequestContext rc = newContext();
+        rc.setHeader("ETag", "\"5f3a-1c2b\"");
+        rc.setHeader("Last-Modified", "Sat, 17 Oct 2026 10:00:00 GMT");
+        rc.setStatusCode(304);
+        rc.setStatusText("Not Modified");
+        rc.finish();
+        return rc;
+    }
+
+    @Benchmark
+    public RequestContext singleWrite() throws IOException {
+        RequestContext rc = newContext();
+        rc.write(body);
+        rc.finish();
+        return rc;
+    }
+
+    @Benchmark
+    public RequestContext smallWrites() throws IOException {
+        RequestContext rc = newContext();
+        for (int i = 0; i < bodySize; i += 64) {
+            rc.write(body, i, Math.min(64, bodySize - i));
+        }
+        rc.finish();
+        return rc;
+    }
+
+    @Benchmark
+    public RequestContext textWrite() throws IOException {
+        RequestContext rc = newContext();
+        rc.write(text);
+        rc.finish();
+        return rc;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(RequestContextBenchmark.class.getSimpleName()).build()).run();
+    }
+}
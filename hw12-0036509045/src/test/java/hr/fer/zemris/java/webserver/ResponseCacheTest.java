@@ -0,0 +1,122 @@
+package hr.fer.zemris.java.webserver;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ResponseCacheTest {
+
+    private static ResponseCache.Response response(int statusCode, int size) {
+        return new ResponseCache.Response(statusCode, "OK", "text/plain", "UTF-8", Map.of(), new byte[size], 60);
+    }
+
+    private static ResponseCache.Response compute(ResponseCache cache, String key, int size) {
+        assertNull(cache.join(key));
+        ResponseCache.Response response = response(200, size);
+        cache.complete(key, response);
+        return response;
+    }
+
+    @Test
+    void testConcurrentMissesAreCoalesced() {
+        ResponseCache cache = new ResponseCache(1 << 20, 1 << 10);
+        assertNull(cache.join("/a"));
+        CompletableFuture<ResponseCache.Response> waiting = cache.join("/a");
+        assertNotNull(waiting);
+        assertFalse(waiting.isDone());
+        assertNull(cache.join("/b"));
+
+        ResponseCache.Response response = response(200, 10);
+        cache.complete("/a", response);
+        assertSame(response, waiting.getNow(null));
+        assertSame(response, cache.get("/a"));
+        assertSame(response, cache.join("/a").getNow(null));
+        assertEquals(2, cache.getMisses());
+        assertEquals(1, cache.getCoalesced());
+        assertEquals(2, cache.getHits());
+    }
+
+    @Test
+    void testStaleResponsesAreDropped() {
+        ResponseCache cache = new ResponseCache(1 << 20, 1 << 10);
+        ResponseCache.Response response = compute(cache, "/a", 10);
+        long now = System.nanoTime();
+        assertSame(response, cache.get("/a", now + TimeUnit.SECONDS.toNanos(59)));
+        assertNull(cache.get("/a", now + TimeUnit.SECONDS.toNanos(61)));
+        assertEquals(0, cache.size());
+        assertNull(cache.get("/a"));
+    }
+
+    @Test
+    void testEvictsLeastRecentlyUsedBySize() {
+        long entry = 100 + 512;
+        ResponseCache cache = new ResponseCache(3 * entry, 100);
+        ResponseCache.Response a = compute(cache, "/a", 100);
+        compute(cache, "/b", 100);
+        compute(cache, "/c", 100);
+        assertEquals(3 * entry, cache.size());
+
+        assertSame(a, cache.get("/a"));
+        compute(cache, "/d", 100);
+        assertEquals(3 * entry, cache.size());
+        assertNull(cache.get("/b"));
+        assertNotNull(cache.get("/a"));
+        assertNotNull(cache.get("/c"));
+        assertNotNull(cache.get("/d"));
+
+        compute(cache, "/e", 10);
+        assertEquals(2 * entry + 10 + 512, cache.size());
+        assertNull(cache.get("/a"));
+    }
+
+    @Test
+    void testUncacheableResponsesAreHandedOverAsNull() {
+        ResponseCache cache = new ResponseCache(1 << 20, 100);
+        for (ResponseCache.Response response : new ResponseCache.Response[]{response(404, 10), response(200, 101), null}) {
+            assertNull(cache.join("/a"));
+            CompletableFuture<ResponseCache.Response> waiting = cache.join("/a");
+            cache.complete("/a", response);
+            assertTrue(waiting.isDone());
+            assertNull(waiting.getNow(response(200, 0)));
+            assertNull(cache.get("/a"));
+        }
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    void testCapturedBodyIsSentAfterItIsHandedOver() throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        RequestContext rc = new RequestContext(bos, new HashMap<>(), new HashMap<>(), new ArrayList<>(), null);
+        rc.setBufferSize(16);
+        rc.startCapture(1000);
+        rc.write(new byte[100]);
+        assertEquals(0, bos.size());
+
+        ResponseCache.Response response = rc.endCapture(ResponseCache.Rule.parse("ttl=60"));
+        assertNotNull(response);
+        assertEquals(0, bos.size());
+        rc.finish();
+        String output = bos.toString(StandardCharsets.ISO_8859_1);
+        assertTrue(output.contains("Content-Length: 100\r\n"));
+        assertTrue(output.endsWith("\r\n\r\n" + new String(new byte[100], StandardCharsets.ISO_8859_1)));
+
+        bos.reset();
+        rc = new RequestContext(bos, new HashMap<>(), new HashMap<>(), new ArrayList<>(), null);
+        rc.setBufferSize(16);
+        rc.startCapture(50);
+        rc.write(new byte[40]);
+        assertEquals(0, bos.size());
+        rc.write(new byte[20]);
+        assertTrue(bos.size() > 60);
+        assertNull(rc.endCapture(ResponseCache.Rule.parse("ttl=60")));
+    }
+}
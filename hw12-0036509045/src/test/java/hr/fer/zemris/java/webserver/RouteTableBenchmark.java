@@ -0,0 +1,95 @@
+package hr.fer.zemris.java.webserver;
+
+import hr.fer.zemris.java.webserver.workers.EchoParams;
+import hr.fer.zemris.java.webserver.workers.HelloWorker;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the cost of finding what serves a request: regular expressions and reflection used by the server
+ * before, against {@link RouteTable} and plain string scanning. Only dispatch is measured, workers are not run.
+ * <p>
+ * Run with {@code mvn test-compile exec:exec -Dexec.classpathScope=test -Dexec.executable=java
+ * "-Dexec.args=-cp %classpath hr.fer.zemris.java.webserver.RouteTableBenchmark"}.
+ *
+ * @author Jan Capek
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RouteTableBenchmark {
+
+    /**
+     * Requested path with query string.
+     */
+    @Param({"/hello?name=Jan", "/ext/EchoParams?a=1&b=2", "/scripts/osnovni.smscr"})
+    public String fullPath;
+
+    private Map<String, IWebWorker> workersMap;
+    private RouteTable routes;
+
+    @Setup
+    public void setup() {
+        workersMap = new HashMap<>();
+        workersMap.put("/hello", new HelloWorker());
+        workersMap.put("/echo", new EchoParams());
+        routes = new RouteTable(workersMap, "hr.fer.zemris.java.webserver.workers", getClass().getClassLoader());
+    }
+
+    @Benchmark
+    public Object regexAndReflection() throws Exception {
+        Map<String, String> params = new HashMap<>();
+        String paramString = fullPath.replaceFirst("^.*?(?:\\?|$)", "");
+        java.util.regex.Matcher m = java.util.regex.Pattern.compile("([^&=]+)=([^&=]*)").matcher(paramString);
+        m.results().forEach(r -> params.put(r.group(1), r.group(2)));
+        String urlPath = fullPath.replaceFirst("\\?.*", "");
+        String fileExtension = urlPath.replaceFirst("(?:.*\\.|.*)", "");
+        if (urlPath.matches("/ext/[^/]+")) {
+            Class<?> workerClass = getClass().getClassLoader()
+                    .loadClass("hr.fer.zemris.java.webserver.workers." + urlPath.replaceFirst("/ext/", ""));
+            return workerClass.getConstructor().newInstance();
+        } else if (workersMap.containsKey(urlPath)) {
+            return workersMap.get(urlPath);
+        }
+        return fileExtension.equals("smscr") ? params : fileExtension;
+    }
+
+    @Benchmark
+    public Object routeTable() {
+        Map<String, String> params = new HashMap<>();
+        int query = fullPath.indexOf('?');
+        String urlPath = query == -1 ? fullPath : fullPath.substring(0, query);
+        if (query != -1) {
+            String paramString = fullPath.substring(query + 1);
+            int start = 0;
+            while (start < paramString.length()) {
+                int end = paramString.indexOf('&', start);
+                end = end == -1 ? paramString.length() : end;
+                int eq = paramString.indexOf('=', start);
+                if (eq > start && eq < end) {
+                    params.put(paramString.substring(start, eq), paramString.substring(eq + 1, end));
+                }
+                start = end + 1;
+            }
+        }
+        String fileExtension = RouteTable.getExtension(urlPath);
+        IWebWorker worker = routes.find(urlPath);
+        if (worker != null) {
+            return worker;
+        }
+        return fileExtension.equals("smscr") ? params : fileExtension;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(RouteTableBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -0,0 +1,57 @@
+package hr.fer.zemris.java.webserver;
+
+import hr.fer.zemris.java.webserver.workers.HelloWorker;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RouteTableTest {
+
+    private static class RecordingClassLoader extends ClassLoader {
+        private final List<String> requested = new ArrayList<>();
+
+        RecordingClassLoader() {
+            super(RouteTableTest.class.getClassLoader());
+        }
+
+        @Override
+        public Class<?> loadClass(String name) throws ClassNotFoundException {
+            requested.add(name);
+            return super.loadClass(name);
+        }
+    }
+
+    @Test
+    void testExtWorkersAreResolvedOnce() {
+        RecordingClassLoader loader = new RecordingClassLoader();
+        RouteTable routes = new RouteTable(Map.of(), "hr.fer.zemris.java.webserver.workers", loader);
+
+        IWebWorker worker = routes.find("/ext/HelloWorker");
+        assertTrue(worker instanceof HelloWorker);
+        assertSame(worker, routes.find("/ext/HelloWorker"));
+        assertNull(routes.find("/ext/NoSuchWorker"));
+        assertNull(routes.find("/ext/NoSuchWorker"));
+        assertNull(routes.find("/ext/../Home"));
+        assertEquals(List.of("hr.fer.zemris.java.webserver.workers.HelloWorker",
+                "hr.fer.zemris.java.webserver.workers.NoSuchWorker"), loader.requested);
+
+        RouteTable reloaded = routes.withRoutes(Map.of("/hello", worker));
+        assertSame(worker, reloaded.find("/ext/HelloWorker"));
+        assertSame(worker, reloaded.find("/hello"));
+        assertNull(reloaded.find("/ext/NoSuchWorker"));
+        assertEquals(3, loader.requested.size());
+    }
+
+    @Test
+    void testNonWorkerClassesAreNotServed() {
+        RecordingClassLoader loader = new RecordingClassLoader();
+        RouteTable routes = new RouteTable(Map.of(), "hr.fer.zemris.java.webserver", loader);
+        assertNull(routes.find("/ext/RouteTableTest"));
+        assertNull(routes.find("/ext/RouteTableTest"));
+        assertEquals(1, loader.requested.size());
+    }
+}
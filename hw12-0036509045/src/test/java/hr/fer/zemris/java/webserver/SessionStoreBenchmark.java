@@ -0,0 +1,78 @@
+package hr.fer.zemris.java.webserver;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures session lookup and creation in a {@link SessionStore} holding given number of sessions.
+ * Lookups are measured from several threads at once since every request does one.
+ * Creation is measured in a full store, where each new session evicts the one closest to expiry.
+ * <p>
+ * Run with {@code mvn test-compile exec:exec -Dexec.classpathScope=test -Dexec.executable=java
+ * "-Dexec.args=-cp %classpath hr.fer.zemris.java.webserver.SessionStoreBenchmark"}.
+ *
+ * @author Jan Capek
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SessionStoreBenchmark {
+
+    /**
+     * Number of stored sessions.
+     */
+    @Param({"1000", "100000"})
+    public int sessions;
+
+    private SessionStore store;
+    private String[] sids;
+
+    @Setup
+    public void setup() {
+        store = new SessionStore(600, sessions);
+        sids = new String[sessions];
+        for (int i = 0; i < sessions; i++) {
+            sids[i] = store.create("localhost").sid;
+        }
+    }
+
+    /**
+     * Position of the next looked up session, separate for each thread.
+     */
+    @State(Scope.Thread)
+    public static class Cursor {
+        private int next;
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Object lookupHit(Cursor cursor) {
+        int i = cursor.next;
+        cursor.next = i + 1 == sids.length ? 0 : i + 1;
+        SessionStore.SessionMapEntry session = store.get(sids[i]);
+        store.update(session);
+        return session;
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Object lookupMiss() {
+        return store.get("NOSUCHSESSIONXXXXXXX");
+    }
+
+    @Benchmark
+    public Object createInFullStore() {
+        return store.create("localhost");
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(SessionStoreBenchmark.class.getSimpleName()).build()).run();
+    }
+}
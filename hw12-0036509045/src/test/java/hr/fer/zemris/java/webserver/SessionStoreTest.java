@@ -0,0 +1,80 @@
+package hr.fer.zemris.java.webserver;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SessionStoreTest {
+
+    private static SessionStore.SessionMapEntry session(String sid, long validFor) {
+        return new SessionStore.SessionMapEntry(sid, "localhost", System.currentTimeMillis() + validFor);
+    }
+
+    @Test
+    void testExpiredSessionsAreRemovedFromQueueHead() {
+        SessionStore store = new SessionStore(0, 10);
+        SessionStore.SessionMapEntry created = store.create("localhost");
+        store.create("localhost");
+        assertNull(store.get(created.sid));
+        assertTrue(store.restore(session("VALID", 60_000)));
+
+        assertEquals(2, store.removeExpired());
+        assertEquals(0, store.removeExpired());
+        assertEquals(1, store.size());
+        assertEquals(2, store.getExpired());
+        assertNotNull(store.get("VALID"));
+        assertFalse(store.restore(session("EXPIRED", 0)));
+    }
+
+    @Test
+    void testSessionClosestToExpiryIsEvicted() {
+        SessionStore store = new SessionStore(60, 2);
+        SessionStore.SessionMapEntry first = session("FIRST", 10_000);
+        SessionStore.SessionMapEntry second = session("SECOND", 20_000);
+        assertTrue(store.restore(second));
+        assertTrue(store.restore(first));
+        assertFalse(store.restore(session("THIRD", 30_000)));
+
+        SessionStore.SessionMapEntry created = store.create("localhost");
+        assertEquals(2, store.size());
+        assertEquals(1, store.getEvicted());
+        assertFalse(store.contains(first));
+        assertTrue(store.contains(second));
+        assertTrue(store.contains(created));
+
+        store.create("localhost");
+        assertFalse(store.contains(second));
+        assertEquals(2, store.getEvicted());
+        assertEquals(0, store.getExpired());
+    }
+
+    @Test
+    void testCollidingSidIsGeneratedAgain() {
+        Deque<String> sids = new ArrayDeque<>(Arrays.asList("SAME", "SAME", "OTHER"));
+        SessionStore store = new SessionStore(60, 10) {
+            @Override
+            String generateSid() {
+                return sids.poll();
+            }
+        };
+        SessionStore.SessionMapEntry first = store.create("localhost");
+        SessionStore.SessionMapEntry second = store.create("localhost");
+        assertEquals("SAME", first.sid);
+        assertEquals("OTHER", second.sid);
+        assertSame(first, store.get("SAME"));
+        assertEquals(2, store.getCreated());
+        assertFalse(store.restore(session("OTHER", 60_000)));
+        assertSame(second, store.get("OTHER"));
+    }
+
+    @Test
+    void testGeneratedSids() {
+        String sid = new SessionStore(60, 10).generateSid();
+        assertEquals(20, sid.length());
+        assertTrue(sid.chars().allMatch(c -> c >= 'A' && c <= 'Z'));
+    }
+}
@@ -0,0 +1,48 @@
+package hr.fer.zemris.java.webserver;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Properties;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SmartHttpServerTest {
+
+    @TempDir
+    Path dir;
+
+    private String config(String... overrides) throws IOException {
+        Properties properties = new Properties();
+        try (BufferedReader reader = Files.newBufferedReader(Path.of("config/server.properties"))) {
+            properties.load(reader);
+        }
+        for (int i = 0; i < overrides.length; i += 2) {
+            properties.setProperty(overrides[i], overrides[i + 1]);
+        }
+        Path file = dir.resolve("server.properties");
+        try (Writer writer = Files.newBufferedWriter(file)) {
+            properties.store(writer, null);
+        }
+        return file.toString();
+    }
+
+    @Test
+    void testShippedConfigIsValid() throws IOException {
+        assertDoesNotThrow(() -> new SmartHttpServer(config()));
+    }
+
+    @Test
+    void testEnablingOnlyRequestRate() throws IOException {
+        assertDoesNotThrow(() -> new SmartHttpServer(config("server.clientRequestRate", "200")));
+        assertDoesNotThrow(() -> new SmartHttpServer(config("server.clientRequestRate", "200",
+                "server.maxClientConnections", "128")));
+        assertThrows(RuntimeException.class, () -> new SmartHttpServer(config("server.clientRequestRate", "200",
+                "server.clientRequestBurst", "0")));
+    }
+}
@@ -0,0 +1,85 @@
+package hr.fer.zemris.java.webserver;
+
+import hr.fer.zemris.java.custom.scripting.exec.CompiledScript;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SmartScriptCacheTest {
+
+    @TempDir
+    Path dir;
+
+    private Path write(String name, String script, long lastModified) throws IOException {
+        Path file = dir.resolve(name);
+        Files.writeString(file, script);
+        Files.setLastModifiedTime(file, FileTime.fromMillis(lastModified));
+        return file;
+    }
+
+    @Test
+    void testScriptIsCompiledOnce() throws IOException {
+        SmartScriptCache cache = new SmartScriptCache(4);
+        Path file = write("a.smscr", "{$= 1 $}", 1000);
+        CompiledScript script = cache.get(file);
+        assertSame(script, cache.get(file));
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    void testChangedScriptIsCompiledAgain() throws IOException {
+        SmartScriptCache cache = new SmartScriptCache(4);
+        Path file = write("a.smscr", "{$= 1 $}", 1000);
+        CompiledScript script = cache.get(file);
+
+        write("a.smscr", "{$= 2 $}", 2000);
+        CompiledScript modified = cache.get(file);
+        assertNotSame(script, modified);
+
+        write("a.smscr", "{$= 22 $}", 2000);
+        CompiledScript resized = cache.get(file);
+        assertNotSame(modified, resized);
+        assertSame(resized, cache.get(file));
+        assertEquals(3, cache.getMisses());
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    void testEvictsLeastRecentlyUsed() throws IOException {
+        SmartScriptCache cache = new SmartScriptCache(2);
+        Path a = write("a.smscr", "a", 1000);
+        Path b = write("b.smscr", "b", 1000);
+        Path c = write("c.smscr", "c", 1000);
+        cache.get(a);
+        cache.get(b);
+        cache.get(a);
+        cache.get(c);
+        assertEquals(2, cache.size());
+        assertEquals(1, cache.getHits());
+        assertEquals(3, cache.getMisses());
+
+        cache.get(a);
+        cache.get(c);
+        assertEquals(3, cache.getHits());
+        cache.get(b);
+        assertEquals(4, cache.getMisses());
+        assertEquals(2, cache.size());
+    }
+
+    @Test
+    void testMissingScript() {
+        SmartScriptCache cache = new SmartScriptCache(2);
+        assertThrows(IOException.class, () -> cache.get(dir.resolve("missing.smscr")));
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.getMisses());
+    }
+}
@@ -0,0 +1,117 @@
+package hr.fer.zemris.java.webserver;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class StaticFileCacheTest {
+
+    @TempDir
+    Path dir;
+
+    private Path write(String name, int size, long lastModified) throws IOException {
+        Path file = dir.resolve(name);
+        Files.write(file, new byte[size]);
+        Files.setLastModifiedTime(file, FileTime.fromMillis(lastModified));
+        return file;
+    }
+
+    @Test
+    void testEvictsLeastRecentlyUsedBySize() throws IOException {
+        long entry = 1000 + 256;
+        StaticFileCache cache = new StaticFileCache(3 * entry, 1000);
+        Path a = write("a.txt", 1000, 0);
+        Path b = write("b.txt", 1000, 0);
+        Path c = write("c.txt", 1000, 0);
+        Path d = write("d.txt", 1000, 0);
+        cache.get(a, false, 0);
+        cache.get(b, false, 0);
+        cache.get(c, false, 0);
+        assertEquals(3 * entry, cache.size());
+
+        cache.get(a, false, 0);
+        cache.get(d, false, 0);
+        assertEquals(3 * entry, cache.size());
+        assertEquals(1, cache.getHits());
+        assertEquals(4, cache.getMisses());
+
+        cache.get(a, false, 0);
+        cache.get(c, false, 0);
+        cache.get(d, false, 0);
+        assertEquals(4, cache.getHits());
+        cache.get(b, false, 0);
+        assertEquals(5, cache.getMisses());
+    }
+
+    @Test
+    void testFileIsCheckedOncePerSecond() throws IOException {
+        StaticFileCache cache = new StaticFileCache(1 << 20, 1 << 20);
+        Path file = write("a.txt", 100, 0);
+        StaticFileCache.Entry entry = cache.get(file, false, 10_000);
+
+        write("a.txt", 200, 5000);
+        assertSame(entry, cache.get(file, false, 10_999));
+        StaticFileCache.Entry changed = cache.get(file, false, 11_000);
+        assertNotSame(entry, changed);
+        assertEquals(200, changed.getSize());
+        assertEquals(2, cache.getMisses());
+
+        assertSame(changed, cache.get(file, false, 12_000));
+        Files.delete(file);
+        assertSame(changed, cache.get(file, false, 12_999));
+        assertThrows(IOException.class, () -> cache.get(file, false, 13_000));
+    }
+
+    @Test
+    void testNotModifiedPrecedence() throws IOException {
+        long modified = 1_500_000_000_000L;
+        StaticFileCache.Entry entry = new StaticFileCache(1 << 20, 1 << 20).get(write("a.txt", 100, modified), false);
+        String date = entry.getLastModified();
+
+        assertTrue(entry.isNotModified(entry.getETag(), null));
+        assertTrue(entry.isNotModified("\"other\", " + entry.getETag().substring(2), null));
+        assertTrue(entry.isNotModified(" * ", "Thu, 01 Jan 1970 00:00:00 GMT"));
+        assertFalse(entry.isNotModified("\"other\"", date));
+
+        assertTrue(entry.isNotModified(null, date));
+        assertTrue(entry.isNotModified(null, "Sat, 01 Jan 2050 00:00:00 GMT"));
+        assertFalse(entry.isNotModified(null, "Thu, 01 Jan 1970 00:00:00 GMT"));
+        assertFalse(entry.isNotModified(null, "yesterday"));
+        assertFalse(entry.isNotModified(null, null));
+    }
+
+    @Test
+    void testLargeFilesAreCachedWithoutContent() throws IOException {
+        StaticFileCache cache = new StaticFileCache(1 << 20, 100);
+        Path file = write("a.txt", 200, 0);
+        StaticFileCache.Entry entry = cache.get(file, true, 0);
+        assertNull(entry.getData());
+        assertNull(entry.getGzipData());
+        assertEquals(200, entry.getSize());
+        assertEquals(256, cache.size());
+
+        assertSame(entry, cache.get(file, true, 0));
+        StaticFileCache.Entry small = cache.get(write("b.txt", 100, 0), true, 0);
+        assertEquals(100, small.getData().length);
+        assertTrue(small.getGzipData().length < 100);
+    }
+
+    @Test
+    void testIfRangeRequiresStrongValidator() throws IOException {
+        long modified = 1_500_000_000_000L;
+        StaticFileCache.Entry entry = new StaticFileCache(1 << 20, 1 << 20).get(write("a.txt", 100, modified), false);
+
+        assertTrue(entry.matchesIfRange(null, modified));
+        assertTrue(entry.matchesIfRange(" " + entry.getLastModified() + " ", modified + 1000));
+        assertFalse(entry.matchesIfRange(entry.getLastModified(), modified + 999));
+        assertFalse(entry.matchesIfRange("Thu, 01 Jan 1970 00:00:00 GMT", modified + 1000));
+        assertFalse(entry.matchesIfRange(entry.getETag(), modified + 1000));
+        assertFalse(entry.matchesIfRange(entry.getETag().substring(2), modified + 1000));
+    }
+}